@@ -5,6 +5,7 @@ import android.view.View;
 import android.widget.Button;
 
 import net.gotev.uploadservice.UploadService;
+import net.gotev.uploadservicedemo.benchmarks.InMemoryUploadBenchmark;
 import net.gotev.uploadservicedemo.issues.Issue251;
 
 import butterknife.BindView;
@@ -12,14 +13,23 @@ import butterknife.OnClick;
 
 public class MainActivity extends BaseActivity {
 
+    // binary upload endpoint of the node.js example server, as seen from the emulator
+    private static final String BENCHMARK_SERVER_URL = "http://10.0.2.2:3000/upload/binary";
+
     @BindView(R.id.run_issue)
     Button runIssue;
 
+    @BindView(R.id.run_benchmark)
+    Button runBenchmark;
+
+    private InMemoryUploadBenchmark benchmark;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         //runIssue.setVisibility(View.VISIBLE);
+        //runBenchmark.setVisibility(View.VISIBLE);
     }
 
     @OnClick(R.id.multipart_upload)
@@ -47,4 +57,10 @@ public class MainActivity extends BaseActivity {
         new Issue251(this).run();
     }
 
+    @OnClick(R.id.run_benchmark)
+    public void runBenchmark() {
+        benchmark = new InMemoryUploadBenchmark(this, BENCHMARK_SERVER_URL, 20, 256 * 1024);
+        benchmark.run();
+    }
+
 }
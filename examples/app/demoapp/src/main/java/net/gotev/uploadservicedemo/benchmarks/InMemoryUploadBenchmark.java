@@ -0,0 +1,169 @@
+package net.gotev.uploadservicedemo.benchmarks;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.gotev.uploadservice.BinaryUploadRequest;
+import net.gotev.uploadservice.ServerResponse;
+import net.gotev.uploadservice.UploadInfo;
+import net.gotev.uploadservice.UploadStatusDelegate;
+import net.gotev.uploadservicedemo.MainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the upload of generated content from memory, with
+ * {@link BinaryUploadRequest#setBytesToUpload(ByteBuffer)}, with the upload of the same content
+ * written to temporary files first. Each run uploads the same payloads with both methods, one
+ * after the other, and logs the time spent to prepare the requests, the time until all the
+ * uploads are finished and the native heap growth, with the {@code InMemoryUploadBenchmark} tag.
+ *
+ * Start the node.js example server, set its address in {@link MainActivity} and show the
+ * benchmark button there. Keep a reference to the benchmark until it's finished.
+ *
+ * @author Aleksandar Gotev
+ */
+public class InMemoryUploadBenchmark implements Runnable {
+
+    private static final String TAG = InMemoryUploadBenchmark.class.getSimpleName();
+
+    private final Context context;
+    private final String serverUrl;
+    private final int uploads;
+    private final int uploadSize;
+
+    private byte[][] payloads;
+
+    // delegates are weakly referenced by the upload service, so keep the current one
+    private UploadStatusDelegate delegate;
+
+    /**
+     * Creates a new benchmark.
+     * @param context application context
+     * @param serverUrl binary upload endpoint
+     * @param uploads number of uploads for each method
+     * @param uploadSize size in bytes of each upload
+     */
+    public InMemoryUploadBenchmark(Context context, String serverUrl, int uploads, int uploadSize) {
+        this.context = context.getApplicationContext();
+        this.serverUrl = serverUrl;
+        this.uploads = uploads;
+        this.uploadSize = uploadSize;
+    }
+
+    @Override
+    public void run() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(uploadSize);
+                payloads = new byte[uploads][uploadSize];
+
+                for (byte[] payload : payloads) {
+                    random.nextBytes(payload);
+                }
+
+                startUploads(false);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Prepares and starts all the uploads of one method. When they are finished, the uploads
+     * of the other method are started.
+     * @param fromMemory true to upload from memory, false to upload from temporary files
+     */
+    private void startUploads(final boolean fromMemory) {
+        final String method = fromMemory ? "memory" : "temporary files";
+        final long nativeHeapBefore = Debug.getNativeHeapAllocatedSize();
+        final long startTime = SystemClock.elapsedRealtime();
+
+        delegate = new UploadStatusDelegate() {
+            private int finished = 0;
+            private int failed = 0;
+
+            @Override
+            public void onProgress(Context context, UploadInfo uploadInfo) {
+            }
+
+            @Override
+            public void onError(Context context, UploadInfo uploadInfo, ServerResponse serverResponse, Exception exception) {
+                failed++;
+                onFinished();
+            }
+
+            @Override
+            public void onCompleted(Context context, UploadInfo uploadInfo, ServerResponse serverResponse) {
+                onFinished();
+            }
+
+            @Override
+            public void onCancelled(Context context, UploadInfo uploadInfo) {
+                failed++;
+                onFinished();
+            }
+
+            private void onFinished() {
+                if (++finished < uploads)
+                    return;
+
+                Log.i(TAG, method + ": " + uploads + " uploads of " + uploadSize + " bytes finished in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms, " + failed + " failed");
+
+                if (!fromMemory) {
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            startUploads(true);
+                        }
+                    }, TAG).start();
+                }
+            }
+        };
+
+        try {
+            for (byte[] payload : payloads) {
+                BinaryUploadRequest request = new BinaryUploadRequest(context, serverUrl)
+                        .setNotificationConfig(null)
+                        .setDelegate(delegate);
+
+                if (fromMemory) {
+                    request.setBytesToUpload(ByteBuffer.wrap(payload));
+                } else {
+                    request.setFileToUpload(writeTemporaryFile(payload).getAbsolutePath())
+                           .setAutoDeleteFilesAfterSuccessfulUpload(true);
+                }
+
+                request.startUpload();
+            }
+
+        } catch (Exception exc) {
+            Log.e(TAG, "Error while starting uploads from " + method, exc);
+            return;
+        }
+
+        Log.i(TAG, method + ": " + uploads + " uploads prepared in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms, native heap grown by "
+                + (Debug.getNativeHeapAllocatedSize() - nativeHeapBefore) + " bytes");
+    }
+
+    private File writeTemporaryFile(byte[] payload) throws IOException {
+        File file = File.createTempFile("benchmark", ".bin", context.getCacheDir());
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(payload);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        return file;
+    }
+}
@@ -3,6 +3,7 @@ var multer = require('multer');
 var fs = require('fs');
 var path = require('path');
 var os = require('os');
+var crypto = require('crypto');
 var passport = require('passport');
 var HttpBasicAuth = require('passport-http').BasicStrategy;
 var app = express();
@@ -45,6 +46,9 @@ function getEndpoints(ipAddress) {
            "HTTP/Multipart (Basic Auth): http://" + ipAddress + ":" + SERVER_PORT + "/upload/multipart-ba\n" +
            "Binary:                      http://" + ipAddress + ":" + SERVER_PORT + "/upload/binary\n" +
            "Binary (Basic Auth):         http://" + ipAddress + ":" + SERVER_PORT + "/upload/binary-ba\n" +
+           "Binary (Delta):              http://" + ipAddress + ":" + SERVER_PORT + "/upload/delta\n" +
+           "tus:                         http://" + ipAddress + ":" + SERVER_PORT + "/upload/tus/\n" +
+           "S3 Multipart:                http://" + ipAddress + ":" + SERVER_PORT + "/upload/s3/<file name>\n" +
            "401 Forbidden:               http://" + ipAddress + ":" + SERVER_PORT + "/upload/forbidden\n"
 }
 
@@ -141,6 +145,376 @@ var binaryUploadHandler = function(req, res) {
     });
 };
 
+// SHA-256 of the SHA-256 hashes of the blocks of a file, which identifies its version
+function getBlockIndexHash(data, blockSize) {
+    var indexHash = crypto.createHash("sha256");
+
+    for (var offset = 0; offset < data.length; offset += blockSize) {
+        var block = data.slice(offset, Math.min(data.length, offset + blockSize));
+        indexHash.update(crypto.createHash("sha256").update(block).digest());
+    }
+
+    return indexHash.digest("hex");
+}
+
+// rebuilds a file from its previous version and the delta body sent by the client.
+// The body starts with a manifest: a line
+// "<block size> <base size> <file size> <block count> <base hash>",
+// then a line for each block: "K <index>" to keep a block of the previous version
+// or "D" to take the block from the data which follows the manifest.
+// Returns null if the previous version is not the one the client expects
+function applyDelta(body, basePath) {
+    var headerEnd = body.indexOf("\n");
+    var header = body.toString("ascii", 0, headerEnd).split(" ");
+    var blockSize = Number(header[0]), baseSize = Number(header[1]),
+        fileSize = Number(header[2]), blockCount = Number(header[3]), baseHash = header[4];
+
+    if (!fs.existsSync(basePath) || fs.statSync(basePath).size !== baseSize)
+        return null;
+
+    var base = fs.readFileSync(basePath);
+
+    if (getBlockIndexHash(base, blockSize) !== baseHash)
+        return null;
+    var lines = [];
+    var offset = headerEnd + 1;
+
+    for (var i = 0; i < blockCount; i++) {
+        var lineEnd = body.indexOf("\n", offset);
+        lines.push(body.toString("ascii", offset, lineEnd));
+        offset = lineEnd + 1;
+    }
+
+    var result = Buffer.alloc(fileSize);
+
+    lines.forEach(function (line, block) {
+        var length = Math.min(blockSize, fileSize - block * blockSize);
+
+        if (line.charAt(0) === "K") {
+            var baseBlock = parseInt(line.substring(2), 10);
+            base.copy(result, block * blockSize, baseBlock * blockSize, baseBlock * blockSize + length);
+        } else {
+            body.copy(result, block * blockSize, offset, offset + length);
+            offset += length;
+        }
+    });
+
+    return result;
+}
+
+var deltaUploadHandler = function(req, res) {
+    console.log("\n\nDelta Upload Request from: " + req.ip);
+    printRequestHeaders(req);
+
+    var filename = req.headers["file-name"];
+    var filepath = path.resolve(UPLOAD_PATH, filename);
+    var chunks = [];
+
+    req.on('data', function(chunk) {
+        chunks.push(chunk);
+    });
+
+    req.on('end', function() {
+        var body = Buffer.concat(chunks);
+
+        if (req.headers["upload-delta"]) {
+            body = applyDelta(body, filepath);
+
+            if (body === null) {
+                console.log("Missing or changed previous version of: " + filename);
+                res.sendStatus(409);
+                return;
+            }
+        }
+
+        fs.writeFileSync(filepath + ".tmp", body);
+        fs.renameSync(filepath + ".tmp", filepath);
+        console.log("Finished " + (req.headers["upload-delta"] ? "delta" : "full") +
+                    " upload of: " + filename + "\n  in: " + filepath);
+        res.sendStatus(200);
+    });
+};
+
+// minimal tus 1.0.0 server (core protocol and creation extension), which keeps the uploads
+// state in memory and the uploaded data in UPLOAD_PATH. PATCH requests can also be sent as
+// POST with the X-HTTP-Method-Override header, as done by the client with HttpURLConnection.
+// Add ?failAfter=<bytes> to the creation URL to drop the connection of the chunk which crosses
+// that offset once, to test resuming
+var TUS_VERSION = "1.0.0";
+var tusUploads = {};
+
+var tusHeaders = function(res) {
+    res.header("Tus-Resumable", TUS_VERSION);
+    res.header("Cache-Control", "no-store");
+};
+
+var tusCreateHandler = function(req, res) {
+    console.log("\n\ntus Create Request from: " + req.ip);
+    printRequestHeaders(req);
+    tusHeaders(res);
+
+    if (req.headers["tus-resumable"] !== TUS_VERSION) {
+        res.header("Tus-Version", TUS_VERSION);
+        res.sendStatus(412);
+        return;
+    }
+
+    var length = Number(req.headers["upload-length"]);
+
+    if (req.headers["upload-length"] === undefined || !(length >= 0) || Math.floor(length) !== length) {
+        res.sendStatus(400);
+        return;
+    }
+
+    var id = crypto.randomBytes(16).toString("hex");
+    var filename = id;
+
+    (req.headers["upload-metadata"] || "").split(",").forEach(function (pair) {
+        var parts = pair.trim().split(" ");
+        if (parts[0] === "filename" && parts[1]) {
+            filename = path.basename(Buffer.from(parts[1], "base64").toString("utf8"));
+        }
+    });
+
+    var filepath = path.resolve(UPLOAD_PATH, filename);
+    fs.writeFileSync(filepath, Buffer.alloc(0));
+
+    tusUploads[id] = {
+        length: length,
+        offset: 0,
+        path: filepath,
+        failAfter: req.query.failAfter === undefined ? -1 : Number(req.query.failAfter)
+    };
+
+    console.log("Created tus upload " + id + " of " + length + " bytes for: " + filepath);
+    res.header("Location", "/upload/tus/" + id);
+    res.sendStatus(201);
+};
+
+var tusHeadHandler = function(req, res) {
+    tusHeaders(res);
+    var upload = tusUploads[req.params.id];
+
+    if (!upload) {
+        res.sendStatus(404);
+        return;
+    }
+
+    console.log("tus upload " + req.params.id + " is at offset " + upload.offset);
+    res.header("Upload-Offset", String(upload.offset));
+    res.header("Upload-Length", String(upload.length));
+    res.sendStatus(200);
+};
+
+var tusPatchHandler = function(req, res) {
+    console.log("\n\ntus Patch Request from: " + req.ip);
+    printRequestHeaders(req);
+    tusHeaders(res);
+    var upload = tusUploads[req.params.id];
+
+    if (!upload) {
+        res.sendStatus(404);
+        return;
+    }
+
+    if (req.headers["content-type"] !== "application/offset+octet-stream") {
+        res.sendStatus(415);
+        return;
+    }
+
+    var offset = Number(req.headers["upload-offset"]);
+
+    if (offset !== upload.offset) {
+        console.log("Offset mismatch: client sent " + req.headers["upload-offset"]
+                    + ", server has " + upload.offset);
+        res.sendStatus(409);
+        return;
+    }
+
+    var fd = fs.openSync(upload.path, "r+");
+
+    var finish = function() {
+        fs.closeSync(fd);
+        fd = null;
+    };
+
+    req.on('data', function(chunk) {
+        if (fd === null)
+            return;
+
+        // never store more than the declared length
+        chunk = chunk.slice(0, Math.max(0, upload.length - upload.offset));
+
+        if (upload.failAfter >= 0 && upload.offset + chunk.length > upload.failAfter) {
+            chunk = chunk.slice(0, upload.failAfter - upload.offset);
+            fs.writeSync(fd, chunk, 0, chunk.length, upload.offset);
+            upload.offset += chunk.length;
+            upload.failAfter = -1;
+            finish();
+            console.log("Dropping connection of tus upload " + req.params.id + " at offset " + upload.offset);
+            req.socket.destroy();
+            return;
+        }
+
+        fs.writeSync(fd, chunk, 0, chunk.length, upload.offset);
+        upload.offset += chunk.length;
+    });
+
+    req.on('aborted', function() {
+        if (fd !== null) {
+            finish();
+        }
+        console.log("Interrupted tus upload " + req.params.id + " at offset " + upload.offset);
+    });
+
+    req.on('end', function() {
+        if (fd === null)
+            return;
+
+        finish();
+
+        if (upload.offset === upload.length) {
+            console.log("Finished tus upload " + req.params.id + "\n  in: " + upload.path);
+        }
+
+        res.header("Upload-Offset", String(upload.offset));
+        res.sendStatus(204);
+    });
+};
+
+// minimal S3 multipart upload stub: initiate, upload part, complete and abort, with unsigned
+// requests. Parts are kept in memory until the upload is completed or aborted.
+// Add ?failPart=<part number> to the object URL to respond once with 503 SlowDown to that part,
+// which the client retries, or ?refusePart=<part number> to always respond with 403 to it,
+// which makes the client abort the upload
+var s3Uploads = {};
+
+var s3Error = function(res, status, code, message) {
+    res.status(status);
+    res.header("Content-Type", "application/xml");
+    res.end("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>" + code +
+            "</Code><Message>" + message + "</Message></Error>");
+};
+
+var readBody = function(req, callback) {
+    var chunks = [];
+
+    req.on('data', function(chunk) {
+        chunks.push(chunk);
+    });
+
+    req.on('end', function() {
+        callback(Buffer.concat(chunks));
+    });
+};
+
+var s3PostHandler = function(req, res) {
+    console.log("\n\nS3 " + (req.query.uploadId ? "Complete" : "Initiate") + " Request from: " + req.ip);
+    printRequestHeaders(req);
+    var filepath = path.resolve(UPLOAD_PATH, path.basename(req.params.key));
+
+    if (req.query.uploads !== undefined) {
+        var uploadId = crypto.randomBytes(16).toString("hex");
+        s3Uploads[uploadId] = { key: req.params.key, parts: {}, failedParts: {} };
+        console.log("Initiated S3 multipart upload " + uploadId + " of: " + req.params.key);
+
+        res.header("Content-Type", "application/xml");
+        res.end("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<InitiateMultipartUploadResult>" +
+                "<Key>" + req.params.key + "</Key><UploadId>" + uploadId + "</UploadId>" +
+                "</InitiateMultipartUploadResult>");
+        return;
+    }
+
+    var upload = s3Uploads[req.query.uploadId];
+
+    if (!upload || upload.key !== req.params.key) {
+        s3Error(res, 404, "NoSuchUpload", "The specified upload does not exist");
+        return;
+    }
+
+    readBody(req, function(body) {
+        var xml = body.toString("utf8");
+        var partRegex = /<Part>\s*<PartNumber>(\d+)<\/PartNumber>\s*<ETag>([^<]*)<\/ETag>\s*<\/Part>/g;
+        var data = [];
+        var match;
+
+        while ((match = partRegex.exec(xml)) !== null) {
+            var part = upload.parts[match[1]];
+
+            if (!part || part.eTag !== match[2].replace(/&quot;/g, "\"")) {
+                s3Error(res, 400, "InvalidPart", "Part " + match[1] + " has not been uploaded or its ETag doesn't match");
+                return;
+            }
+
+            if (Number(match[1]) !== data.length + 1) {
+                s3Error(res, 400, "InvalidPartOrder", "The list of parts was not in ascending order");
+                return;
+            }
+
+            data.push(part.data);
+        }
+
+        if (data.length === 0) {
+            s3Error(res, 400, "MalformedXML", "The XML doesn't contain any part");
+            return;
+        }
+
+        fs.writeFileSync(filepath, Buffer.concat(data));
+        delete s3Uploads[req.query.uploadId];
+        console.log("Completed S3 multipart upload " + req.query.uploadId + " with " + data.length +
+                    " parts\n  in: " + filepath);
+
+        res.header("Content-Type", "application/xml");
+        res.end("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<CompleteMultipartUploadResult>" +
+                "<Key>" + req.params.key + "</Key><ETag>\"" + crypto.createHash("md5").update(xml).digest("hex") +
+                "-" + data.length + "\"</ETag></CompleteMultipartUploadResult>");
+    });
+};
+
+var s3PartHandler = function(req, res) {
+    var upload = s3Uploads[req.query.uploadId];
+    var partNumber = req.query.partNumber;
+
+    if (!upload || upload.key !== req.params.key) {
+        s3Error(res, 404, "NoSuchUpload", "The specified upload does not exist");
+        return;
+    }
+
+    if (partNumber === req.query.refusePart) {
+        console.log("Refusing part " + partNumber + " of S3 multipart upload " + req.query.uploadId);
+        s3Error(res, 403, "AccessDenied", "Access Denied");
+        return;
+    }
+
+    if (partNumber === req.query.failPart && !upload.failedParts[partNumber]) {
+        upload.failedParts[partNumber] = true;
+        console.log("Slowing down part " + partNumber + " of S3 multipart upload " + req.query.uploadId);
+        s3Error(res, 503, "SlowDown", "Please reduce your request rate.");
+        return;
+    }
+
+    readBody(req, function(body) {
+        var eTag = "\"" + crypto.createHash("md5").update(body).digest("hex") + "\"";
+        upload.parts[partNumber] = { eTag: eTag, data: body };
+        console.log("Received part " + partNumber + " (" + body.length + " bytes) of S3 multipart upload " +
+                    req.query.uploadId);
+
+        res.header("ETag", eTag);
+        res.sendStatus(200);
+    });
+};
+
+var s3AbortHandler = function(req, res) {
+    if (!s3Uploads[req.query.uploadId]) {
+        s3Error(res, 404, "NoSuchUpload", "The specified upload does not exist");
+        return;
+    }
+
+    delete s3Uploads[req.query.uploadId];
+    console.log("Aborted S3 multipart upload " + req.query.uploadId);
+    res.sendStatus(204);
+};
+
 // handle multipart uploads
 app.post('/upload/multipart', multipartReqInterceptor, multerFiles, multipartUploadHandler);
 app.post('/upload/multipart-ba', useBasicAuth, multipartReqInterceptor, multerFiles, multipartUploadHandler);
@@ -148,6 +522,32 @@ app.post('/upload/multipart-ba', useBasicAuth, multipartReqInterceptor, multerFi
 // handle binary uploads
 app.post('/upload/binary', binaryUploadHandler);
 app.post('/upload/binary-ba', useBasicAuth,binaryUploadHandler);
+app.post('/upload/delta', deltaUploadHandler);
+
+// handle S3 multipart uploads
+app.post('/upload/s3/:key', s3PostHandler);
+app.put('/upload/s3/:key', s3PartHandler);
+app.delete('/upload/s3/:key', s3AbortHandler);
+
+// handle tus uploads
+app.options('/upload/tus/', function(req, res) {
+    tusHeaders(res);
+    res.header("Tus-Version", TUS_VERSION);
+    res.header("Tus-Extension", "creation");
+    res.sendStatus(204);
+});
+app.post('/upload/tus/', tusCreateHandler);
+app.head('/upload/tus/:id', tusHeadHandler);
+app.patch('/upload/tus/:id', tusPatchHandler);
+app.post('/upload/tus/:id', function(req, res) {
+    if ((req.headers["x-http-method-override"] || "").toUpperCase() !== "PATCH") {
+        tusHeaders(res);
+        res.sendStatus(405);
+        return;
+    }
+
+    tusPatchHandler(req, res);
+});
 
 // endpoint which returns always 401 and a JSON response in the body
 app.post('/upload/forbidden', function(req, res) {
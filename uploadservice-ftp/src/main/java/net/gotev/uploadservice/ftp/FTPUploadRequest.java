@@ -5,6 +5,7 @@ import android.content.Intent;
 
 import net.gotev.uploadservice.UploadFile;
 import net.gotev.uploadservice.UploadRequest;
+import net.gotev.uploadservice.UploadService;
 import net.gotev.uploadservice.UploadServiceBroadcastReceiver;
 import net.gotev.uploadservice.UploadTask;
 
@@ -19,6 +20,15 @@ public class FTPUploadRequest extends UploadRequest<FTPUploadRequest> {
 
     protected final FTPUploadTaskParameters ftpParams = new FTPUploadTaskParameters();
 
+    static {
+        UploadService.registerTask(FTPUploadTask.class, new UploadTask.Creator() {
+            @Override
+            public UploadTask newInstance() {
+                return new FTPUploadTask();
+            }
+        });
+    }
+
     @Override
     protected Class<? extends UploadTask> getTaskClass() {
         return FTPUploadTask.class;
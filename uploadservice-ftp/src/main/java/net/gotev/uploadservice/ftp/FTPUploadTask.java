@@ -15,7 +15,6 @@ import org.apache.commons.net.ftp.FTPSClient;
 import org.apache.commons.net.io.CopyStreamEvent;
 import org.apache.commons.net.io.CopyStreamListener;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -118,6 +117,12 @@ public class FTPUploadTask extends UploadTask implements CopyStreamListener {
                 if (!shouldContinue)
                     break;
 
+                // skip files already uploaded in a previous attempt
+                if (getSuccessfullyUploadedFiles().contains(file.getPath())) {
+                    iterator.remove();
+                    continue;
+                }
+
                 uploadFile(baseWorkingDir, file);
                 addSuccessfullyUploadedFile(file);
                 iterator.remove();
@@ -152,15 +157,15 @@ public class FTPUploadTask extends UploadTask implements CopyStreamListener {
      */
     private void calculateUploadedAndTotalBytes() {
         uploadedBytes = 0;
-
-        for (String filePath : getSuccessfullyUploadedFiles()) {
-            uploadedBytes += new File(filePath).length();
-        }
-
-        totalBytes = uploadedBytes;
+        totalBytes = 0;
 
         for (UploadFile file : params.files) {
-            totalBytes += file.length(service);
+            long fileLength = file.length(service);
+            totalBytes += fileLength;
+
+            if (getSuccessfullyUploadedFiles().contains(file.getPath())) {
+                uploadedBytes += fileLength;
+            }
         }
     }
 
@@ -222,9 +227,18 @@ public class FTPUploadTask extends UploadTask implements CopyStreamListener {
 
     @Override
     public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+        reportTransferredBytes(bytesTransferred);
         uploadedBytes += bytesTransferred;
         broadcastProgress(uploadedBytes, totalBytes);
 
+        // the listener is invoked by the copy loop after each chunk, so waiting here
+        // limits the upload speed
+        try {
+            throttle(bytesTransferred);
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Interrupted while limiting upload speed", exc);
+        }
+
         if (!shouldContinue) {
             try {
                 ftpClient.disconnect();
@@ -3,6 +3,7 @@ package net.gotev.uploadservice.okhttp;
 import net.gotev.uploadservice.http.BodyWriter;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import okio.BufferedSink;
 
@@ -28,6 +29,19 @@ public class OkHttpBodyWriter extends BodyWriter {
         mSink.write(bytes, 0, lengthToWriteFromStart);
     }
 
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        // Okio bundled with OkHttp 3.9 can't read from byte buffers, so memory-mapped buffers
+        // are copied by the default implementation
+        if (!buffer.hasArray()) {
+            super.write(buffer);
+            return;
+        }
+
+        mSink.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+    }
+
     @Override
     public void flush() throws IOException {
         mSink.flush();
@@ -0,0 +1,173 @@
+package net.gotev.uploadservice.s3;
+
+import android.content.Context;
+import android.content.Intent;
+
+import net.gotev.uploadservice.HttpUploadRequest;
+import net.gotev.uploadservice.Logger;
+import net.gotev.uploadservice.UploadFile;
+import net.gotev.uploadservice.UploadService;
+import net.gotev.uploadservice.UploadServiceBroadcastReceiver;
+import net.gotev.uploadservice.UploadTask;
+
+import java.io.FileNotFoundException;
+import java.net.MalformedURLException;
+import java.util.List;
+
+/**
+ * Creates a new S3 compatible multipart upload request
+ * (https://docs.aws.amazon.com/AmazonS3/latest/dev/mpuoverview.html).
+ * The file is split in parts which are uploaded concurrently on multiple connections.
+ * If some parts fail, only those parts are uploaded again on the next attempt.
+ *
+ * @author Aleksandar Gotev
+ */
+public class S3MultipartUploadRequest extends HttpUploadRequest<S3MultipartUploadRequest> {
+
+    protected final S3MultipartUploadTaskParameters s3Params = new S3MultipartUploadTaskParameters();
+
+    static {
+        UploadService.registerTask(S3MultipartUploadTask.class, new UploadTask.Creator() {
+            @Override
+            public UploadTask newInstance() {
+                return new S3MultipartUploadTask();
+            }
+        });
+    }
+
+    /**
+     * Creates a new S3 multipart upload request.
+     *
+     * @param context application context
+     * @param uploadId unique ID to assign to this upload request.<br>
+     *                 It can be whatever string you want, as long as it's unique.
+     *                 If you set it to null or an empty string, an UUID will be automatically
+     *                 generated.<br> It's advised to keep a reference to it in your code,
+     *                 so when you receive status updates in {@link UploadServiceBroadcastReceiver},
+     *                 you know to which upload they refer to.
+     * @param objectUrl URL of the object to create.
+     *                  E.g.: https://mybucket.s3.amazonaws.com/path/to/object
+     * @throws IllegalArgumentException if one or more arguments are not valid
+     * @throws MalformedURLException if the object URL is not valid
+     */
+    public S3MultipartUploadRequest(final Context context, final String uploadId, final String objectUrl)
+            throws IllegalArgumentException, MalformedURLException {
+        super(context, uploadId, objectUrl);
+    }
+
+    /**
+     * Creates a new S3 multipart upload request and automatically generates an upload id, that
+     * will be returned when you call {@link S3MultipartUploadRequest#startUpload()}.
+     *
+     * @param context application context
+     * @param objectUrl URL of the object to create.
+     *                  E.g.: https://mybucket.s3.amazonaws.com/path/to/object
+     * @throws IllegalArgumentException if one or more arguments are not valid
+     * @throws MalformedURLException if the object URL is not valid
+     */
+    public S3MultipartUploadRequest(final Context context, final String objectUrl)
+            throws MalformedURLException, IllegalArgumentException {
+        this(context, null, objectUrl);
+    }
+
+    @Override
+    protected void initializeIntent(Intent intent) {
+        super.initializeIntent(intent);
+        intent.putExtra(S3MultipartUploadTaskParameters.PARAM_S3_TASK_PARAMETERS, s3Params);
+    }
+
+    @Override
+    protected Class<? extends UploadTask> getTaskClass() {
+        return S3MultipartUploadTask.class;
+    }
+
+    /**
+     * Sets the file to upload.
+     *
+     * @param path path to the file that you want to upload
+     * @throws FileNotFoundException if the file to upload does not exist
+     * @return {@link S3MultipartUploadRequest}
+     */
+    public S3MultipartUploadRequest setFileToUpload(String path) throws FileNotFoundException {
+        params.files.clear();
+        params.files.add(new UploadFile(path));
+        return this;
+    }
+
+    /**
+     * Sets the size of each part. All the parts will have this size, except the last one.
+     * The default value is defined in {@link S3MultipartUploadTaskParameters#DEFAULT_PART_SIZE}.
+     *
+     * @param bytes part size in bytes. It must be at least
+     *              {@link S3MultipartUploadTaskParameters#MIN_PART_SIZE}
+     * @return {@link S3MultipartUploadRequest}
+     */
+    public S3MultipartUploadRequest setPartSize(long bytes) {
+        if (bytes < S3MultipartUploadTaskParameters.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least "
+                    + S3MultipartUploadTaskParameters.MIN_PART_SIZE + " bytes!");
+        }
+
+        s3Params.partSize = bytes;
+        return this;
+    }
+
+    /**
+     * Sets how many parts to upload at the same time.
+     * The default value is defined in
+     * {@link S3MultipartUploadTaskParameters#DEFAULT_PARALLEL_UPLOADS}.
+     *
+     * @param parallelUploads number of concurrent connections
+     * @return {@link S3MultipartUploadRequest}
+     */
+    public S3MultipartUploadRequest setParallelUploads(int parallelUploads) {
+        if (parallelUploads < 1) {
+            throw new IllegalArgumentException("Set at least 1 parallel upload!");
+        }
+
+        s3Params.parallelUploads = parallelUploads;
+        return this;
+    }
+
+    /**
+     * Sets the content type of the object. If not set, it will be detected from the file.
+     *
+     * @param contentType content type
+     * @return {@link S3MultipartUploadRequest}
+     */
+    public S3MultipartUploadRequest setContentType(String contentType) {
+        s3Params.contentType = contentType;
+        return this;
+    }
+
+    @Override
+    public S3MultipartUploadRequest addParameter(String paramName, String paramValue) {
+        logDoesNotSupportParameters();
+        return this;
+    }
+
+    @Override
+    public S3MultipartUploadRequest addArrayParameter(String paramName, String... array) {
+        logDoesNotSupportParameters();
+        return this;
+    }
+
+    @Override
+    public S3MultipartUploadRequest addArrayParameter(String paramName, List<String> list) {
+        logDoesNotSupportParameters();
+        return this;
+    }
+
+    @Override
+    public String startUpload() {
+        if (params.files.isEmpty())
+            throw new IllegalArgumentException("Set the file to upload first!");
+
+        return super.startUpload();
+    }
+
+    private void logDoesNotSupportParameters() {
+        Logger.error(getClass().getSimpleName(),
+                     "This upload method does not support adding parameters");
+    }
+}
@@ -0,0 +1,477 @@
+package net.gotev.uploadservice.s3;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import net.gotev.uploadservice.HttpUploadTask;
+import net.gotev.uploadservice.Logger;
+import net.gotev.uploadservice.NameValue;
+import net.gotev.uploadservice.ServerResponse;
+import net.gotev.uploadservice.UploadFile;
+import net.gotev.uploadservice.UploadService;
+import net.gotev.uploadservice.http.BodyWriter;
+import net.gotev.uploadservice.http.HttpConnection;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements the S3 multipart upload protocol. The upload is initiated with a POST request,
+ * then the parts of the file are uploaded concurrently with PUT requests and finally the
+ * upload is completed by sending the list of the ETags of all the parts.
+ * Parts which has been uploaded successfully are kept across attempts, so when an attempt fails
+ * only the failed parts are uploaded again. The ID of the multipart upload and the ETags of the
+ * uploaded parts are saved in the upload journal, if enabled, so the upload continues also after
+ * the process has been killed.
+ *
+ * Requests are not signed. To use this with a server requiring authentication, either add the
+ * needed headers in the request, or subclass this task and override
+ * {@link S3MultipartUploadTask#getRequestHeaders(String, String)}.
+ *
+ * @author Aleksandar Gotev
+ */
+public class S3MultipartUploadTask extends HttpUploadTask {
+
+    private static final String LOG_TAG = S3MultipartUploadTask.class.getSimpleName();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String STATE_MULTIPART_UPLOAD_ID = "multipartUploadId";
+    private static final String STATE_PART_ETAGS = "partETags";
+    private static final String STATE_PART_SIZE = "partSize";
+    private static final String STATE_FILE_LENGTH = "fileLength";
+
+    protected S3MultipartUploadTaskParameters s3Params = null;
+
+    private String multipartUploadId;
+    private String[] partETags;
+    private long fileLength;
+    // part size and file length of the multipart upload restored from the journal
+    private long restoredPartSize;
+    private long restoredFileLength;
+    private byte[] requestBody;
+    private final AtomicLong transferredBytes = new AtomicLong(0);
+
+    // set when the server refuses a part with an error which can't be retried, to stop
+    // uploading the other ones
+    private volatile boolean partsCancelled = false;
+
+    @Override
+    protected void init(UploadService service, Intent intent) throws IOException {
+        super.init(service, intent);
+        this.s3Params = intent.getParcelableExtra(S3MultipartUploadTaskParameters.PARAM_S3_TASK_PARAMETERS);
+
+        if (s3Params.contentType == null || s3Params.contentType.isEmpty()) {
+            s3Params.contentType = params.files.get(0).getContentType(service);
+        }
+
+        if (httpParams.isCustomUserAgentDefined()) {
+            httpParams.addHeader("User-Agent", httpParams.customUserAgent);
+        } else {
+            httpParams.addHeader("User-Agent", "AndroidUploadService/0.1");
+        }
+    }
+
+    @Override
+    protected void upload() throws Exception {
+        Logger.debug(LOG_TAG, "Starting S3 multipart upload task with ID " + params.id);
+
+        getSuccessfullyUploadedFiles().clear();
+        fileLength = getBodyLength();
+        totalBytes = fileLength;
+
+        if (multipartUploadId != null && restoredPartSize > 0
+                && (restoredPartSize != s3Params.partSize || restoredFileLength != fileLength)) {
+            Logger.info(LOG_TAG, "File or part size changed since upload with ID: " + params.id
+                    + " has been journaled. Starting a new multipart upload");
+            abort();
+        }
+
+        restoredPartSize = 0;
+
+        if (multipartUploadId == null) {
+            if (!initiate())
+                return;
+        }
+
+        if (!uploadParts())
+            return;
+
+        if (!shouldContinue) {
+            abort();
+            return;
+        }
+
+        ServerResponse response = complete();
+
+        if (shouldContinue) {
+            uploadedBytes = fileLength;
+            broadcastCompleted(response);
+        }
+    }
+
+    /**
+     * Aborts the multipart upload on the server, so the already uploaded parts get deleted.
+     * A new multipart upload is initiated by the next attempt, if any.
+     */
+    private void abort() {
+        try {
+            execute("DELETE", withQuery(params.serverUrl, "uploadId=" + multipartUploadId), null);
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Error while aborting S3 multipart upload with ID: " + params.id, exc);
+        }
+
+        multipartUploadId = null;
+        partETags = null;
+        saveResumeState(null);
+    }
+
+    @Override
+    protected void onRestoreResumeState(Bundle state) {
+        String savedUploadId = state.getString(STATE_MULTIPART_UPLOAD_ID);
+        String[] savedPartETags = state.getStringArray(STATE_PART_ETAGS);
+
+        if (savedUploadId == null || savedPartETags == null)
+            return;
+
+        multipartUploadId = savedUploadId;
+        partETags = savedPartETags;
+        restoredPartSize = state.getLong(STATE_PART_SIZE);
+        restoredFileLength = state.getLong(STATE_FILE_LENGTH);
+    }
+
+    /**
+     * Saves the multipart upload ID and the ETags of the parts uploaded so far in the upload
+     * journal. Called from the part upload threads.
+     */
+    private synchronized void saveMultipartState() {
+        Bundle state = new Bundle();
+        state.putString(STATE_MULTIPART_UPLOAD_ID, multipartUploadId);
+        state.putStringArray(STATE_PART_ETAGS, partETags.clone());
+        state.putLong(STATE_PART_SIZE, s3Params.partSize);
+        state.putLong(STATE_FILE_LENGTH, fileLength);
+        saveResumeState(state);
+    }
+
+    /**
+     * Override this to add custom headers to each request made to the server, for example to
+     * sign the requests.
+     * @param method HTTP method of the request
+     * @param url URL of the request
+     * @return list of headers
+     */
+    protected List<NameValue> getRequestHeaders(String method, String url) {
+        return new ArrayList<>(httpParams.getRequestHeaders());
+    }
+
+    private boolean initiate() throws IOException {
+        List<NameValue> headers = getRequestHeaders("POST", params.serverUrl);
+        headers.add(NameValue.header("Content-Type", s3Params.contentType));
+
+        ServerResponse response = execute("POST", withQuery(params.serverUrl, "uploads"), headers);
+
+        if (response.getHttpCode() / 100 != 2) {
+            Logger.error(LOG_TAG, "Server responded with HTTP " + response.getHttpCode()
+                    + " while initiating upload with ID: " + params.id);
+            broadcastCompleted(response);
+            return false;
+        }
+
+        multipartUploadId = getXmlValue(response.getBodyAsString(), "UploadId");
+
+        if (multipartUploadId == null) {
+            throw new IOException("Missing UploadId in initiate response for upload with ID: " + params.id);
+        }
+
+        int parts = (int) Math.max(1, (fileLength + s3Params.partSize - 1) / s3Params.partSize);
+        partETags = new String[parts];
+        saveMultipartState();
+
+        Logger.debug(LOG_TAG, "Initiated S3 multipart upload " + multipartUploadId + " with "
+                + parts + " parts for upload with ID: " + params.id);
+        return true;
+    }
+
+    /**
+     * Uploads all the parts which has not been uploaded yet.
+     * @return true if all the parts has been uploaded, false if the server refused a part with a
+     * client error which can't be retried. In that case the multipart upload has been aborted
+     * and the server response has already been broadcasted.
+     * @throws Exception if one or more parts failed and can be uploaded again
+     */
+    private boolean uploadParts() throws Exception {
+        partsCancelled = false;
+        long completedBytes = 0;
+        List<Future<ServerResponse>> futures = new ArrayList<>(partETags.length);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(s3Params.parallelUploads, partETags.length));
+
+        try {
+            for (int i = 0; i < partETags.length; i++) {
+                if (partETags[i] != null) {
+                    completedBytes += getPartLength(i);
+                }
+            }
+
+            transferredBytes.set(completedBytes);
+
+            for (int i = 0; i < partETags.length; i++) {
+                if (partETags[i] == null) {
+                    futures.add(executor.submit(new PartUpload(i)));
+                }
+            }
+
+            executor.shutdown();
+
+            // merge the progress of all the parts while they're uploading
+            while (!executor.awaitTermination(UploadService.PROGRESS_REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (partsCancelled) {
+                    // the other parts would be deleted by the abort anyway
+                    executor.shutdownNow();
+                }
+
+                uploadedBytes = transferredBytes.get();
+                broadcastProgress(uploadedBytes, totalBytes);
+            }
+
+            uploadedBytes = transferredBytes.get();
+            broadcastProgress(uploadedBytes, totalBytes);
+
+            Exception failure = null;
+
+            for (Future<ServerResponse> future : futures) {
+                try {
+                    ServerResponse refused = future.get(0, TimeUnit.MILLISECONDS);
+
+                    if (refused != null) {
+                        abort();
+                        broadcastCompleted(refused);
+                        return false;
+                    }
+                } catch (ExecutionException exc) {
+                    failure = exc.getCause() instanceof Exception ? (Exception) exc.getCause() : exc;
+                } catch (TimeoutException exc) {
+                    failure = exc;
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            return true;
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ServerResponse complete() throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+
+        for (int i = 0; i < partETags.length; i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+               .append(partETags[i]).append("</ETag></Part>");
+        }
+
+        xml.append("</CompleteMultipartUpload>");
+
+        String url = withQuery(params.serverUrl, "uploadId=" + multipartUploadId);
+        List<NameValue> headers = getRequestHeaders("POST", url);
+        headers.add(NameValue.header("Content-Type", "application/xml"));
+
+        requestBody = xml.toString().getBytes(UTF8);
+        ServerResponse response = execute("POST", url, headers);
+        requestBody = null;
+
+        // S3 may respond with 200 and an error in the body
+        if (response.getHttpCode() / 100 == 2 && response.getBodyAsString().contains("<Error>")) {
+            throw new IOException("Error while completing S3 multipart upload with ID: " + params.id
+                    + ": " + response.getBodyAsString());
+        }
+
+        return response;
+    }
+
+    private ServerResponse execute(String method, String url, List<NameValue> headers)
+            throws IOException {
+        if (headers == null) {
+            headers = getRequestHeaders(method, url);
+        }
+
+        long bodyLength = requestBody == null ? 0 : requestBody.length;
+        HttpConnection connection = null;
+
+        try {
+            connection = UploadService.HTTP_STACK
+                    .createNewConnection(method, url)
+                    .setHeaders(headers)
+                    .setTotalBodyBytes(bodyLength, true);
+
+            return connection.getResponse(this);
+
+        } finally {
+            if (connection != null)
+                connection.close();
+        }
+    }
+
+    private long getPartLength(int partIndex) {
+        long start = partIndex * s3Params.partSize;
+        return Math.min(s3Params.partSize, fileLength - start);
+    }
+
+    /**
+     * Checks if a request which got the given response code can be retried. S3 responds with
+     * 5xx (e.g. 503 SlowDown), 408 and 429 to requests which may succeed if sent again.
+     * @param httpCode HTTP response code
+     * @return true if the request can be retried
+     */
+    private static boolean isRetryable(int httpCode) {
+        return httpCode / 100 == 5 || httpCode == 408 || httpCode == 429;
+    }
+
+    private static String withQuery(String url, String query) {
+        return url + (url.contains("?") ? "&" : "?") + query;
+    }
+
+    private static String getXmlValue(String xml, String tag) {
+        int start = xml.indexOf("<" + tag + ">");
+        int end = xml.indexOf("</" + tag + ">");
+
+        if (start < 0 || end < 0)
+            return null;
+
+        return xml.substring(start + tag.length() + 2, end).trim();
+    }
+
+    private static String getHeader(ServerResponse response, String name) {
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected long getBodyLength() throws UnsupportedEncodingException {
+        return params.files.get(0).length(service);
+    }
+
+    @Override
+    public void onBodyReady(BodyWriter bodyWriter) throws IOException {
+        if (requestBody != null) {
+            bodyWriter.write(requestBody);
+        }
+    }
+
+    @Override
+    protected void onSuccessfulUpload() {
+        addSuccessfullyUploadedFile(params.files.get(0));
+    }
+
+    /**
+     * Uploads a single part.
+     */
+    private class PartUpload implements Callable<ServerResponse>,
+            HttpConnection.RequestBodyDelegate, BodyWriter.OnStreamWriteListener {
+
+        private final int partIndex;
+        private long partTransferredBytes = 0;
+
+        PartUpload(int partIndex) {
+            this.partIndex = partIndex;
+        }
+
+        /**
+         * Uploads the part.
+         * @return null if the part has been uploaded successfully, otherwise the server response
+         * @throws Exception if an error occurs while uploading the part
+         */
+        @Override
+        public ServerResponse call() throws Exception {
+            String url = withQuery(params.serverUrl,
+                    "partNumber=" + (partIndex + 1) + "&uploadId=" + multipartUploadId);
+
+            HttpConnection connection = null;
+
+            try {
+                connection = UploadService.HTTP_STACK
+                        .createNewConnection("PUT", url)
+                        .setHeaders(getRequestHeaders("PUT", url))
+                        .setTotalBodyBytes(getPartLength(partIndex), true);
+
+                ServerResponse response = connection.getResponse(this);
+
+                if (!shouldContinue)
+                    return null;
+
+                if (isRetryable(response.getHttpCode())) {
+                    // only this part gets uploaded again by the next attempt
+                    throw new IOException("Server responded with HTTP " + response.getHttpCode()
+                            + " to part " + (partIndex + 1) + " of upload with ID: " + params.id);
+                }
+
+                if (response.getHttpCode() / 100 != 2) {
+                    Logger.error(LOG_TAG, "Server responded with HTTP " + response.getHttpCode()
+                            + " to part " + (partIndex + 1) + " of upload with ID: " + params.id);
+                    transferredBytes.addAndGet(-partTransferredBytes);
+                    partsCancelled = true;
+                    return response;
+                }
+
+                String eTag = getHeader(response, "ETag");
+                if (eTag == null) {
+                    throw new IOException("Missing ETag for part " + (partIndex + 1)
+                            + " of upload with ID: " + params.id);
+                }
+
+                partETags[partIndex] = eTag;
+                saveMultipartState();
+                return null;
+
+            } catch (Exception exc) {
+                transferredBytes.addAndGet(-partTransferredBytes);
+                throw exc;
+
+            } finally {
+                if (connection != null)
+                    connection.close();
+            }
+        }
+
+        @Override
+        public void onBodyReady(BodyWriter bodyWriter) throws IOException {
+            // the part is relative to the range of the file, if it has one
+            UploadFile part = params.files.get(0).getPart(
+                    (long) partIndex * s3Params.partSize, getPartLength(partIndex), service);
+            bodyWriter.writeFile(part, service, this, getBandwidthLimiter());
+        }
+
+        @Override
+        public boolean shouldContinueWriting() {
+            return shouldContinue && !partsCancelled;
+        }
+
+        @Override
+        public void onBytesWritten(int bytesWritten) {
+            reportTransferredBytes(bytesWritten);
+            partTransferredBytes += bytesWritten;
+            transferredBytes.addAndGet(bytesWritten);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.gotev.uploadservice.s3;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * S3 multipart upload parameters.
+ * @author Aleksandar Gotev
+ */
+public class S3MultipartUploadTaskParameters implements Parcelable {
+
+    protected static final String PARAM_S3_TASK_PARAMETERS = "s3TaskParameters";
+
+    /**
+     * The minimum part size accepted by S3 for all the parts except the last one.
+     */
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The default part size in bytes.
+     */
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The default number of parts uploaded at the same time.
+     */
+    public static final int DEFAULT_PARALLEL_UPLOADS = 4;
+
+    public long partSize = DEFAULT_PART_SIZE;
+    public int parallelUploads = DEFAULT_PARALLEL_UPLOADS;
+    public String contentType;
+
+    public S3MultipartUploadTaskParameters() {
+
+    }
+
+    // This is used to regenerate the object.
+    // All Parcelables must have a CREATOR that implements these two methods
+    public static final Creator<S3MultipartUploadTaskParameters> CREATOR =
+            new Creator<S3MultipartUploadTaskParameters>() {
+                @Override
+                public S3MultipartUploadTaskParameters createFromParcel(final Parcel in) {
+                    return new S3MultipartUploadTaskParameters(in);
+                }
+
+                @Override
+                public S3MultipartUploadTaskParameters[] newArray(final int size) {
+                    return new S3MultipartUploadTaskParameters[size];
+                }
+            };
+
+    @Override
+    public void writeToParcel(Parcel parcel, int arg1) {
+        parcel.writeLong(partSize);
+        parcel.writeInt(parallelUploads);
+        parcel.writeString(contentType);
+    }
+
+    private S3MultipartUploadTaskParameters(Parcel in) {
+        partSize = in.readLong();
+        parallelUploads = in.readInt();
+        contentType = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
@@ -0,0 +1,133 @@
+package net.gotev.uploadservice.tus;
+
+import android.content.Context;
+import android.content.Intent;
+
+import net.gotev.uploadservice.HttpUploadRequest;
+import net.gotev.uploadservice.UploadFile;
+import net.gotev.uploadservice.UploadService;
+import net.gotev.uploadservice.UploadServiceBroadcastReceiver;
+import net.gotev.uploadservice.UploadTask;
+
+import java.io.FileNotFoundException;
+import java.net.MalformedURLException;
+
+/**
+ * Creates a new tus resumable upload request (https://tus.io/protocols/resumable-upload.html).
+ * The file is uploaded in chunks and if the upload gets interrupted, the next attempt will
+ * continue from the last byte confirmed by the server, instead of starting from scratch.
+ * The request parameters are sent to the server as {@code Upload-Metadata}.
+ *
+ * @author Aleksandar Gotev
+ */
+public class TusUploadRequest extends HttpUploadRequest<TusUploadRequest> {
+
+    protected final TusUploadTaskParameters tusParams = new TusUploadTaskParameters();
+
+    static {
+        UploadService.registerTask(TusUploadTask.class, new UploadTask.Creator() {
+            @Override
+            public UploadTask newInstance() {
+                return new TusUploadTask();
+            }
+        });
+    }
+
+    /**
+     * Creates a new tus upload request.
+     *
+     * @param context application context
+     * @param uploadId unique ID to assign to this upload request.<br>
+     *                 It can be whatever string you want, as long as it's unique.
+     *                 If you set it to null or an empty string, an UUID will be automatically
+     *                 generated.<br> It's advised to keep a reference to it in your code,
+     *                 so when you receive status updates in {@link UploadServiceBroadcastReceiver},
+     *                 you know to which upload they refer to.
+     * @param serverUrl URL of the tus server endpoint which creates new uploads.
+     *                  E.g.: http://www.yourcompany.com/files/
+     * @throws IllegalArgumentException if one or more arguments are not valid
+     * @throws MalformedURLException if the server URL is not valid
+     */
+    public TusUploadRequest(final Context context, final String uploadId, final String serverUrl)
+            throws IllegalArgumentException, MalformedURLException {
+        super(context, uploadId, serverUrl);
+    }
+
+    /**
+     * Creates a new tus upload request and automatically generates an upload id, that will
+     * be returned when you call {@link TusUploadRequest#startUpload()}.
+     *
+     * @param context application context
+     * @param serverUrl URL of the tus server endpoint which creates new uploads.
+     *                  E.g.: http://www.yourcompany.com/files/
+     * @throws IllegalArgumentException if one or more arguments are not valid
+     * @throws MalformedURLException if the server URL is not valid
+     */
+    public TusUploadRequest(final Context context, final String serverUrl)
+            throws MalformedURLException, IllegalArgumentException {
+        this(context, null, serverUrl);
+    }
+
+    @Override
+    protected void initializeIntent(Intent intent) {
+        super.initializeIntent(intent);
+        intent.putExtra(TusUploadTaskParameters.PARAM_TUS_TASK_PARAMETERS, tusParams);
+    }
+
+    @Override
+    protected Class<? extends UploadTask> getTaskClass() {
+        return TusUploadTask.class;
+    }
+
+    /**
+     * Sets the file to upload.
+     *
+     * @param path path to the file that you want to upload
+     * @throws FileNotFoundException if the file to upload does not exist
+     * @return {@link TusUploadRequest}
+     */
+    public TusUploadRequest setFileToUpload(String path) throws FileNotFoundException {
+        params.files.clear();
+        params.files.add(new UploadFile(path));
+        return this;
+    }
+
+    /**
+     * Sets the maximum size of the data sent to the server with each PATCH request.
+     * Smaller chunks lose less data when the connection drops, bigger chunks have less
+     * per-request overhead.
+     * The default value is defined in {@link TusUploadTaskParameters#DEFAULT_CHUNK_SIZE}.
+     *
+     * @param bytes chunk size in bytes
+     * @return {@link TusUploadRequest}
+     */
+    public TusUploadRequest setChunkSize(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than zero!");
+        }
+
+        tusParams.chunkSize = bytes;
+        return this;
+    }
+
+    /**
+     * Resumes an upload which has been already created on the tus server, for example by a
+     * previous request which did not complete. If the server does not know the upload anymore,
+     * a new one will be created.
+     *
+     * @param uploadUrl URL of the upload, as returned by the server in the Location header
+     * @return {@link TusUploadRequest}
+     */
+    public TusUploadRequest setUploadUrl(String uploadUrl) {
+        tusParams.uploadUrl = uploadUrl;
+        return this;
+    }
+
+    @Override
+    public String startUpload() {
+        if (params.files.isEmpty())
+            throw new IllegalArgumentException("Set the file to upload first!");
+
+        return super.startUpload();
+    }
+}
@@ -0,0 +1,393 @@
+package net.gotev.uploadservice.tus;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Base64;
+
+import net.gotev.uploadservice.HttpUploadTask;
+import net.gotev.uploadservice.Logger;
+import net.gotev.uploadservice.NameValue;
+import net.gotev.uploadservice.ServerResponse;
+import net.gotev.uploadservice.UploadFile;
+import net.gotev.uploadservice.UploadService;
+import net.gotev.uploadservice.http.BodyWriter;
+import net.gotev.uploadservice.http.HttpConnection;
+import net.gotev.uploadservice.http.impl.HurlStack;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implements the tus resumable upload protocol (https://tus.io/protocols/resumable-upload.html).
+ * The upload is created with a POST request, then the offset already stored on the server is
+ * requested with HEAD and the remaining data is sent in chunks with PATCH requests. Every retry
+ * continues from the offset confirmed by the server. The URL of the upload is saved in the
+ * upload journal, if enabled, so the upload continues also after the process has been killed.
+ *
+ * @author Aleksandar Gotev
+ */
+public class TusUploadTask extends HttpUploadTask {
+
+    private static final String LOG_TAG = TusUploadTask.class.getSimpleName();
+
+    private static final String TUS_VERSION = "1.0.0";
+    private static final String HEADER_TUS_RESUMABLE = "Tus-Resumable";
+    private static final String HEADER_UPLOAD_LENGTH = "Upload-Length";
+    private static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+    private static final String HEADER_UPLOAD_METADATA = "Upload-Metadata";
+    private static final String HEADER_METHOD_OVERRIDE = "X-HTTP-Method-Override";
+    private static final String HEADER_LOCATION = "Location";
+    private static final String OFFSET_CONTENT_TYPE = "application/offset+octet-stream";
+    private static final String STATE_UPLOAD_URL = "uploadUrl";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected TusUploadTaskParameters tusParams = null;
+
+    private String uploadUrl;
+    private long fileLength;
+    private long chunkStart;
+    private long chunkLength;
+
+    @Override
+    protected void init(UploadService service, Intent intent) throws IOException {
+        super.init(service, intent);
+        this.tusParams = intent.getParcelableExtra(TusUploadTaskParameters.PARAM_TUS_TASK_PARAMETERS);
+        uploadUrl = tusParams.uploadUrl;
+
+        if (httpParams.isCustomUserAgentDefined()) {
+            httpParams.addHeader("User-Agent", httpParams.customUserAgent);
+        } else {
+            httpParams.addHeader("User-Agent", "AndroidUploadService/0.1");
+        }
+    }
+
+    @Override
+    protected void onRestoreResumeState(Bundle state) {
+        String savedUploadUrl = state.getString(STATE_UPLOAD_URL);
+
+        if (savedUploadUrl != null) {
+            uploadUrl = savedUploadUrl;
+        }
+    }
+
+    @Override
+    protected void upload() throws Exception {
+        Logger.debug(LOG_TAG, "Starting tus upload task with ID " + params.id);
+
+        getSuccessfullyUploadedFiles().clear();
+        fileLength = getBodyLength();
+        totalBytes = fileLength;
+
+        long offset = uploadUrl == null ? -1 : getServerOffset();
+
+        if (offset < 0) {
+            if (!createUpload())
+                return;
+
+            offset = 0;
+        }
+
+        ServerResponse response = null;
+
+        while (shouldContinue && (offset < fileLength || response == null)) {
+            response = sendChunk(offset);
+
+            if (response == null)
+                return;
+
+            long newOffset = getOffset(response);
+
+            if (newOffset < 0) {
+                throw new IOException("Missing or invalid " + HEADER_UPLOAD_OFFSET
+                        + " in response for upload with ID: " + params.id);
+            }
+
+            // a server which doesn't advance the offset would make the upload loop forever.
+            // Only an empty file can be completed by a chunk which doesn't advance it
+            if ((newOffset <= offset && offset < fileLength) || newOffset > fileLength) {
+                throw new IOException("Invalid " + HEADER_UPLOAD_OFFSET + " " + newOffset
+                        + " after sending from byte " + offset + " of " + fileLength
+                        + " for upload with ID: " + params.id);
+            }
+
+            offset = newOffset;
+        }
+
+        if (shouldContinue) {
+            uploadedBytes = fileLength;
+            broadcastCompleted(response);
+        }
+    }
+
+    /**
+     * Creates a new upload on the tus server and saves its URL.
+     * @return true if the upload has been created, false if the server refused it. In that case
+     * the server response has already been broadcasted.
+     * @throws IOException if an error occurs while communicating with the server
+     */
+    private boolean createUpload() throws IOException {
+        List<NameValue> headers = getTusHeaders();
+        headers.add(NameValue.header(HEADER_UPLOAD_LENGTH, Long.toString(fileLength)));
+
+        String metadata = getUploadMetadata();
+        if (!metadata.isEmpty()) {
+            headers.add(NameValue.header(HEADER_UPLOAD_METADATA, metadata));
+        }
+
+        ServerResponse response = execute("POST", params.serverUrl, headers, 0, null);
+
+        if (response.getHttpCode() != 201) {
+            Logger.error(LOG_TAG, "tus server responded with HTTP " + response.getHttpCode()
+                    + " while creating upload with ID: " + params.id);
+            broadcastCompleted(response);
+            return false;
+        }
+
+        String location = getHeader(response, HEADER_LOCATION);
+        if (location == null) {
+            throw new IOException("tus server did not return the upload location for upload with ID: "
+                    + params.id);
+        }
+
+        uploadUrl = new URL(new URL(params.serverUrl), location).toString();
+
+        Bundle state = new Bundle();
+        state.putString(STATE_UPLOAD_URL, uploadUrl);
+        saveResumeState(state);
+
+        Logger.debug(LOG_TAG, "Created tus upload " + uploadUrl + " for upload with ID: " + params.id);
+        return true;
+    }
+
+    /**
+     * Gets the number of bytes already stored on the server.
+     * @return offset or -1 if the server does not know the upload anymore
+     * @throws IOException if an error occurs while communicating with the server
+     */
+    private long getServerOffset() throws IOException {
+        ServerResponse response = execute("HEAD", uploadUrl, getTusHeaders(), 0, null);
+        int code = response.getHttpCode();
+
+        if (code == 404 || code == 410 || code == 403) {
+            Logger.info(LOG_TAG, "tus upload " + uploadUrl + " is gone. Creating a new one");
+            uploadUrl = null;
+            return -1;
+        }
+
+        if (code / 100 != 2) {
+            throw new IOException("tus server responded with HTTP " + code
+                    + " while getting the offset of upload with ID: " + params.id);
+        }
+
+        long offset = getOffset(response);
+
+        if (offset < 0 || offset > fileLength) {
+            throw new IOException("Missing or invalid " + HEADER_UPLOAD_OFFSET
+                    + " in HEAD response for upload with ID: " + params.id);
+        }
+
+        Logger.debug(LOG_TAG, "Resuming upload with ID: " + params.id + " from byte " + offset);
+        return offset;
+    }
+
+    /**
+     * Sends a chunk of the file, starting from the given offset.
+     * @param offset offset from which to start
+     * @return server response, or null if the server refused the chunk. In that case the server
+     * response has already been broadcasted.
+     * @throws IOException if an error occurs while communicating with the server
+     */
+    private ServerResponse sendChunk(long offset) throws IOException {
+        chunkStart = offset;
+        chunkLength = Math.min(tusParams.chunkSize, fileLength - offset);
+        uploadedBytes = offset;
+
+        List<NameValue> headers = getTusHeaders();
+        headers.add(NameValue.header(HEADER_UPLOAD_OFFSET, Long.toString(offset)));
+        headers.add(NameValue.header("Content-Type", OFFSET_CONTENT_TYPE));
+
+        ServerResponse response = execute("PATCH", uploadUrl, headers, chunkLength, this);
+        int code = response.getHttpCode();
+
+        if (code == 409) {
+            // offset mismatch: throwing makes the next attempt ask the current offset again
+            throw new IOException("tus server reported an offset conflict for upload with ID: "
+                    + params.id);
+        }
+
+        if (code / 100 != 2) {
+            Logger.error(LOG_TAG, "tus server responded with HTTP " + code
+                    + " to a chunk of upload with ID: " + params.id);
+            broadcastCompleted(response);
+            return null;
+        }
+
+        return response;
+    }
+
+    private ServerResponse execute(String method, String url, List<NameValue> headers,
+                                   long bodyLength, HttpConnection.RequestBodyDelegate delegate)
+            throws IOException {
+
+        // HttpURLConnection does not support PATCH
+        if ("PATCH".equals(method) && UploadService.HTTP_STACK instanceof HurlStack) {
+            headers.add(NameValue.header(HEADER_METHOD_OVERRIDE, method));
+            method = "POST";
+        }
+
+        HttpConnection connection = null;
+
+        try {
+            connection = UploadService.HTTP_STACK
+                    .createNewConnection(method, url)
+                    .setHeaders(headers)
+                    .setTotalBodyBytes(bodyLength, true);
+
+            return connection.getResponse(delegate != null ? delegate : EMPTY_BODY);
+
+        } finally {
+            if (connection != null)
+                connection.close();
+        }
+    }
+
+    private List<NameValue> getTusHeaders() {
+        List<NameValue> headers = new ArrayList<>(httpParams.getRequestHeaders().size() + 4);
+        headers.addAll(httpParams.getRequestHeaders());
+        headers.add(NameValue.header(HEADER_TUS_RESUMABLE, TUS_VERSION));
+        return headers;
+    }
+
+    private String getUploadMetadata() {
+        StringBuilder metadata = new StringBuilder();
+
+        appendMetadata(metadata, "filename", params.files.get(0).getName(service));
+
+        for (NameValue parameter : httpParams.getRequestParameters()) {
+            appendMetadata(metadata, parameter.getName(), parameter.getValue());
+        }
+
+        return metadata.toString();
+    }
+
+    private static void appendMetadata(StringBuilder metadata, String key, String value) {
+        if (key == null || key.isEmpty() || value == null)
+            return;
+
+        if (metadata.length() > 0) {
+            metadata.append(',');
+        }
+
+        metadata.append(key).append(' ')
+                .append(Base64.encodeToString(value.getBytes(UTF8), Base64.NO_WRAP));
+    }
+
+    private static long getOffset(ServerResponse response) {
+        String value = getHeader(response, HEADER_UPLOAD_OFFSET);
+
+        if (value == null)
+            return -1;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException exc) {
+            return -1;
+        }
+    }
+
+    private static String getHeader(ServerResponse response, String name) {
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected long getBodyLength() throws UnsupportedEncodingException {
+        return params.files.get(0).length(service);
+    }
+
+    @Override
+    public void onBodyReady(BodyWriter bodyWriter) throws IOException {
+        bodyWriter.writeStream(new ChunkInputStream(params.files.get(0), chunkStart, chunkLength), this,
+                getBandwidthLimiter());
+    }
+
+    @Override
+    protected void onSuccessfulUpload() {
+        addSuccessfullyUploadedFile(params.files.get(0));
+    }
+
+    private static final HttpConnection.RequestBodyDelegate EMPTY_BODY =
+            new HttpConnection.RequestBodyDelegate() {
+                @Override
+                public void onBodyReady(BodyWriter bodyWriter) throws IOException {
+                }
+            };
+
+    /**
+     * Reads a portion of an {@link UploadFile}.
+     */
+    private class ChunkInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        ChunkInputStream(UploadFile file, long start, long length) throws IOException {
+            // seeks to the start of the chunk in constant time, when the file supports it
+            super(file.getStream(service, start));
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int result = in.read();
+            if (result >= 0) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int bytesRead = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (bytesRead > 0) {
+                remaining -= bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.gotev.uploadservice.tus;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * tus resumable upload parameters.
+ * @author Aleksandar Gotev
+ */
+public class TusUploadTaskParameters implements Parcelable {
+
+    protected static final String PARAM_TUS_TASK_PARAMETERS = "tusTaskParameters";
+
+    /**
+     * The default size in bytes of the data sent in each PATCH request.
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * Maximum size in bytes of the data sent in each PATCH request.
+     */
+    public long chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * URL of an upload already created on the tus server. If null, a new upload will be
+     * created by the task.
+     */
+    public String uploadUrl;
+
+    public TusUploadTaskParameters() {
+
+    }
+
+    // This is used to regenerate the object.
+    // All Parcelables must have a CREATOR that implements these two methods
+    public static final Creator<TusUploadTaskParameters> CREATOR =
+            new Creator<TusUploadTaskParameters>() {
+                @Override
+                public TusUploadTaskParameters createFromParcel(final Parcel in) {
+                    return new TusUploadTaskParameters(in);
+                }
+
+                @Override
+                public TusUploadTaskParameters[] newArray(final int size) {
+                    return new TusUploadTaskParameters[size];
+                }
+            };
+
+    @Override
+    public void writeToParcel(Parcel parcel, int arg1) {
+        parcel.writeLong(chunkSize);
+        parcel.writeString(uploadUrl);
+    }
+
+    private TusUploadTaskParameters(Parcel in) {
+        chunkSize = in.readLong();
+        uploadUrl = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
@@ -0,0 +1,186 @@
+package net.gotev.uploadservice;
+
+import android.os.Handler;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resizes the upload thread pool by measuring the aggregate upload throughput, with an
+ * additive increase / multiplicative decrease strategy:
+ * <ul>
+ *     <li>while there are uploads waiting, one more thread is added to probe if it raises the
+ *     throughput. More threads are added, one at each sample interval, only while each
+ *     added thread raised the throughput</li>
+ *     <li>if the throughput did not rise after adding a thread, that thread is removed and the
+ *     pool size is held for a cool-down period, which doubles after each consecutive probe
+ *     which did not help, so the pool settles instead of growing and shrinking at each sample</li>
+ *     <li>if some uploads failed during the sample interval, the pool size is halved and held
+ *     for the cool-down period</li>
+ * </ul>
+ * The pool never gets smaller than {@link UploadService#UPLOAD_POOL_SIZE} and never gets bigger
+ * than {@link UploadService#MAX_UPLOAD_POOL_SIZE}, or than {@link UploadService#UPLOAD_POOL_SIZE}
+ * if it's bigger.
+ * Pool size changes are applied live: when shrinking, running uploads are not interrupted and the
+ * excess threads terminate as soon as their current upload is completed.
+ *
+ * @author Aleksandar Gotev
+ */
+final class AdaptiveConcurrencyController implements Runnable {
+
+    private static final String LOG_TAG = AdaptiveConcurrencyController.class.getSimpleName();
+
+    /**
+     * Minimum relative throughput increase to consider the throughput as rising.
+     */
+    private static final double MIN_THROUGHPUT_GAIN = 0.1;
+
+    /**
+     * Number of sample intervals during which the pool size is held after a probe which did not
+     * raise the throughput or after errors, and maximum it can grow to.
+     */
+    private static final int MIN_COOL_DOWN_SAMPLES = 2;
+    private static final int MAX_COOL_DOWN_SAMPLES = 32;
+
+    private final ThreadPoolExecutor threadPool;
+    private final Handler handler;
+    private final AtomicLong transferredBytes = new AtomicLong(0);
+    private final AtomicInteger errors = new AtomicInteger(0);
+
+    private long lastSampleTime;
+    private double baselineThroughput = 0;
+    private boolean lastStepWasIncrease = false;
+    private int coolDownSamples = MIN_COOL_DOWN_SAMPLES;
+    private int remainingCoolDownSamples = 0;
+    private boolean stopped = false;
+
+    // pool size bounds, set when started
+    private int minPoolSize = 1;
+    private int maxPoolSize = 1;
+
+    AdaptiveConcurrencyController(ThreadPoolExecutor threadPool, Handler handler) {
+        this.threadPool = threadPool;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts sampling the throughput.
+     */
+    void start() {
+        minPoolSize = Math.max(1, threadPool.getCorePoolSize());
+        maxPoolSize = Math.max(minPoolSize, UploadService.MAX_UPLOAD_POOL_SIZE);
+        lastSampleTime = System.currentTimeMillis();
+        handler.postDelayed(this, UploadService.ADAPTIVE_POOL_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Stops sampling the throughput. The current pool size is kept.
+     */
+    void stop() {
+        stopped = true;
+        handler.removeCallbacks(this);
+    }
+
+    /**
+     * Called by the upload tasks each time some bytes have been transferred.
+     * @param bytes number of transferred bytes
+     */
+    void onBytesTransferred(int bytes) {
+        transferredBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called by the upload tasks each time an upload attempt fails.
+     */
+    void onError() {
+        errors.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        if (stopped)
+            return;
+
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1, now - lastSampleTime);
+        lastSampleTime = now;
+
+        double throughput = transferredBytes.getAndSet(0) * 1000.0 / elapsed;
+        int failures = errors.getAndSet(0);
+        int poolSize = threadPool.getCorePoolSize();
+
+        boolean uploadsWaiting = !threadPool.getQueue().isEmpty();
+
+        if (failures > 0) {
+            resize(poolSize / 2, throughput, "errors: " + failures);
+            lastStepWasIncrease = false;
+            remainingCoolDownSamples = coolDownSamples;
+
+        } else if (throughput == 0) {
+            // nothing is being uploaded, start over when the uploads will resume
+            baselineThroughput = 0;
+            lastStepWasIncrease = false;
+
+        } else if (lastStepWasIncrease) {
+            if (throughput < baselineThroughput * (1 + MIN_THROUGHPUT_GAIN)) {
+                // the last added thread did not help. Wait longer before the next probe
+                resize(poolSize - 1, throughput, "throughput is flat");
+                lastStepWasIncrease = false;
+                remainingCoolDownSamples = coolDownSamples;
+                coolDownSamples = Math.min(MAX_COOL_DOWN_SAMPLES, coolDownSamples * 2);
+
+            } else if (uploadsWaiting && poolSize < maxPoolSize) {
+                resize(poolSize + 1, throughput, "throughput is rising");
+                coolDownSamples = MIN_COOL_DOWN_SAMPLES;
+
+            } else {
+                baselineThroughput = throughput;
+                lastStepWasIncrease = false;
+                coolDownSamples = MIN_COOL_DOWN_SAMPLES;
+            }
+
+        } else if (remainingCoolDownSamples > 0) {
+            remainingCoolDownSamples--;
+            baselineThroughput = throughput;
+
+        } else if (uploadsWaiting && poolSize < maxPoolSize) {
+            // probe if one more thread raises the throughput
+            resize(poolSize + 1, throughput, "uploads waiting");
+            lastStepWasIncrease = true;
+
+        } else {
+            baselineThroughput = throughput;
+        }
+
+        handler.postDelayed(this, UploadService.ADAPTIVE_POOL_SAMPLE_INTERVAL);
+    }
+
+    private void resize(int newPoolSize, double throughput, String reason) {
+        baselineThroughput = throughput;
+        newPoolSize = clamp(newPoolSize);
+
+        if (newPoolSize == threadPool.getCorePoolSize())
+            return;
+
+        Logger.debug(LOG_TAG, "Resizing upload pool from " + threadPool.getCorePoolSize() + " to "
+                + newPoolSize + " threads (" + reason + ", " + (long) throughput + " bytes/s)");
+
+        setPoolSize(newPoolSize);
+    }
+
+    private void setPoolSize(int poolSize) {
+        // the maximum pool size must never be lower than the core pool size
+        if (poolSize > threadPool.getMaximumPoolSize()) {
+            threadPool.setMaximumPoolSize(poolSize);
+            threadPool.setCorePoolSize(poolSize);
+        } else {
+            threadPool.setCorePoolSize(poolSize);
+            threadPool.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    private int clamp(int poolSize) {
+        return Math.max(minPoolSize, Math.min(maxPoolSize, poolSize));
+    }
+}
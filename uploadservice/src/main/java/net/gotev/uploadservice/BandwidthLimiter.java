@@ -0,0 +1,89 @@
+package net.gotev.uploadservice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket which limits the number of bytes per second transferred by the threads sharing it.
+ * It's lock-free: reserving bytes costs a single compare-and-set on the time at which the bucket
+ * will be empty again, and when no limit is set it costs just a volatile read.
+ * The limit can be changed at any time, also while uploads are running.
+ *
+ * @author Aleksandar Gotev
+ */
+public final class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Maximum time in nanoseconds of unused bandwidth which can be accumulated and then spent
+     * in a burst.
+     */
+    private static final long MAX_BURST_NANOS = 100000000L;
+
+    private volatile long maxBytesPerSecond;
+    private final AtomicLong nextFreeTime = new AtomicLong(0);
+
+    /**
+     * Creates a new limiter.
+     * @param maxBytesPerSecond maximum number of bytes per second. Zero or less means no limit.
+     */
+    public BandwidthLimiter(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Gets the current limit.
+     * @return maximum number of bytes per second. Zero means no limit.
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Sets a new limit, which is applied immediately also to the running uploads.
+     * @param maxBytesPerSecond maximum number of bytes per second. Zero or less means no limit.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond < 0 ? 0 : maxBytesPerSecond;
+    }
+
+    /**
+     * Reserves the given number of bytes, blocking the calling thread until the transfer of
+     * those bytes does not exceed the limit.
+     * @param bytes number of bytes to transfer
+     * @throws IOException if the thread gets interrupted while waiting
+     */
+    public void acquire(int bytes) throws IOException {
+        long rate = maxBytesPerSecond;
+
+        if (rate <= 0 || bytes <= 0)
+            return;
+
+        long cost = bytes * NANOS_PER_SECOND / rate;
+        long now;
+        long reservedUntil;
+
+        while (true) {
+            now = System.nanoTime();
+            long current = nextFreeTime.get();
+            reservedUntil = Math.max(current, now - MAX_BURST_NANOS) + cost;
+
+            if (nextFreeTime.compareAndSet(current, reservedUntil))
+                break;
+        }
+
+        long waitNanos = reservedUntil - now;
+
+        if (waitNanos <= 0)
+            return;
+
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for available bandwidth");
+        }
+    }
+}
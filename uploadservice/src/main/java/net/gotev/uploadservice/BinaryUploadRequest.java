@@ -4,6 +4,7 @@ import android.content.Context;
 
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -63,11 +64,37 @@ public class BinaryUploadRequest extends HttpUploadRequest<BinaryUploadRequest>
      * @return {@link BinaryUploadRequest}
      */
     public BinaryUploadRequest setFileToUpload(String path) throws FileNotFoundException {
-        params.files.clear();
-        params.files.add(new UploadFile(path));
+        UploadFile file = new UploadFile(path);
+        releaseFileToUpload();
+        params.files.add(file);
         return this;
     }
 
+    /**
+     * Sets in-memory content as raw body of the upload request, without writing it to a file.
+     * The buffer is not copied, so don't modify it until the upload is finished. See
+     * {@link UploadFile#fromBuffer(ByteBuffer, String, String)}.
+     *
+     * @param buffer content to upload, from its position to its limit
+     * @return {@link BinaryUploadRequest}
+     */
+    public BinaryUploadRequest setBytesToUpload(ByteBuffer buffer) {
+        UploadFile file = UploadFile.fromBuffer(buffer, null, null);
+        releaseFileToUpload();
+        params.files.add(file);
+        return this;
+    }
+
+    /**
+     * Removes the file set previously, releasing its content if it's in memory.
+     */
+    private void releaseFileToUpload() {
+        for (UploadFile file : params.files) {
+            file.release();
+        }
+        params.files.clear();
+    }
+
     /**
      * Allows to upload a part of the file. Sets the start and length of the range going to be uploaded.
      *
@@ -84,6 +111,26 @@ public class BinaryUploadRequest extends HttpUploadRequest<BinaryUploadRequest>
         return this;
     }
 
+    /**
+     * Uploads only the blocks of the file which have changed since the last successful upload
+     * to the same destination. The hashes of the blocks of each uploaded file are saved on the
+     * device, per server URL and destination ID. If there isn't a previous upload, or if the
+     * server answers with 409 Conflict (e.g. because it doesn't have the previous version of
+     * the file anymore), the whole file gets uploaded.
+     *
+     * Delta request bodies are sent with the {@code Upload-Delta: 1} header and start with a
+     * manifest which tells the server how to rebuild the file from its previous version, so
+     * the server has to support this format. See the example node.js server.
+     * Only files which can be read with a file channel can be uploaded as delta.
+     *
+     * @param destinationId ID of the remote file, or null to always upload the whole file
+     * @return {@link BinaryUploadRequest}
+     */
+    public BinaryUploadRequest setDeltaUpload(String destinationId) {
+        httpParams.deltaDestination = destinationId;
+        return this;
+    }
+
     @Override
     public BinaryUploadRequest addParameter(String paramName, String paramValue) {
         logDoesNotSupportParameters();
@@ -2,8 +2,17 @@ package net.gotev.uploadservice;
 
 import net.gotev.uploadservice.http.BodyWriter;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Implements a binary file upload task.
@@ -13,22 +22,302 @@ import java.io.UnsupportedEncodingException;
  */
 public class BinaryUploadTask extends HttpUploadTask {
 
+    private static final String LOG_TAG = BinaryUploadTask.class.getSimpleName();
+
+    /**
+     * Header which marks the delta upload requests.
+     */
+    static final String DELTA_HEADER = "Upload-Delta";
+    private static final String DELTA_VERSION = "1";
+
+    /**
+     * Delta uploads are sent only if they save at least this fraction of the file size.
+     */
+    private static final double MIN_DELTA_SAVING = 0.1;
+
+    /**
+     * Thrown when the server can't apply a delta upload, e.g. because it does not have the base
+     * version of the file.
+     */
+    private static final class DeltaRejectedException extends IOException {
+        DeltaRejectedException(int httpCode) {
+            super("Server rejected delta upload with HTTP " + httpCode);
+        }
+    }
+
+    // delta upload state, computed before each attempt
+    private BlockIndex fileBlocks;
+    // length and modification time of the file when its blocks have been hashed
+    private long hashedFileLength;
+    private long hashedFileModified;
+    private byte[] deltaManifest;
+    private List<long[]> deltaRanges;
+
     protected long getFileRangeStart() {
         return params.files.get(0).rangeStart;
     }
 
     @Override
     protected long getBodyLength() throws UnsupportedEncodingException {
-        return params.files.get(0).length(service);
+        if (deltaManifest == null)
+            return params.files.get(0).length(service);
+
+        long length = deltaManifest.length;
+        for (long[] range : deltaRanges) {
+            length += range[1];
+        }
+        return length;
+    }
+
+    @Override
+    protected void upload() throws Exception {
+        if (httpParams.deltaDestination == null) {
+            super.upload();
+            return;
+        }
+
+        prepareDelta(true);
+
+        try {
+            super.upload();
+        } catch (DeltaRejectedException exc) {
+            Logger.info(LOG_TAG, exc.getMessage() + " for upload with ID " + params.id
+                    + ". Uploading the whole file.");
+            BlockIndex.delete(service, getDeltaDestinationKey());
+            prepareDelta(false);
+            super.upload();
+        }
+    }
+
+    /**
+     * Hashes the blocks of the file and compares them with the ones of the last upload to the
+     * same destination, to find the ranges of the file to send.
+     * @param useBase false to upload the whole file, but still hash its blocks
+     * @throws IOException if an error occurs while reading the file
+     */
+    private void prepareDelta(boolean useBase) throws IOException {
+        deltaManifest = null;
+        deltaRanges = null;
+        httpParams.removeHeader(DELTA_HEADER);
+
+        // the file may have been changed since the last attempt, e.g. a recording trimmed again
+        if (fileBlocks == null || fileChangedSinceHashed()) {
+            hashFileBlocks();
+
+            if (fileBlocks == null) {
+                Logger.info(LOG_TAG, "Delta upload is not supported for "
+                        + params.files.get(0).getPath() + ". Uploading the whole file.");
+                return;
+            }
+        }
+
+        BlockIndex base = useBase ? BlockIndex.load(service, getDeltaDestinationKey()) : null;
+        if (base == null || base.blockSize != fileBlocks.blockSize)
+            return;
+
+        Map<ByteBuffer, Integer> baseBlocks = new HashMap<>(base.getBlockCount() * 2);
+        for (int i = 0; i < base.getBlockCount(); i++) {
+            if (base.getBlockLength(i) == base.blockSize && !baseBlocks.containsKey(base.getHash(i))) {
+                baseBlocks.put(base.getHash(i), i);
+            }
+        }
+        // the last block can be shorter and can be reused only as the last block
+        int baseLastBlock = base.getBlockCount() - 1;
+
+        // Manifest: a line "<block size> <base size> <file size> <block count> <base hash>", then
+        // a line for each block: "K <base block index>" if the block is the same as the one in
+        // the base version, or "D" if its data follows the manifest, in the same order.
+        // The base hash is the SHA-256 of the SHA-256 hashes of the base blocks, so the server
+        // can check that its copy is the same version this device uploaded the last time
+        StringBuilder manifest = new StringBuilder(128 + fileBlocks.getBlockCount() * 8);
+        manifest.append(fileBlocks.blockSize).append(' ').append(base.fileSize).append(' ')
+                .append(fileBlocks.fileSize).append(' ').append(fileBlocks.getBlockCount())
+                .append(' ').append(base.getIndexHash()).append('\n');
+
+        List<long[]> ranges = new ArrayList<>();
+        long dataBytes = 0;
+
+        for (int i = 0; i < fileBlocks.getBlockCount(); i++) {
+            ByteBuffer hash = fileBlocks.getHash(i);
+            long blockLength = fileBlocks.getBlockLength(i);
+            Integer baseBlock;
+
+            if (blockLength == fileBlocks.blockSize) {
+                baseBlock = baseBlocks.get(hash);
+            } else {
+                baseBlock = baseLastBlock >= 0 && base.getHash(baseLastBlock).equals(hash)
+                        ? baseLastBlock : null;
+            }
+
+            if (baseBlock != null) {
+                manifest.append("K ").append(baseBlock).append('\n');
+                continue;
+            }
+
+            manifest.append("D\n");
+            long offset = (long) i * fileBlocks.blockSize;
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+
+            // consecutive changed blocks are sent as a single range
+            if (last != null && last[0] + last[1] == offset) {
+                last[1] += blockLength;
+            } else {
+                ranges.add(new long[] {offset, blockLength});
+            }
+            dataBytes += blockLength;
+        }
+
+        byte[] manifestBytes = manifest.toString().getBytes(Charset.forName("US-ASCII"));
+
+        if (manifestBytes.length + dataBytes > fileBlocks.fileSize * (1 - MIN_DELTA_SAVING)) {
+            Logger.debug(LOG_TAG, "Delta of upload with ID " + params.id
+                    + " is too big. Uploading the whole file.");
+            return;
+        }
+
+        Logger.debug(LOG_TAG, "Upload with ID " + params.id + " sends " + dataBytes
+                + " changed bytes of " + fileBlocks.fileSize);
+
+        deltaManifest = manifestBytes;
+        deltaRanges = ranges;
+        httpParams.addHeader(DELTA_HEADER, DELTA_VERSION);
+    }
+
+    private void hashFileBlocks() throws IOException {
+        UploadFile file = params.files.get(0);
+        hashedFileLength = file.length(service);
+        hashedFileModified = getLastModified(file);
+        fileBlocks = BlockIndex.compute(file, service, Math.max(1, UploadService.DELTA_UPLOAD_BLOCK_SIZE));
+    }
+
+    /**
+     * Checks if the file changed since its blocks have been hashed, by comparing its length and
+     * its modification time. Files without a modification time, like content Uris, are always
+     * considered changed.
+     * @return true if the file may have changed
+     */
+    private boolean fileChangedSinceHashed() {
+        UploadFile file = params.files.get(0);
+        return hashedFileModified <= 0 || hashedFileModified != getLastModified(file)
+                || hashedFileLength != file.length(service);
+    }
+
+    private static long getLastModified(UploadFile file) {
+        // only files on the device storage have a reliable modification time
+        return file.getPath().startsWith("/") ? new File(file.getPath()).lastModified() : 0;
+    }
+
+    /**
+     * Saves the blocks of the uploaded file, to send only the changed ones the next time.
+     * If the file changed while it was being uploaded, the uploaded content is unknown, so the
+     * saved blocks are deleted instead, and the next upload sends the whole file.
+     */
+    private void saveFileBlocks() {
+        String destination = getDeltaDestinationKey();
+        boolean changed;
+
+        try {
+            if (hashedFileModified > 0) {
+                changed = fileChangedSinceHashed();
+            } else {
+                // the file can't be checked without hashing it again
+                changed = !fileBlocks.hasSameBlocks(BlockIndex.compute(params.files.get(0), service,
+                                                                       fileBlocks.blockSize));
+            }
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while hashing file of upload with ID " + params.id, exc);
+            changed = true;
+        }
+
+        if (changed) {
+            Logger.info(LOG_TAG, "File of upload with ID " + params.id + " changed while uploading. "
+                    + "The next upload to the same destination will send the whole file.");
+            BlockIndex.delete(service, destination);
+        } else {
+            fileBlocks.save(service, destination);
+        }
+    }
+
+    private String getDeltaDestinationKey() {
+        return httpParams.method + " " + params.serverUrl + " " + httpParams.deltaDestination;
+    }
+
+    @Override
+    protected void checkResponse(ServerResponse response) throws Exception {
+        // 409 Conflict: the server does not have the base version of the file, or its copy
+        // has been changed since the last upload from this device
+        if (deltaManifest != null && response.getHttpCode() == 409)
+            throw new DeltaRejectedException(response.getHttpCode());
     }
 
     @Override
     public void onBodyReady(BodyWriter bodyWriter) throws IOException {
-        bodyWriter.writeStream(params.files.get(0).getStream(service), this);
+        if (deltaManifest == null) {
+            bodyWriter.writeFile(params.files.get(0), service, this, getBandwidthLimiter());
+            return;
+        }
+
+        // the content digest has to be the one of the whole file, as rebuilt by the server,
+        // and not the one of the delta body
+        MessageDigest digest = bodyWriter.getDigest();
+        bodyWriter.setDigest(null);
+
+        try {
+            // the body may be written more than once by the http stack
+            uploadedBytes = 0;
+            bodyWriter.write(deltaManifest);
+            uploadedBytes += deltaManifest.length;
+            broadcastProgress(uploadedBytes, totalBytes);
+
+            for (long[] range : deltaRanges) {
+                if (!shouldContinue)
+                    break;
+
+                FileChannel channel = params.files.get(0).getChannel(service);
+                channel.position(channel.position() + range[0]);
+                bodyWriter.writeChannel(channel, range[1], this, getBandwidthLimiter());
+            }
+        } finally {
+            bodyWriter.setDigest(digest);
+        }
+
+        if (digest != null && shouldContinue) {
+            updateWithFile(digest);
+        }
+    }
+
+    private void updateWithFile(MessageDigest digest) throws IOException {
+        UploadFile file = params.files.get(0);
+        FileChannel channel = file.getChannel(service);
+        byte[] buffer = UploadService.getBufferPool().acquire(UploadService.MAX_BUFFER_SIZE);
+
+        try {
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+            long remaining = file.length(service);
+
+            while (shouldContinue && remaining > 0) {
+                wrapper.clear();
+                wrapper.limit((int) Math.min(buffer.length, remaining));
+                int bytesRead = channel.read(wrapper);
+
+                if (bytesRead <= 0)
+                    break;
+
+                digest.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            UploadService.getBufferPool().release(buffer);
+            channel.close();
+        }
     }
 
     @Override
     protected void onSuccessfulUpload() {
         addSuccessfullyUploadedFile(params.files.get(0));
+
+        if (httpParams.deltaDestination != null && fileBlocks != null) {
+            saveFileBlocks();
+        }
     }
 }
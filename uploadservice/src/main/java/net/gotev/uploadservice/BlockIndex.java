@@ -0,0 +1,345 @@
+package net.gotev.uploadservice;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hashes of the fixed-size blocks of a file, used for delta uploads (see
+ * {@link BinaryUploadRequest#setDeltaUpload(String)}). The hashes of the last version of a file
+ * uploaded to a destination are saved on the device storage, so that the next upload to the
+ * same destination can send only the blocks which have changed.
+ *
+ * Blocks are hashed with SHA-256, in parallel on all the available cores, reading the file
+ * through memory-mapped regions.
+ *
+ * @author Aleksandar Gotev
+ */
+final class BlockIndex {
+
+    private static final String LOG_TAG = BlockIndex.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "uploadservice-blocks";
+    private static final int VERSION = 1;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    static final int HASH_SIZE = 32;
+
+    /**
+     * Maximum size of a file portion which is memory-mapped at once by a hashing thread.
+     */
+    private static final long MAX_MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Minimum number of blocks hashed by each thread, so small files are hashed by one thread.
+     */
+    private static final int MIN_BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Maximum number of blocks of a file, which keeps the hashes under 32MB and all the
+     * block offsets in the hashes array within the int range.
+     */
+    static final int MAX_BLOCK_COUNT = 1024 * 1024;
+
+    final int blockSize;
+    final long fileSize;
+    final byte[] hashes;
+
+    private BlockIndex(int blockSize, long fileSize, byte[] hashes) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Gets the number of blocks.
+     * @return number of blocks
+     */
+    int getBlockCount() {
+        return hashes.length / HASH_SIZE;
+    }
+
+    /**
+     * Gets the hash of a block.
+     * @param index block index
+     * @return hash wrapped in a byte buffer, which can be used as a map key
+     */
+    ByteBuffer getHash(int index) {
+        return ByteBuffer.wrap(hashes, index * HASH_SIZE, HASH_SIZE).slice();
+    }
+
+    /**
+     * Gets the size of a block. Only the last block can be smaller than the block size.
+     * @param index block index
+     * @return block size in bytes
+     */
+    long getBlockLength(int index) {
+        return Math.min(blockSize, fileSize - (long) index * blockSize);
+    }
+
+    /**
+     * Checks if another index has the same block hashes, so it describes the same content.
+     * @param other other block index
+     * @return true if the content is the same
+     */
+    boolean hasSameBlocks(BlockIndex other) {
+        return other != null && blockSize == other.blockSize && fileSize == other.fileSize
+                && Arrays.equals(hashes, other.hashes);
+    }
+
+    /**
+     * Gets the hash of all the block hashes, which identifies this version of the file.
+     * @return SHA-256 of the concatenated block hashes, as hex string
+     */
+    String getIndexHash() {
+        return toHex(newDigest().digest(hashes));
+    }
+
+    /**
+     * Computes the block hashes of a file.
+     * @param file file to hash
+     * @param context service context
+     * @param blockSize block size in bytes
+     * @return block index, or null if the file can't be read with a {@link FileChannel} or it
+     * has more than {@link #MAX_BLOCK_COUNT} blocks
+     * @throws IOException if an error occurs while reading the file
+     */
+    static BlockIndex compute(UploadFile file, Context context, int blockSize) throws IOException {
+        final long fileSize = file.length(context);
+        final long blocks = (fileSize + blockSize - 1) / blockSize;
+
+        if (blocks > MAX_BLOCK_COUNT) {
+            Logger.error(LOG_TAG, "Block size " + blockSize + " is too small for " + file.getPath()
+                    + ", which would have " + blocks + " blocks. Use a bigger "
+                    + "UploadService.DELTA_UPLOAD_BLOCK_SIZE");
+            return null;
+        }
+
+        final FileChannel channel = file.getChannel(context);
+
+        if (channel == null)
+            return null;
+
+        try {
+            final long start = channel.position();
+            final int blockCount = (int) blocks;
+            final byte[] hashes = new byte[blockCount * HASH_SIZE];
+            final BlockIndex index = new BlockIndex(blockSize, fileSize, hashes);
+
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                                               blockCount / MIN_BLOCKS_PER_THREAD));
+
+            if (threads == 1) {
+                index.hashBlocks(channel, start, 0, blockCount);
+                return index;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+            try {
+                List<Future<Void>> results = new ArrayList<>(threads);
+                int blocksPerThread = (blockCount + threads - 1) / threads;
+
+                for (int from = 0; from < blockCount; from += blocksPerThread) {
+                    final int firstBlock = from;
+                    final int lastBlock = Math.min(blockCount, from + blocksPerThread);
+
+                    // FileChannel.map is thread safe and each thread maps its own regions
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            index.hashBlocks(channel, start, firstBlock, lastBlock);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<Void> result : results) {
+                    result.get();
+                }
+
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing " + file.getPath());
+
+            } catch (ExecutionException exc) {
+                if (exc.getCause() instanceof IOException)
+                    throw (IOException) exc.getCause();
+
+                throw new IOException("Error while hashing " + file.getPath(), exc.getCause());
+
+            } finally {
+                executor.shutdownNow();
+            }
+
+            return index;
+
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void hashBlocks(FileChannel channel, long start, int firstBlock, int lastBlock)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        int blocksPerWindow = (int) Math.max(1, MAX_MAPPED_WINDOW_SIZE / blockSize);
+
+        for (int windowStart = firstBlock; windowStart < lastBlock; windowStart += blocksPerWindow) {
+            int windowEnd = Math.min(lastBlock, windowStart + blocksPerWindow);
+            long windowOffset = (long) windowStart * blockSize;
+            long windowLength = Math.min(fileSize, (long) windowEnd * blockSize) - windowOffset;
+
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                  start + windowOffset, windowLength);
+
+            for (int block = windowStart; block < windowEnd; block++) {
+                int position = (int) ((long) (block - windowStart) * blockSize);
+                window.limit(position + (int) getBlockLength(block));
+                window.position(position);
+                digest.update(window);
+
+                try {
+                    digest.digest(hashes, block * HASH_SIZE, HASH_SIZE);
+                } catch (DigestException exc) {
+                    throw new IOException(exc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the block hashes of the last upload to a destination.
+     * @param context service context
+     * @param destination destination key
+     * @return block index, or null if there isn't one
+     */
+    static BlockIndex load(Context context, String destination) {
+        File file = getFile(context, destination);
+
+        if (!file.exists())
+            return null;
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != VERSION)
+                return null;
+
+            int blockSize = input.readInt();
+            long fileSize = input.readLong();
+            int blockCount = input.readInt();
+
+            if (blockSize <= 0 || blockCount < 0 || blockCount > MAX_BLOCK_COUNT)
+                return null;
+
+            byte[] hashes = new byte[blockCount * HASH_SIZE];
+            input.readFully(hashes);
+
+            return new BlockIndex(blockSize, fileSize, hashes);
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while reading block index " + file.getName(), exc);
+            return null;
+
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Saves these block hashes as the last upload to a destination.
+     * @param context service context
+     * @param destination destination key
+     */
+    void save(Context context, String destination) {
+        File file = getFile(context, destination);
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            file.getParentFile().mkdirs();
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(VERSION);
+            output.writeInt(blockSize);
+            output.writeLong(fileSize);
+            output.writeInt(getBlockCount());
+            output.write(hashes);
+            output.close();
+            output = null;
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to replace " + file.getAbsolutePath());
+            }
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while saving block index " + file.getName(), exc);
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) { }
+            }
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the block hashes of the last upload to a destination.
+     * @param context service context
+     * @param destination destination key
+     */
+    static void delete(Context context, String destination) {
+        getFile(context, destination).delete();
+    }
+
+    private static File getFile(Context context, String destination) {
+        byte[] hash = newDigest().digest(destination.getBytes(Charset.forName("UTF-8")));
+        return new File(new File(context.getFilesDir(), DIRECTORY_NAME), toHex(hash));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0f, 16))
+               .append(Character.forDigit(b & 0x0f, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException exc) {
+            // SHA-256 is available on every Android version
+            throw new RuntimeException(exc);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.gotev.uploadservice;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays shared by all the upload tasks, to avoid allocating new buffers for each
+ * file to send and for each server response to read.
+ * Buffers are grouped in size classes, which are the powers of two from 1 KB to 1 MB. Requested
+ * sizes are rounded up to the nearest size class, while bigger buffers are never pooled.
+ * The total size of the buffers kept in the pool never exceeds
+ * {@link UploadService#BUFFER_POOL_MAX_RETAINED_BYTES}. All the operations are lock-free.
+ *
+ * @author Aleksandar Gotev
+ */
+public final class BufferPool {
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 10;
+    private static final int MAX_SIZE_CLASS_SHIFT = 20;
+
+    private final Queue<byte[]>[] sizeClasses;
+    private final AtomicLong retainedBytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    @SuppressWarnings("unchecked")
+    BufferPool() {
+        sizeClasses = new Queue[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Gets a buffer from the pool, or allocates a new one if there aren't any of the needed
+     * size class. Give it back with {@link BufferPool#release(byte[])} when it's not needed anymore.
+     * @param minSize minimum size of the buffer
+     * @return buffer, which can be bigger than the requested size
+     */
+    public byte[] acquire(int minSize) {
+        int sizeClass = getSizeClass(minSize);
+
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return new byte[minSize];
+        }
+
+        byte[] buffer = sizeClasses[sizeClass].poll();
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)];
+        }
+
+        retainedBytes.addAndGet(-buffer.length);
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer to the pool. The buffer must not be used anymore after this call.
+     * If the buffer has not a pooled size or the pool is full, the buffer is discarded.
+     * @param buffer buffer obtained with {@link BufferPool#acquire(int)}
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+
+        int sizeClass = getSizeClass(buffer.length);
+
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT))
+            return;
+
+        if (retainedBytes.addAndGet(buffer.length) > UploadService.BUFFER_POOL_MAX_RETAINED_BYTES) {
+            retainedBytes.addAndGet(-buffer.length);
+            return;
+        }
+
+        sizeClasses[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Discards all the pooled buffers, so their memory can be reclaimed.
+     */
+    public void trim() {
+        for (Queue<byte[]> sizeClass : sizeClasses) {
+            byte[] buffer;
+            while ((buffer = sizeClass.poll()) != null) {
+                retainedBytes.addAndGet(-buffer.length);
+            }
+        }
+    }
+
+    /**
+     * Gets how many times a buffer has been taken from the pool.
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets how many times a new buffer had to be allocated.
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the total size of the buffers currently kept in the pool.
+     * @return retained bytes
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHits() + ", misses=" + getMisses()
+                + ", retainedBytes=" + getRetainedBytes() + "}";
+    }
+
+    private static int getSizeClass(int size) {
+        if (size > 1 << MAX_SIZE_CLASS_SHIFT)
+            return -1;
+
+        if (size <= 1 << MIN_SIZE_CLASS_SHIFT)
+            return 0;
+
+        // index of the smallest power of two which is greater or equal than size
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_CLASS_SHIFT;
+    }
+}
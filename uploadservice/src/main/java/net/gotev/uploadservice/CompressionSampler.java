@@ -0,0 +1,107 @@
+package net.gotev.uploadservice;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Guesses if a file is worth compressing. Files with a content type which is known to be
+ * already compressed (e.g. JPEG, MP4, ZIP) are skipped without reading them. For the other
+ * files, the first blocks are read and the Shannon entropy of their bytes is computed:
+ * data which is already compressed or encrypted is close to 8 bits per byte.
+ *
+ * @author Aleksandar Gotev
+ */
+final class CompressionSampler {
+
+    private static final String LOG_TAG = CompressionSampler.class.getSimpleName();
+
+    /**
+     * Number of bytes to read from the beginning of each file.
+     */
+    private static final int SAMPLE_SIZE = 16 * 1024;
+
+    /**
+     * Files with an entropy above this value (in bits per byte) are considered incompressible.
+     */
+    private static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+
+    private static final String[] COMPRESSED_CONTENT_TYPES = new String[] {
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/heic", "image/heif",
+            "video/", "audio/mpeg", "audio/mp4", "audio/aac", "audio/ogg", "audio/webm",
+            "audio/flac", "application/zip", "application/gzip", "application/x-gzip",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/x-bzip2",
+            "application/x-xz", "application/vnd.android.package-archive"
+    };
+
+    private CompressionSampler() { }
+
+    /**
+     * Checks if a file is worth compressing.
+     * @param file file to check
+     * @param context service context
+     * @return true if the file is likely to be compressible
+     */
+    static boolean isCompressible(UploadFile file, Context context) {
+        String contentType = file.getContentType(context);
+
+        if (contentType != null) {
+            contentType = contentType.toLowerCase(Locale.US);
+            for (String compressedContentType : COMPRESSED_CONTENT_TYPES) {
+                if (contentType.startsWith(compressedContentType))
+                    return false;
+            }
+        }
+
+        byte[] sample = UploadService.getBufferPool().acquire(SAMPLE_SIZE);
+        InputStream stream = null;
+
+        try {
+            stream = file.getStream(context);
+
+            int length = 0;
+            int bytesRead;
+            while (length < SAMPLE_SIZE
+                    && (bytesRead = stream.read(sample, length, SAMPLE_SIZE - length)) > 0) {
+                length += bytesRead;
+            }
+
+            return length == 0 || getEntropy(sample, length) <= MAX_COMPRESSIBLE_ENTROPY;
+
+        } catch (IOException exc) {
+            // the upload will report the error, if the file can't be read
+            Logger.error(LOG_TAG, "Can't sample " + file.getPath(), exc);
+            return true;
+
+        } finally {
+            UploadService.getBufferPool().release(sample);
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException exc) {
+                    Logger.error(LOG_TAG, "Error while closing " + file.getPath(), exc);
+                }
+            }
+        }
+    }
+
+    private static double getEntropy(byte[] bytes, int length) {
+        int[] occurrences = new int[256];
+
+        for (int i = 0; i < length; i++) {
+            occurrences[bytes[i] & 0xff]++;
+        }
+
+        double entropy = 0;
+        for (int count : occurrences) {
+            if (count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,140 @@
+package net.gotev.uploadservice;
+
+import java.net.URI;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Limits how many upload tasks can be executed at the same time for each server host.
+ * Tasks exceeding the limit are parked here, without being queued in the thread pool, until
+ * another task for the same host is completed.
+ *
+ * @author Aleksandar Gotev
+ */
+final class HostConcurrencyLimiter {
+
+    private final Comparator<Runnable> comparator;
+    private final Map<String, Integer> runningTasks = new HashMap<>();
+    private final Map<String, PriorityQueue<Runnable>> parkedTasks = new HashMap<>();
+
+    HostConcurrencyLimiter(Comparator<Runnable> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Gets the key used to group the tasks by server. It's the host of the server URL, followed
+     * by the port if the URL has one (e.g. {@code host:port}), or the server URL itself if it
+     * does not have a host, like for FTP uploads where only the host name is set.
+     * The user info of the URL is not part of the key, so the limits set with
+     * {@link UploadService#setMaxConcurrentUploadsForHost(String, int)} apply also to the URLs
+     * with credentials.
+     * @param serverUrl server URL
+     * @return host key
+     */
+    static String getHostKey(String serverUrl) {
+        if (serverUrl == null)
+            return "";
+
+        try {
+            URI uri = new URI(serverUrl);
+            String host = uri.getHost();
+            if (host != null) {
+                host = host.toLowerCase(Locale.US);
+                return uri.getPort() < 0 ? host : host + ":" + uri.getPort();
+            }
+        } catch (Exception ignored) { }
+
+        return serverUrl.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Tries to reserve an execution slot for a task. If the task's host has reached its limit,
+     * the task gets parked.
+     * @param task upload task
+     * @return true if the task can be executed now, false if it has been parked
+     */
+    synchronized boolean tryAcquire(UploadTask task) {
+        String host = getHostKey(task.params.serverUrl);
+
+        if (acquire(host, task))
+            return true;
+
+        PriorityQueue<Runnable> queue = parkedTasks.get(host);
+        if (queue == null) {
+            queue = new PriorityQueue<>(11, comparator);
+            parkedTasks.put(host, queue);
+        }
+        queue.add(task);
+
+        Logger.debug(getClass().getSimpleName(), "Host " + host + " is saturated. Upload with ID: "
+                + task.params.id + " will start as soon as another upload to the same host completes");
+        return false;
+    }
+
+    /**
+     * Releases the execution slot held by a completed task.
+     * @param task completed task
+     * @return the next parked task for the same host, which now holds the released slot and has
+     * to be executed, or null if there aren't any
+     */
+    synchronized UploadTask release(UploadTask task) {
+        if (task == null || !task.holdsHostSlot)
+            return null;
+
+        task.holdsHostSlot = false;
+        String host = getHostKey(task.params.serverUrl);
+
+        Integer running = runningTasks.get(host);
+        if (running == null || running <= 1) {
+            runningTasks.remove(host);
+        } else {
+            runningTasks.put(host, running - 1);
+        }
+
+        PriorityQueue<Runnable> queue = parkedTasks.get(host);
+
+        if (queue == null)
+            return null;
+
+        UploadTask next = null;
+
+        while (!queue.isEmpty()) {
+            UploadTask parked = (UploadTask) queue.peek();
+
+            // cancelled tasks are not removed when cancelled, so discard them here
+            if (!UploadService.isTaskActive(parked)) {
+                queue.poll();
+                continue;
+            }
+
+            // the limit may have been lowered meanwhile, so keep the tasks parked until
+            // enough slots are released
+            if (acquire(host, parked)) {
+                next = (UploadTask) queue.poll();
+            }
+            break;
+        }
+
+        if (queue.isEmpty()) {
+            parkedTasks.remove(host);
+        }
+
+        return next;
+    }
+
+    private boolean acquire(String host, UploadTask task) {
+        int limit = UploadService.getMaxConcurrentUploadsForHost(host);
+        Integer running = runningTasks.get(host);
+        int runningCount = running == null ? 0 : running;
+
+        if (limit > 0 && runningCount >= limit)
+            return false;
+
+        runningTasks.put(host, runningCount + 1);
+        task.holdsHostSlot = true;
+        return true;
+    }
+}
@@ -4,8 +4,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Base64;
 
+import net.gotev.uploadservice.http.CompressingBodyWriter;
+
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 /**
@@ -154,4 +158,77 @@ public abstract class HttpUploadRequest<B extends HttpUploadRequest<B>>
         httpParams.usesFixedLengthStreamingMode = fixedLength;
         return self();
     }
+
+    /**
+     * Compresses the request body while it's being uploaded and sets the Content-Encoding
+     * header. Make sure your server supports compressed request bodies! As the compressed size is
+     * not known in advance, the body is sent in chunked streaming mode.
+     * @param contentEncoding {@link CompressingBodyWriter#GZIP},
+     *                        {@link CompressingBodyWriter#DEFLATE} or null to disable compression
+     *                        (this is the default setting)
+     * @param auto if true, the first bytes of each file are sampled before the upload and files
+     *             which are already compressed (e.g. images, videos, archives) are sent without
+     *             compressing them. If none of the files is compressible, the body is sent
+     *             uncompressed.
+     * @return self instance
+     */
+    public B setBodyCompression(String contentEncoding, boolean auto) {
+        if (contentEncoding != null && !CompressingBodyWriter.GZIP.equals(contentEncoding)
+                && !CompressingBodyWriter.DEFLATE.equals(contentEncoding))
+            throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+
+        httpParams.contentEncoding = contentEncoding;
+        httpParams.autoCompression = auto;
+        return self();
+    }
+
+    /**
+     * Computes a digest of the uploaded files while they are being sent, without reading them
+     * again. The digest is available as a hex string in {@link UploadInfo#getContentDigest()}
+     * and {@link ServerResponse#getContentDigest()}. For requests with more than one file, the
+     * digest is computed over the content of all the files, in the order in which they are sent.
+     * @param algorithm digest algorithm supported by {@link MessageDigest}, e.g. MD5 or SHA-256,
+     *                  or null to disable it (this is the default setting)
+     * @param responseHeader response header which contains the digest computed by the server
+     *                       (e.g. ETag), as a hex or base64 string. If it's set and the values
+     *                       don't match, the upload is retried. Set it to null to disable the
+     *                       verification.
+     * @return self instance
+     */
+    public B setContentDigest(String algorithm, String responseHeader) {
+        if (algorithm != null) {
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException exc) {
+                throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, exc);
+            }
+        }
+
+        httpParams.digestAlgorithm = algorithm;
+        httpParams.digestResponseHeader = algorithm == null ? null : responseHeader;
+        return self();
+    }
+
+    /**
+     * Avoids uploading again content which has already been uploaded successfully with the same
+     * request. Before uploading, the request fingerprint (method, URL, parameters, Authorization,
+     * Proxy-Authorization and Cookie headers, size and first bytes of each file) is looked up in a local index of the completed uploads and, if
+     * found, the digest of the files is computed and compared with the one of the previous
+     * upload. If they match, the upload completes immediately with the response received the
+     * previous time. The digest is computed with the algorithm set with
+     * {@link HttpUploadRequest#setContentDigest(String, String)}, or SHA-256 if not set.
+     * Only responses with a body up to 64KB are remembered.
+     * @param enabled true to enable deduplication (false is the default setting)
+     * @param preflightMethod if not null, before skipping the upload the server is asked if it
+     *                        still has the content, by making a request with this method
+     *                        (e.g. HEAD) to the upload URL, with the If-None-Match header set to
+     *                        the quoted hex digest. The upload is skipped only if the server
+     *                        responds with 304 or 412.
+     * @return self instance
+     */
+    public B setDeduplication(boolean enabled, String preflightMethod) {
+        httpParams.deduplicate = enabled;
+        httpParams.deduplicationPreflightMethod = enabled ? preflightMethod : null;
+        return self();
+    }
 }
@@ -2,12 +2,23 @@ package net.gotev.uploadservice;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.util.Base64;
 
 import net.gotev.uploadservice.http.BodyWriter;
+import net.gotev.uploadservice.http.CompressingBodyWriter;
 import net.gotev.uploadservice.http.HttpConnection;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Generic HTTP Upload Task.<br>
@@ -22,6 +33,17 @@ public abstract class HttpUploadTask extends UploadTask
 
     private static final String LOG_TAG = HttpUploadTask.class.getSimpleName();
 
+    private static final String DEDUPLICATION_DIGEST_ALGORITHM = "SHA-256";
+    private static final int DEDUPLICATION_PARTIAL_HASH_SIZE = 64 * 1024;
+
+    /**
+     * Headers which identify the user, included in the deduplication fingerprint.
+     */
+    private static final String[] CREDENTIALS_HEADERS = {
+            "authorization", "proxy-authorization", "cookie"
+    };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Contains all the parameters set in {@link HttpUploadRequest}.
      */
@@ -32,6 +54,25 @@ public abstract class HttpUploadTask extends UploadTask
      */
     private HttpConnection connection;
 
+    /**
+     * Content encoding of the request body, or null if it's not compressed.
+     * Decided once, before the first upload attempt.
+     */
+    private String contentEncoding;
+    private Set<UploadFile> incompressibleFiles;
+    private boolean compressionPrepared = false;
+    private CompressingBodyWriter compressingBodyWriter;
+
+    /**
+     * Digest of the uploaded content, if requested.
+     */
+    private MessageDigest contentDigest;
+
+    /**
+     * Fingerprint of this upload request in the deduplication index. Computed once.
+     */
+    private String deduplicationKey;
+
     @Override
     protected void init(UploadService service, Intent intent) throws IOException {
         super.init(service, intent);
@@ -62,6 +103,8 @@ public abstract class HttpUploadTask extends UploadTask
         Logger.debug(LOG_TAG, "Starting upload task with ID " + params.id);
 
         try {
+            // the request body is always sent from the beginning, also when the task has been
+            // restored from the upload journal
             getSuccessfullyUploadedFiles().clear();
             uploadedBytes = 0;
             totalBytes = getBodyLength();
@@ -72,15 +115,43 @@ public abstract class HttpUploadTask extends UploadTask
                 httpParams.addHeader("User-Agent", "AndroidUploadService/0.1");
             }
 
+            prepareCompression();
+            compressingBodyWriter = null;
+
+            String digestAlgorithm = getDigestAlgorithm();
+            if (contentDigest == null && digestAlgorithm != null) {
+                contentDigest = MessageDigest.getInstance(digestAlgorithm);
+            }
+
+            if (httpParams.deduplicate && completeIfDuplicate())
+                return;
+
+            // the size of a compressed body is not known in advance
             connection = UploadService.HTTP_STACK
                     .createNewConnection(httpParams.method, params.serverUrl)
                     .setHeaders(httpParams.getRequestHeaders())
-                    .setTotalBodyBytes(totalBytes, httpParams.usesFixedLengthStreamingMode);
+                    .setTotalBodyBytes(totalBytes, httpParams.usesFixedLengthStreamingMode
+                                                   && contentEncoding == null);
 
-            final ServerResponse response = connection.getResponse(this);
+            final ServerResponse response = connection.getResponse(
+                    contentEncoding == null && contentDigest == null ? this : bodyDelegate);
             Logger.debug(LOG_TAG, "Server responded with HTTP " + response.getHttpCode()
                             + " to upload with ID: " + params.id);
 
+            if (contentDigest != null && shouldContinue) {
+                verifyContentDigest(response);
+
+                if (httpParams.deduplicate && deduplicationKey != null
+                        && response.getHttpCode() >= 200 && response.getHttpCode() <= 299) {
+                    service.getDeduplicationIndex().put(deduplicationKey,
+                            digestAlgorithm + ":" + response.getContentDigest(), response);
+                }
+            }
+
+            if (shouldContinue) {
+                checkResponse(response);
+            }
+
             // Broadcast completion only if the user has not cancelled the operation.
             // It may happen that when the body is not completely written and the client
             // closes the connection, no exception is thrown here, and the server responds
@@ -97,6 +168,363 @@ public abstract class HttpUploadTask extends UploadTask
         }
     }
 
+    /**
+     * Writes the request body delegating it to {@link HttpUploadTask#onBodyReady(BodyWriter)},
+     * compressing it and computing the content digest if requested.
+     */
+    private final HttpConnection.RequestBodyDelegate bodyDelegate =
+            new HttpConnection.RequestBodyDelegate() {
+                @Override
+                public void onBodyReady(BodyWriter bodyWriter) throws IOException {
+                    // the body may be written more than once by the http stack
+                    if (contentDigest != null) {
+                        contentDigest.reset();
+                    }
+
+                    if (contentEncoding == null) {
+                        bodyWriter.setDigest(contentDigest);
+                        HttpUploadTask.this.onBodyReady(bodyWriter);
+                        return;
+                    }
+
+                    CompressingBodyWriter writer = new CompressingBodyWriter(
+                            bodyWriter, contentEncoding, incompressibleFiles);
+                    writer.setDigest(contentDigest);
+                    compressingBodyWriter = writer;
+
+                    try {
+                        HttpUploadTask.this.onBodyReady(writer);
+
+                        if (shouldContinue) {
+                            writer.finish();
+                        }
+
+                        setCompressedBytes(writer.getCompressedBytes());
+                    } finally {
+                        writer.release();
+                    }
+                }
+            };
+
+    /**
+     * Checks the digest of the uploaded content against the one sent by the server in
+     * {@link HttpUploadTaskParameters#digestResponseHeader}, if any. The verification is
+     * skipped if the server responded with an error or without the header.
+     * @param response server response
+     * @throws IOException if the digests don't match, so the upload is retried
+     */
+    private void verifyContentDigest(ServerResponse response) throws IOException {
+        byte[] digest = contentDigest.digest();
+        String hexDigest = toHex(digest);
+        response.setContentDigest(hexDigest);
+        setContentDigest(hexDigest);
+
+        String headerName = httpParams.digestResponseHeader;
+        if (headerName == null || response.getHttpCode() < 200 || response.getHttpCode() > 299)
+            return;
+
+        String serverDigest = null;
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (headerName.equalsIgnoreCase(header.getKey())) {
+                serverDigest = header.getValue();
+                break;
+            }
+        }
+
+        if (serverDigest == null) {
+            Logger.debug(LOG_TAG, "Server did not send " + headerName + " for upload with ID "
+                    + params.id + ", skipping content digest verification");
+            return;
+        }
+
+        // ETags are quoted and may be weak
+        serverDigest = serverDigest.trim();
+        if (serverDigest.startsWith("W/")) {
+            serverDigest = serverDigest.substring(2);
+        }
+        if (serverDigest.length() >= 2 && serverDigest.startsWith("\"") && serverDigest.endsWith("\"")) {
+            serverDigest = serverDigest.substring(1, serverDigest.length() - 1);
+        }
+
+        if (!serverDigest.equalsIgnoreCase(hexDigest)
+                && !serverDigest.equals(Base64.encodeToString(digest, Base64.NO_WRAP))) {
+            throw new IOException("Content digest mismatch for upload with ID " + params.id
+                    + ". Local: " + hexDigest + ", server (" + headerName + "): " + serverDigest);
+        }
+    }
+
+    private String getDigestAlgorithm() {
+        if (httpParams.digestAlgorithm != null)
+            return httpParams.digestAlgorithm;
+
+        return httpParams.deduplicate ? DEDUPLICATION_DIGEST_ALGORITHM : null;
+    }
+
+    /**
+     * Checks if the same content has already been uploaded with the same request and if so,
+     * completes the upload with the response received the previous time.
+     * @return true if the upload has been completed
+     */
+    private boolean completeIfDuplicate() {
+        String hexDigest;
+        UploadDeduplicationIndex.Entry entry;
+
+        try {
+            if (deduplicationKey == null) {
+                deduplicationKey = getDeduplicationKey();
+            }
+
+            entry = service.getDeduplicationIndex().get(deduplicationKey);
+            if (entry == null)
+                return false;
+
+            // the fingerprint matches, so it's worth reading all the files to compare the digest
+            String algorithm = getDigestAlgorithm();
+            hexDigest = getFilesDigest(algorithm);
+            if (hexDigest == null || !entry.digest.equals(algorithm + ":" + hexDigest))
+                return false;
+
+            if (httpParams.deduplicationPreflightMethod != null && !confirmDuplicate(hexDigest))
+                return false;
+
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Error while checking duplicates of upload with ID: "
+                    + params.id + ". Uploading it.", exc);
+            return false;
+        }
+
+        Logger.debug(LOG_TAG, "Content of upload with ID " + params.id
+                + " has already been uploaded. Skipping it.");
+
+        ServerResponse response;
+
+        try {
+            response = service.getDeduplicationIndex().getResponse(deduplicationKey, entry);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while reading previous response of upload with ID: "
+                    + params.id + ". Uploading it.", exc);
+            return false;
+        }
+
+        if (response == null)
+            return false;
+
+        response.setContentDigest(hexDigest);
+        setContentDigest(hexDigest);
+        uploadedBytes = totalBytes;
+
+        if (shouldContinue) {
+            broadcastCompleted(response);
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes the fingerprint of this upload request, from the method, the URL, the request
+     * parameters, the credentials headers and the size and first bytes of each file. The other
+     * headers are not considered, as they may contain values which change on each request.
+     * Credentials are considered, so a response received by a user is never reused for another.
+     * @return hex string
+     * @throws Exception if an error occurs while reading the files
+     */
+    private String getDeduplicationKey() throws Exception {
+        MessageDigest key = MessageDigest.getInstance(DEDUPLICATION_DIGEST_ALGORITHM);
+        updateDigest(key, httpParams.method);
+        updateDigest(key, params.serverUrl);
+
+        for (NameValue parameter : httpParams.getRequestParameters()) {
+            updateDigest(key, parameter.getName());
+            updateDigest(key, parameter.getValue());
+        }
+
+        for (NameValue header : httpParams.getRequestHeaders()) {
+            if (isCredentialsHeader(header.getName())) {
+                updateDigest(key, header.getName().toLowerCase(Locale.US));
+                updateDigest(key, header.getValue());
+            }
+        }
+
+        byte[] buffer = UploadService.getBufferPool().acquire(DEDUPLICATION_PARTIAL_HASH_SIZE);
+
+        try {
+            for (UploadFile file : params.files) {
+                updateDigest(key, Long.toString(file.length(service)));
+
+                InputStream stream = file.getStream(service);
+                try {
+                    int length = 0;
+                    int bytesRead;
+                    while (length < DEDUPLICATION_PARTIAL_HASH_SIZE && (bytesRead = stream.read(
+                            buffer, length, DEDUPLICATION_PARTIAL_HASH_SIZE - length)) > 0) {
+                        length += bytesRead;
+                    }
+                    key.update(buffer, 0, length);
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            UploadService.getBufferPool().release(buffer);
+        }
+
+        return toHex(key.digest());
+    }
+
+    /**
+     * Computes the digest of the content of all the files, as it's computed while uploading.
+     * @param algorithm digest algorithm
+     * @return hex string, or null if the task has been cancelled in the meantime
+     * @throws Exception if an error occurs while reading the files
+     */
+    private String getFilesDigest(String algorithm) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        byte[] buffer = UploadService.getBufferPool().acquire(UploadService.MAX_BUFFER_SIZE);
+
+        try {
+            for (UploadFile file : params.files) {
+                InputStream stream = file.getStream(service);
+                try {
+                    int bytesRead;
+                    while (shouldContinue && (bytesRead = stream.read(buffer, 0, buffer.length)) > 0) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            UploadService.getBufferPool().release(buffer);
+        }
+
+        return shouldContinue ? toHex(digest.digest()) : null;
+    }
+
+    /**
+     * Asks the server if it still has the content with the given digest.
+     * @param hexDigest digest of the content
+     * @return true if the server has the content
+     */
+    private boolean confirmDuplicate(String hexDigest) {
+        HttpConnection preflight = null;
+
+        try {
+            List<NameValue> headers = new ArrayList<>(httpParams.getRequestHeaders());
+            headers.add(NameValue.header("If-None-Match", "\"" + hexDigest + "\""));
+
+            preflight = UploadService.HTTP_STACK
+                    .createNewConnection(httpParams.deduplicationPreflightMethod, params.serverUrl)
+                    .setHeaders(headers)
+                    .setTotalBodyBytes(0, true);
+
+            int httpCode = preflight.getResponse(new HttpConnection.RequestBodyDelegate() {
+                @Override
+                public void onBodyReady(BodyWriter bodyWriter) {
+                    // no body
+                }
+            }).getHttpCode();
+
+            Logger.debug(LOG_TAG, "Server responded with HTTP " + httpCode
+                    + " to deduplication preflight of upload with ID: " + params.id);
+
+            return httpCode == 304 || httpCode == 412;
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Deduplication preflight failed for upload with ID: "
+                    + params.id, exc);
+            return false;
+
+        } finally {
+            if (preflight != null)
+                preflight.close();
+        }
+    }
+
+    private static boolean isCredentialsHeader(String name) {
+        if (name == null)
+            return false;
+
+        for (String credentialsHeader : CREDENTIALS_HEADERS) {
+            if (credentialsHeader.equalsIgnoreCase(name))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static void updateDigest(MessageDigest digest, String value) {
+        if (value != null) {
+            byte[] bytes = value.getBytes(UTF8);
+            digest.update(bytes, 0, bytes.length);
+        }
+        // separator, so that different splits of the same characters give different digests
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hexDigits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hexDigits[(bytes[i] >> 4) & 0x0f];
+            out[i * 2 + 1] = hexDigits[bytes[i] & 0x0f];
+        }
+
+        return new String(out);
+    }
+
+    /**
+     * Decides how to compress the request body, if compression is enabled. In auto mode, the
+     * files are sampled to find the ones which are not worth compressing. This is done only
+     * once, so the retries don't have to sample the files again.
+     */
+    private void prepareCompression() {
+        if (compressionPrepared)
+            return;
+
+        compressionPrepared = true;
+        contentEncoding = httpParams.contentEncoding;
+
+        if (contentEncoding == null)
+            return;
+
+        if (httpParams.autoCompression) {
+            incompressibleFiles = new HashSet<>();
+
+            for (UploadFile file : params.files) {
+                if (!CompressionSampler.isCompressible(file, service)) {
+                    incompressibleFiles.add(file);
+                }
+            }
+
+            if (!params.files.isEmpty() && incompressibleFiles.size() == params.files.size()) {
+                Logger.debug(LOG_TAG, "Files of upload with ID " + params.id
+                        + " are not compressible, sending them uncompressed");
+                contentEncoding = null;
+                return;
+            }
+        }
+
+        httpParams.addHeader("Content-Encoding", contentEncoding);
+    }
+
+    /**
+     * Called when the server response has been received, before broadcasting the completion.
+     * Override it to check the response and throw an exception to retry the upload.
+     * Does nothing by default.
+     * @param response server response
+     * @throws Exception if the upload has to be retried
+     */
+    protected void checkResponse(ServerResponse response) throws Exception {
+    }
+
     /**
      * Implement in subclasses to provide the expected upload in the progress notifications.
      * @return The expected size of the http request body.
@@ -104,6 +532,19 @@ public abstract class HttpUploadTask extends UploadTask
      */
     protected abstract long getBodyLength() throws UnsupportedEncodingException;
 
+    @Override
+    public long getEstimatedTotalBytes() {
+        // already computed in init when using the single notification
+        if (totalBytes > 0)
+            return totalBytes;
+
+        try {
+            return getBodyLength();
+        } catch (UnsupportedEncodingException exc) {
+            return super.getEstimatedTotalBytes();
+        }
+    }
+
     // BodyWriter.OnStreamWriteListener methods implementation
 
     @Override
@@ -113,6 +554,13 @@ public abstract class HttpUploadTask extends UploadTask
 
     @Override
     public void onBytesWritten(int bytesWritten) {
+        reportTransferredBytes(bytesWritten);
+
+        CompressingBodyWriter writer = compressingBodyWriter;
+        if (writer != null) {
+            setCompressedBytes(writer.getCompressedBytes());
+        }
+
         uploadedBytes += bytesWritten;
         broadcastProgress(uploadedBytes, totalBytes);
     }
@@ -4,6 +4,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * Class which contains specific parameters for HTTP uploads.
@@ -17,6 +18,13 @@ public final class HttpUploadTaskParameters implements Parcelable {
     public String customUserAgent;
     public String method = "POST";
     public boolean usesFixedLengthStreamingMode = true;
+    public String contentEncoding = null;
+    public boolean autoCompression = false;
+    public String digestAlgorithm = null;
+    public String digestResponseHeader = null;
+    public boolean deduplicate = false;
+    public String deduplicationPreflightMethod = null;
+    public String deltaDestination = null;
     private ArrayList<NameValue> requestHeaders = new ArrayList<>(10);
     private ArrayList<NameValue> requestParameters = new ArrayList<>(10);
 
@@ -44,6 +52,13 @@ public final class HttpUploadTaskParameters implements Parcelable {
         parcel.writeString(method);
         parcel.writeString(customUserAgent);
         parcel.writeByte((byte) (usesFixedLengthStreamingMode ? 1 : 0));
+        parcel.writeString(contentEncoding);
+        parcel.writeByte((byte) (autoCompression ? 1 : 0));
+        parcel.writeString(digestAlgorithm);
+        parcel.writeString(digestResponseHeader);
+        parcel.writeByte((byte) (deduplicate ? 1 : 0));
+        parcel.writeString(deduplicationPreflightMethod);
+        parcel.writeString(deltaDestination);
         parcel.writeList(requestHeaders);
         parcel.writeList(requestParameters);
     }
@@ -52,6 +67,13 @@ public final class HttpUploadTaskParameters implements Parcelable {
         method = in.readString();
         customUserAgent = in.readString();
         usesFixedLengthStreamingMode = in.readByte() == 1;
+        contentEncoding = in.readString();
+        autoCompression = in.readByte() == 1;
+        digestAlgorithm = in.readString();
+        digestResponseHeader = in.readString();
+        deduplicate = in.readByte() == 1;
+        deduplicationPreflightMethod = in.readString();
+        deltaDestination = in.readString();
         in.readList(requestHeaders, NameValue.class.getClassLoader());
         in.readList(requestParameters, NameValue.class.getClassLoader());
     }
@@ -70,6 +92,18 @@ public final class HttpUploadTaskParameters implements Parcelable {
         return this;
     }
 
+    public HttpUploadTaskParameters removeHeader(String name) {
+        Iterator<NameValue> iterator = requestHeaders.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().getName().equalsIgnoreCase(name)) {
+                iterator.remove();
+            }
+        }
+
+        return this;
+    }
+
     public ArrayList<NameValue> getRequestHeaders() {
         return requestHeaders;
     }
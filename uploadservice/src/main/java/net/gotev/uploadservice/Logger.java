@@ -61,6 +61,10 @@ public class Logger {
                 && SingletonHolder.instance.mLogLevel.compareTo(level) <= 0;
     }
 
+    static boolean isDebugEnabled() {
+        return delegateIsDefinedAndLogLevelIsAtLeast(LogLevel.DEBUG);
+    }
+
     public static void error(String tag, String message) {
         if (delegateIsDefinedAndLogLevelIsAtLeast(LogLevel.ERROR)) {
             SingletonHolder.instance.mDelegate.get().error(tag, message);
@@ -5,6 +5,7 @@ import android.content.Intent;
 
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 
 /**
  * HTTP/Multipart upload request. This is the most common way to upload files on a server.
@@ -86,8 +87,32 @@ public class MultipartUploadRequest extends HttpUploadRequest<MultipartUploadReq
                                                   String fileName, String contentType)
             throws FileNotFoundException, IllegalArgumentException {
 
-        UploadFile file = new UploadFile(filePath);
-        filePath = file.getPath();
+        return addFile(new UploadFile(filePath), parameterName, fileName, contentType);
+    }
+
+    /**
+     * Adds in-memory content to this upload request, as a file. The buffer is not copied, so
+     * don't modify it until the upload is finished. See
+     * {@link UploadFile#fromBuffer(ByteBuffer, String, String)}.
+     *
+     * @param buffer content to upload, from its position to its limit
+     * @param parameterName Name of the form parameter that will contain file's data
+     * @param fileName File name seen by the server side script
+     * @param contentType Content type of the file. If null or empty,
+     *                    {@code application/octet-stream} will be used
+     * @throws IllegalArgumentException if one or more parameters are not valid
+     * @return {@link MultipartUploadRequest}
+     */
+    public MultipartUploadRequest addFileToUpload(ByteBuffer buffer, String parameterName,
+                                                  String fileName, String contentType)
+            throws IllegalArgumentException {
+        return addFile(UploadFile.fromBuffer(buffer, fileName, contentType), parameterName,
+                       fileName, contentType);
+    }
+
+    private MultipartUploadRequest addFile(UploadFile file, String parameterName,
+                                           String fileName, String contentType) {
+        String filePath = file.getPath();
 
         if (parameterName == null || "".equals(parameterName)) {
             throw new IllegalArgumentException("Please specify parameterName value for file: "
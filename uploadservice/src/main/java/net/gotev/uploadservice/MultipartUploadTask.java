@@ -4,6 +4,7 @@ import android.content.Intent;
 
 import net.gotev.uploadservice.http.BodyWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
@@ -29,20 +30,27 @@ public class MultipartUploadTask extends HttpUploadTask {
     protected static final String PROPERTY_CONTENT_TYPE = "httpContentType";
     protected static final String PROPERTY_PARAM_NAME = "httpParamName";
 
+    private static final byte[] NEW_LINE_BYTES = NEW_LINE.getBytes(US_ASCII);
+
+    private String boundary;
     private byte[] boundaryBytes;
-    private byte[] trailerBytes;
     private Charset charset;
 
+    // encoded once and reused for every upload attempt
+    private byte[] parametersBytes;
+    private byte[][] fileHeadersBytes;
+    private byte[] trailerBytes;
+
     @Override
     protected void init(UploadService service, Intent intent) throws IOException {
-        super.init(service, intent);
-
-        String boundary = BOUNDARY_SIGNATURE + System.nanoTime();
+        // the boundary is needed by getBodyLength, which may be called by super.init
+        boundary = BOUNDARY_SIGNATURE + System.nanoTime();
         boundaryBytes = (TWO_HYPHENS + boundary + NEW_LINE).getBytes(US_ASCII);
-        trailerBytes = (TWO_HYPHENS + boundary + TWO_HYPHENS + NEW_LINE).getBytes(US_ASCII);
         charset = intent.getBooleanExtra(PARAM_UTF8_CHARSET, false) ?
                 Charset.forName("UTF-8") : US_ASCII;
 
+        super.init(service, intent);
+
         if (params.files.size() <= 1) {
             httpParams.addHeader("Connection", "close");
         } else {
@@ -54,7 +62,15 @@ public class MultipartUploadTask extends HttpUploadTask {
 
     @Override
     protected long getBodyLength() throws UnsupportedEncodingException {
-        return (getRequestParametersLength() + getFilesLength() + trailerBytes.length);
+        encodeParts();
+
+        long total = parametersBytes.length + trailerBytes.length;
+
+        for (int i = 0; i < fileHeadersBytes.length; i++) {
+            total += fileHeadersBytes[i].length + params.files.get(i).length(service);
+        }
+
+        return total;
     }
 
     @Override
@@ -62,89 +78,78 @@ public class MultipartUploadTask extends HttpUploadTask {
         //reset uploaded bytes when the body is ready to be written
         //because sometimes this gets invoked when network changes
         uploadedBytes = 0;
-        writeRequestParameters(bodyWriter);
+        encodeParts();
+
+        // all the request parameters are written at once
+        if (parametersBytes.length > 0) {
+            bodyWriter.write(parametersBytes);
+            uploadedBytes += parametersBytes.length;
+            broadcastProgress(uploadedBytes, totalBytes);
+        }
+
         writeFiles(bodyWriter);
+
         bodyWriter.write(trailerBytes);
         uploadedBytes += trailerBytes.length;
         broadcastProgress(uploadedBytes, totalBytes);
     }
 
-    private long getFilesLength() throws UnsupportedEncodingException {
-        long total = 0;
-
-        for (UploadFile file : params.files) {
-            total += getTotalMultipartBytes(file);
+    /**
+     * Encodes all the boundaries, the request parameters and the file part headers, if not
+     * already done. The new line which ends each file part is encoded together with the
+     * header of the next part (or with the trailer), so each one is written with a single write.
+     */
+    private void encodeParts() {
+        if (parametersBytes != null)
+            return;
+
+        ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+        for (final NameValue parameter : httpParams.getRequestParameters()) {
+            write(parameters, boundaryBytes);
+            write(parameters, ("Content-Disposition: form-data; name=\"" + parameter.getName() + "\""
+                    + NEW_LINE + NEW_LINE + parameter.getValue() + NEW_LINE).getBytes(charset));
         }
 
-        return total;
-    }
-
-    private long getRequestParametersLength() throws UnsupportedEncodingException {
-        long parametersBytes = 0;
+        byte[][] fileHeaders = new byte[params.files.size()][];
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        for (int i = 0; i < fileHeaders.length; i++) {
+            UploadFile file = params.files.get(i);
+            header.reset();
 
-        if (!httpParams.getRequestParameters().isEmpty()) {
-            for (final NameValue parameter : httpParams.getRequestParameters()) {
-                // the bytes needed for every parameter are the sum of the boundary bytes
-                // and the bytes occupied by the parameter
-                parametersBytes += boundaryBytes.length + getMultipartBytes(parameter).length;
+            if (i > 0) {
+                write(header, NEW_LINE_BYTES);
             }
+            write(header, boundaryBytes);
+            write(header, ("Content-Disposition: form-data; name=\"" +
+                    file.getProperty(PROPERTY_PARAM_NAME) + "\"; filename=\"" +
+                    file.getProperty(PROPERTY_REMOTE_FILE_NAME) + "\"" + NEW_LINE +
+                    "Content-Type: " + file.getProperty(PROPERTY_CONTENT_TYPE) +
+                    NEW_LINE + NEW_LINE).getBytes(charset));
+
+            fileHeaders[i] = header.toByteArray();
         }
 
-        return parametersBytes;
+        trailerBytes = ((fileHeaders.length > 0 ? NEW_LINE : "")
+                + TWO_HYPHENS + boundary + TWO_HYPHENS + NEW_LINE).getBytes(US_ASCII);
+        fileHeadersBytes = fileHeaders;
+        parametersBytes = parameters.toByteArray();
     }
 
-    private byte[] getMultipartBytes(NameValue parameter) throws UnsupportedEncodingException {
-        return ("Content-Disposition: form-data; name=\"" + parameter.getName() + "\""
-                + NEW_LINE + NEW_LINE + parameter.getValue() + NEW_LINE).getBytes(charset);
-    }
-
-    private byte[] getMultipartHeader(UploadFile file)
-            throws UnsupportedEncodingException {
-        String header = "Content-Disposition: form-data; name=\"" +
-                file.getProperty(PROPERTY_PARAM_NAME) + "\"; filename=\"" +
-                file.getProperty(PROPERTY_REMOTE_FILE_NAME) + "\"" + NEW_LINE +
-                "Content-Type: " + file.getProperty(PROPERTY_CONTENT_TYPE) +
-                NEW_LINE + NEW_LINE;
-
-        return header.getBytes(charset);
-    }
-
-    private long getTotalMultipartBytes(UploadFile file)
-            throws UnsupportedEncodingException {
-        return boundaryBytes.length + getMultipartHeader(file).length + file.length(service)
-                + NEW_LINE.getBytes(charset).length;
-    }
-
-    private void writeRequestParameters(BodyWriter bodyWriter) throws IOException {
-        if (!httpParams.getRequestParameters().isEmpty()) {
-            for (final NameValue parameter : httpParams.getRequestParameters()) {
-                bodyWriter.write(boundaryBytes);
-                byte[] formItemBytes = getMultipartBytes(parameter);
-                bodyWriter.write(formItemBytes);
-
-                uploadedBytes += boundaryBytes.length + formItemBytes.length;
-                broadcastProgress(uploadedBytes, totalBytes);
-            }
-        }
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
     }
 
     private void writeFiles(BodyWriter bodyWriter) throws IOException {
-        for (UploadFile file : params.files) {
+        for (int i = 0; i < fileHeadersBytes.length; i++) {
             if (!shouldContinue)
                 break;
 
-            bodyWriter.write(boundaryBytes);
-            byte[] headerBytes = getMultipartHeader(file);
+            byte[] headerBytes = fileHeadersBytes[i];
             bodyWriter.write(headerBytes);
-
-            uploadedBytes += boundaryBytes.length + headerBytes.length;
+            uploadedBytes += headerBytes.length;
             broadcastProgress(uploadedBytes, totalBytes);
 
-            bodyWriter.writeStream(file.getStream(service), this);
-
-            byte[] newLineBytes = NEW_LINE.getBytes(charset);
-            bodyWriter.write(newLineBytes);
-            uploadedBytes += newLineBytes.length;
+            bodyWriter.writeFile(params.files.get(i), service, this, getBandwidthLimiter());
         }
     }
 
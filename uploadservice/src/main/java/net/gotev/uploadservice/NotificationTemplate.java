@@ -0,0 +1,109 @@
+package net.gotev.uploadservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Notification text with placeholders (see {@link Placeholders}), parsed once into a list of
+ * literal parts and placeholders. When rendered, only the values of the placeholders which
+ * appear in the text are computed. Parsed templates are cached, as the same few texts are
+ * rendered on every notification update.
+ *
+ * @author Aleksandar Gotev
+ */
+final class NotificationTemplate {
+
+    private static final int MAX_CACHED_TEMPLATES = 64;
+    private static final Map<String, NotificationTemplate> cache = new ConcurrentHashMap<>();
+
+    // each part is either a literal String or a Placeholders.Resolver
+    private final Object[] parts;
+
+    private NotificationTemplate(Object[] parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Gets the parsed template of a text.
+     * @param text text with placeholders
+     * @return template
+     */
+    static NotificationTemplate get(String text) {
+        NotificationTemplate template = cache.get(text);
+
+        if (template == null) {
+            template = parse(text);
+
+            if (cache.size() >= MAX_CACHED_TEMPLATES) {
+                cache.clear();
+            }
+            cache.put(text, template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Discards the parsed templates. Called when the placeholders change.
+     */
+    static void clearCache() {
+        cache.clear();
+    }
+
+    private static NotificationTemplate parse(String text) {
+        List<Object> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+
+        while (position < text.length()) {
+            int start = text.indexOf(Placeholders.PREFIX, position);
+            int end = start < 0 ? -1 : text.indexOf(Placeholders.SUFFIX, start + Placeholders.PREFIX.length());
+
+            if (end < 0) {
+                literal.append(text, position, text.length());
+                break;
+            }
+
+            end += Placeholders.SUFFIX.length();
+            Placeholders.Resolver resolver = Placeholders.getResolver(text.substring(start, end));
+
+            if (resolver == null) {
+                // not a known placeholder, keep it as it is
+                literal.append(text, position, start + Placeholders.PREFIX.length());
+                position = start + Placeholders.PREFIX.length();
+                continue;
+            }
+
+            literal.append(text, position, start);
+            if (literal.length() > 0) {
+                parts.add(literal.toString());
+                literal.setLength(0);
+            }
+            parts.add(resolver);
+            position = end;
+        }
+
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+        }
+
+        return new NotificationTemplate(parts.toArray());
+    }
+
+    /**
+     * Appends the text with the placeholders replaced.
+     * @param out where to append the text
+     * @param uploadInfo upload information data
+     */
+    void render(StringBuilder out, UploadInfo uploadInfo) {
+        for (Object part : parts) {
+            if (part instanceof String) {
+                out.append((String) part);
+            } else {
+                ((Placeholders.Resolver) part).appendTo(out, uploadInfo);
+            }
+        }
+    }
+}
@@ -1,11 +1,28 @@
 package net.gotev.uploadservice;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Contains all the placeholders that is possible to use in the notification text strings.
+ * You can also add your own placeholders with {@link Placeholders#register(String, Resolver)}.
  * @author Aleksandar Gotev
  */
 public class Placeholders {
 
+    /**
+     * Computes the value of a placeholder.
+     */
+    public interface Resolver {
+        /**
+         * Appends the value of the placeholder.
+         * @param out where to append the value
+         * @param uploadInfo upload information data
+         */
+        void appendTo(StringBuilder out, UploadInfo uploadInfo);
+    }
+
     /**
      * Placeholder to display the total elapsed upload time in minutes and seconds.
      * E.g.: 34s, 4m 33s, 45m 21s
@@ -35,6 +52,117 @@ public class Placeholders {
      */
     public static final String TOTAL_FILES = "[[TOTAL_FILES]]";
 
+    /**
+     * Placeholder to display the estimated remaining time in minutes and seconds, based on the
+     * average upload rate. E.g.: 34s, 4m 33s. Displays "--" until the rate is known.
+     */
+    public static final String ETA = "[[ETA]]";
+
+    /**
+     * Placeholder to display the number of bytes left to upload. E.g.: 734 KB, 12.5 MB
+     */
+    public static final String BYTES_REMAINING = "[[BYTES_REMAINING]]";
+
+    static final String PREFIX = "[[";
+    static final String SUFFIX = "]]";
+
+    private static final Map<String, Resolver> resolvers = new ConcurrentHashMap<>();
+
+    static {
+        resolvers.put(ELAPSED_TIME, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                appendTime(out, uploadInfo.getElapsedTime() / 1000);
+            }
+        });
+
+        resolvers.put(UPLOAD_RATE, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                double uploadRate = uploadInfo.getUploadRate();
+
+                if (uploadRate < 1) {
+                    out.append((int) (uploadRate * 1000)).append(" bit/s");
+                } else if (uploadRate >= 1024) {
+                    out.append((int) (uploadRate / 1024)).append(" Mbit/s");
+                } else {
+                    out.append((int) uploadRate).append(" Kbit/s");
+                }
+            }
+        });
+
+        resolvers.put(PROGRESS, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                out.append(uploadInfo.getProgressPercent()).append('%');
+            }
+        });
+
+        resolvers.put(UPLOADED_FILES, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                out.append(uploadInfo.getSuccessfullyUploadedFilesCount());
+            }
+        });
+
+        resolvers.put(TOTAL_FILES, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                out.append(uploadInfo.getTotalFiles());
+            }
+        });
+
+        resolvers.put(ETA, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                long elapsedTime = uploadInfo.getElapsedTime();
+                long uploadedBytes = uploadInfo.getUploadedBytes();
+
+                // wait at least a second to stabilize the upload rate a little bit
+                if (elapsedTime < 1000 || uploadedBytes <= 0) {
+                    out.append("--");
+                    return;
+                }
+
+                long remainingBytes = Math.max(0, uploadInfo.getTotalBytes() - uploadedBytes);
+                appendTime(out, (long) ((double) remainingBytes * elapsedTime / uploadedBytes / 1000));
+            }
+        });
+
+        resolvers.put(BYTES_REMAINING, new Resolver() {
+            @Override
+            public void appendTo(StringBuilder out, UploadInfo uploadInfo) {
+                appendBytes(out, Math.max(0, uploadInfo.getTotalBytes() - uploadInfo.getUploadedBytes()));
+            }
+        });
+    }
+
+    /**
+     * Adds a custom placeholder, or replaces an existing one.
+     * @param placeholder placeholder, in the form [[NAME]]
+     * @param resolver resolver which computes the value of the placeholder
+     */
+    public static void register(String placeholder, Resolver resolver) {
+        if (placeholder == null || !placeholder.startsWith(PREFIX) || !placeholder.endsWith(SUFFIX)
+                || placeholder.length() <= PREFIX.length() + SUFFIX.length())
+            throw new IllegalArgumentException("placeholder must be in the form " + PREFIX + "NAME" + SUFFIX);
+
+        if (resolver == null)
+            throw new IllegalArgumentException("resolver must not be null");
+
+        resolvers.put(placeholder, resolver);
+        NotificationTemplate.clearCache();
+    }
+
+    /**
+     * Gets the resolver of a placeholder.
+     * @param placeholder placeholder, in the form [[NAME]]
+     * @return resolver or null if the placeholder does not exist
+     */
+    static Resolver getResolver(String placeholder) {
+        return resolvers.get(placeholder);
+    }
+
     /**
      * Replace placeholders in a string.
      * @param string string in which to replace placeholders
@@ -45,13 +173,36 @@ public class Placeholders {
         if (string == null || string.isEmpty())
             return "";
 
-        String tmp;
-        tmp = string.replace(ELAPSED_TIME, uploadInfo.getElapsedTimeString());
-        tmp = tmp.replace(PROGRESS, uploadInfo.getProgressPercent() + "%");
-        tmp = tmp.replace(UPLOAD_RATE, uploadInfo.getUploadRateString());
-        tmp = tmp.replace(UPLOADED_FILES, Integer.toString(uploadInfo.getSuccessfullyUploadedFiles().size()));
-        tmp = tmp.replace(TOTAL_FILES, Integer.toString(uploadInfo.getTotalFiles()));
+        StringBuilder out = new StringBuilder(string.length() + 16);
+        NotificationTemplate.get(string).render(out, uploadInfo);
+        return out.toString();
+    }
+
+    private static void appendTime(StringBuilder out, long totalSeconds) {
+        if (totalSeconds <= 0) {
+            out.append("0s");
+            return;
+        }
+
+        long minutes = totalSeconds / 60;
+        long seconds = totalSeconds - 60 * minutes;
+
+        if (minutes > 0) {
+            out.append(minutes).append("m ");
+        }
+
+        out.append(seconds).append('s');
+    }
 
-        return tmp;
+    private static void appendBytes(StringBuilder out, long bytes) {
+        if (bytes < 1024) {
+            out.append(bytes).append(" B");
+        } else if (bytes < 1024 * 1024) {
+            out.append(bytes / 1024).append(" KB");
+        } else if (bytes < 1024L * 1024 * 1024) {
+            out.append(String.format(Locale.US, "%.1f MB", bytes / 1048576.0));
+        } else {
+            out.append(String.format(Locale.US, "%.2f GB", bytes / 1073741824.0));
+        }
     }
 }
@@ -0,0 +1,250 @@
+package net.gotev.uploadservice;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches the progress of all the running upload tasks from a single thread.
+ * Tasks only store their progress counters, without locking, and every
+ * {@link UploadService#PROGRESS_REPORT_INTERVAL} milliseconds the dispatcher reads them and
+ * emits the progress of the tasks which have changed enough since their last update: at least
+ * {@link UploadService#PROGRESS_MIN_PERCENT_STEP} percent, or anything if the last update is older
+ * than {@link UploadService#PROGRESS_MAX_REPORT_INTERVAL}. Updates for delegates are posted to the
+ * main thread in a single batch for each tick.
+ *
+ * Terminal events (completed, error, cancelled) are not dispatched from here. Before emitting
+ * one, the task is removed with {@link ProgressDispatcher#remove(UploadTask)}, which waits only if
+ * the progress of that same task is being dispatched, and flushes the last progress not
+ * dispatched yet, so a progress update is never lost or delivered after the terminal event.
+ *
+ * @author Aleksandar Gotev
+ */
+final class ProgressDispatcher implements Runnable {
+
+    private static final String LOG_TAG = ProgressDispatcher.class.getSimpleName();
+
+    private static final class TaskProgress {
+        final UploadTask task;
+
+        // guarded by this TaskProgress, so the progress of a task is never dispatched while
+        // it's being removed, without blocking the other tasks
+        long lastUploadedBytes = -1;
+        long lastTotalBytes = -1;
+        long lastDispatchTime = 0;
+        boolean removed = false;
+
+        // delegate update waiting in a batch posted to the main thread
+        Runnable queuedDelegateUpdate = null;
+
+        TaskProgress(UploadTask task) {
+            this.task = task;
+        }
+    }
+
+    private final Handler mainThreadHandler;
+    private final ScheduledThreadPoolExecutor executor;
+
+    // guarded by this
+    private final Map<UploadTask, TaskProgress> tasks = new LinkedHashMap<>();
+    private ScheduledFuture<?> ticks = null;
+
+    // tasks to dispatch in the current tick, accessed only from the dispatcher thread
+    private final ArrayList<TaskProgress> currentTasks = new ArrayList<>();
+
+    ProgressDispatcher(UploadService service) {
+        this.mainThreadHandler = new Handler(service.getMainLooper());
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, LOG_TAG);
+            }
+        });
+    }
+
+    /**
+     * Starts dispatching the progress of a task.
+     * @param task upload task
+     */
+    synchronized void add(UploadTask task) {
+        if (executor.isShutdown() || tasks.containsKey(task))
+            return;
+
+        tasks.put(task, new TaskProgress(task));
+
+        if (ticks == null) {
+            long interval = Math.max(1, UploadService.PROGRESS_REPORT_INTERVAL);
+            ticks = executor.scheduleWithFixedDelay(this, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops dispatching the progress of a task. If the progress of the task is being dispatched
+     * right now, this waits until it's done. If the last progress of the task has not been
+     * dispatched yet, e.g. the 100% reached between two ticks, it's dispatched right away, so
+     * it's delivered before the terminal event.
+     * @param task upload task
+     */
+    void remove(UploadTask task) {
+        TaskProgress progress;
+
+        synchronized (this) {
+            progress = tasks.remove(task);
+        }
+
+        if (progress == null)
+            return;
+
+        synchronized (progress) {
+            progress.removed = true;
+
+            // a delegate update still waiting in a batch is posted here, so it's never
+            // delivered after the terminal event
+            Runnable delegateUpdate = progress.queuedDelegateUpdate;
+            progress.queuedDelegateUpdate = null;
+
+            long uploadedBytes = task.getProgressUploadedBytes();
+            long totalBytes = task.getProgressTotalBytes();
+
+            if (uploadedBytes != progress.lastUploadedBytes || totalBytes != progress.lastTotalBytes) {
+                try {
+                    Runnable lastUpdate = task.dispatchProgress(uploadedBytes, totalBytes,
+                                                                System.currentTimeMillis());
+                    if (lastUpdate != null) {
+                        delegateUpdate = lastUpdate;
+                    }
+                } catch (Throwable exc) {
+                    Logger.error(LOG_TAG, "Error while dispatching last progress of upload with ID: "
+                            + task.params.id, exc);
+                }
+            }
+
+            if (delegateUpdate != null) {
+                mainThreadHandler.post(delegateUpdate);
+            }
+        }
+    }
+
+    /**
+     * Stops the dispatcher thread.
+     */
+    synchronized void shutdown() {
+        tasks.clear();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        // the progress is dispatched without holding the dispatcher lock, so slow notification
+        // updates, broadcasts or journal writes don't block the tasks being added or removed
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                ticks.cancel(false);
+                ticks = null;
+                return;
+            }
+
+            currentTasks.clear();
+            for (TaskProgress progress : tasks.values()) {
+                currentTasks.add(progress);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<TaskProgress> batch = null;
+
+        for (int i = 0; i < currentTasks.size(); i++) {
+            TaskProgress progress = currentTasks.get(i);
+            UploadTask task = progress.task;
+            boolean failed = false;
+
+            synchronized (progress) {
+                if (progress.removed)
+                    continue;
+
+                long uploadedBytes = task.getProgressUploadedBytes();
+                long totalBytes = task.getProgressTotalBytes();
+
+                if (!shouldDispatch(progress, uploadedBytes, totalBytes, now))
+                    continue;
+
+                progress.lastUploadedBytes = uploadedBytes;
+                progress.lastTotalBytes = totalBytes;
+                progress.lastDispatchTime = now;
+
+                try {
+                    Runnable delegateUpdate = task.dispatchProgress(uploadedBytes, totalBytes, now);
+
+                    if (delegateUpdate != null) {
+                        if (batch == null) {
+                            batch = new ArrayList<>(currentTasks.size());
+                        }
+                        if (progress.queuedDelegateUpdate == null) {
+                            batch.add(progress);
+                        }
+                        progress.queuedDelegateUpdate = delegateUpdate;
+                    }
+                } catch (Throwable exc) {
+                    Logger.error(LOG_TAG, "Error while dispatching progress of upload with ID: "
+                            + task.params.id, exc);
+                    failed = true;
+                }
+            }
+
+            if (failed) {
+                synchronized (this) {
+                    if (tasks.get(task) == progress) {
+                        tasks.remove(task);
+                    }
+                }
+            }
+        }
+
+        currentTasks.clear();
+
+        if (batch != null) {
+            final List<TaskProgress> updates = batch;
+            mainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (TaskProgress progress : updates) {
+                        Runnable delegateUpdate;
+
+                        synchronized (progress) {
+                            delegateUpdate = progress.queuedDelegateUpdate;
+                            progress.queuedDelegateUpdate = null;
+                        }
+
+                        // null if it has already been posted when the task has been removed
+                        if (delegateUpdate != null) {
+                            delegateUpdate.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean shouldDispatch(TaskProgress progress, long uploadedBytes,
+                                          long totalBytes, long now) {
+        if (uploadedBytes == progress.lastUploadedBytes && totalBytes == progress.lastTotalBytes)
+            return false;
+
+        if (progress.lastUploadedBytes < 0 || totalBytes != progress.lastTotalBytes
+                || uploadedBytes >= totalBytes || totalBytes <= 0)
+            return true;
+
+        if (now - progress.lastDispatchTime >= UploadService.PROGRESS_MAX_REPORT_INTERVAL)
+            return true;
+
+        double percentChange = Math.abs(uploadedBytes - progress.lastUploadedBytes) * 100.0 / totalBytes;
+        return percentChange >= UploadService.PROGRESS_MIN_PERCENT_STEP;
+    }
+}
@@ -0,0 +1,164 @@
+package net.gotev.uploadservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Immutable copy of a list, which is still an {@link ArrayList}, so it can be shared between
+ * the {@link UploadInfo} snapshots of a task. The methods which modify it throw
+ * {@link UnsupportedOperationException}. It's never returned by the public API, which returns
+ * mutable copies of it.
+ *
+ * @param <E> type of the elements
+ * @author Aleksandar Gotev
+ */
+final class ReadOnlyArrayList<E> extends ArrayList<E> {
+
+    ReadOnlyArrayList(Collection<? extends E> elements) {
+        super(elements);
+    }
+
+    @Override
+    public boolean add(E element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(int index, E element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> elements) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> elements) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public E remove(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void ensureCapacity(int minCapacity) {
+        // the list never grows
+    }
+
+    @Override
+    public void trimToSize() {
+        // the list is already trimmed by the copy constructor
+    }
+
+    // the iterators and the sub lists of ArrayList may write its elements directly
+
+    @Override
+    public Iterator<E> iterator() {
+        return new ReadOnlyIterator<>(super.listIterator(0));
+    }
+
+    @Override
+    public ListIterator<E> listIterator() {
+        return new ReadOnlyIterator<>(super.listIterator(0));
+    }
+
+    @Override
+    public ListIterator<E> listIterator(int index) {
+        return new ReadOnlyIterator<>(super.listIterator(index));
+    }
+
+    @Override
+    public List<E> subList(int fromIndex, int toIndex) {
+        return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+    }
+
+    private static final class ReadOnlyIterator<E> implements ListIterator<E> {
+        private final ListIterator<E> iterator;
+
+        ReadOnlyIterator(ListIterator<E> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public E next() {
+            return iterator.next();
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return iterator.hasPrevious();
+        }
+
+        @Override
+        public E previous() {
+            return iterator.previous();
+        }
+
+        @Override
+        public int nextIndex() {
+            return iterator.nextIndex();
+        }
+
+        @Override
+        public int previousIndex() {
+            return iterator.previousIndex();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void set(E element) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(E element) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package net.gotev.uploadservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records on the device storage, used by {@link UploadJournal} and
+ * {@link UploadDeduplicationIndex}. Each record is checksummed, so a torn write of the last
+ * record, e.g. when the process gets killed, is detected and discarded when the log is loaded.
+ * The log starts with a version number, and logs written with another version are discarded.
+ *
+ * Instances are not thread safe, so use each log from a single thread.
+ *
+ * @author Aleksandar Gotev
+ */
+final class RecordLog {
+
+    private static final String LOG_TAG = RecordLog.class.getSimpleName();
+
+    // File format: [int version][records]
+    // Record format: [int payload length][long CRC32 of payload][payload]
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    /**
+     * Receives the records read from the log.
+     */
+    interface Reader {
+        /**
+         * Called for each valid record, in the order in which they have been appended.
+         * @param offset offset of the record in the log, see {@link RecordLog#read(long)}
+         * @param payload record payload
+         * @throws IOException if the payload is not valid
+         */
+        void onRecord(long offset, DataInputStream payload) throws IOException;
+    }
+
+    /**
+     * Writes the records which have to be kept when the log is compacted.
+     */
+    interface Compaction {
+        /**
+         * Writes the live records in the new log.
+         * @param writer writer of the new log
+         * @throws IOException if an error occurs while writing
+         */
+        void writeLiveRecords(Writer writer) throws IOException;
+    }
+
+    /**
+     * Writes records in a log file.
+     */
+    static final class Writer {
+        private final DataOutputStream output;
+        private long position;
+
+        private Writer(File file, int version) throws IOException {
+            position = file.length();
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+
+            if (position == 0) {
+                output.writeInt(version);
+                position = HEADER_SIZE;
+            }
+        }
+
+        /**
+         * Writes a record.
+         * @param payload record payload
+         * @return offset of the record in the log
+         * @throws IOException if an error occurs while writing
+         */
+        long write(byte[] payload) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            output.writeInt(payload.length);
+            output.writeLong(crc.getValue());
+            output.write(payload);
+
+            long offset = position;
+            position += RECORD_HEADER_SIZE + payload.length;
+            return offset;
+        }
+
+        private void flush() throws IOException {
+            output.flush();
+        }
+
+        private void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private final String name;
+    private final File file;
+    private final File compactFile;
+    private final int version;
+    private Writer writer;
+
+    /**
+     * Creates a new log.
+     * @param directory directory of the log file
+     * @param fileName name of the log file
+     * @param version version of the records format
+     */
+    RecordLog(File directory, String fileName, int version) {
+        this.name = fileName;
+        this.file = new File(directory, fileName);
+        this.compactFile = new File(directory, fileName + ".compact");
+        this.version = version;
+    }
+
+    /**
+     * Reads all the valid records of the log and truncates the invalid ones at its end.
+     * @param reader receives the records
+     * @return number of valid records
+     */
+    int load(Reader reader) {
+        if (!file.exists())
+            return 0;
+
+        int records = 0;
+        long validLength = 0;
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != version) {
+                Logger.info(LOG_TAG, "Discarding " + name + " written by another version");
+                input.close();
+                input = null;
+                file.delete();
+                return 0;
+            }
+
+            validLength = HEADER_SIZE;
+
+            while (true) {
+                int length = input.readInt();
+                long checksum = input.readLong();
+
+                if (length <= 0 || length > file.length())
+                    break;
+
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, length);
+                if (crc.getValue() != checksum)
+                    break;
+
+                reader.onRecord(validLength, new DataInputStream(new ByteArrayInputStream(bytes)));
+                records++;
+                validLength += RECORD_HEADER_SIZE + length;
+            }
+
+        } catch (EOFException ignored) {
+            // end of log or torn write of the last record
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while reading " + name, exc);
+
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        if (validLength < file.length()) {
+            Logger.info(LOG_TAG, "Truncating incomplete records at the end of " + name);
+            truncate(validLength);
+        }
+
+        return records;
+    }
+
+    /**
+     * Appends a record to the log.
+     * @param payload record payload
+     * @return offset of the record in the log, or -1 if it can't be written
+     */
+    long append(byte[] payload) {
+        try {
+            if (writer == null) {
+                writer = new Writer(file, version);
+            }
+
+            long offset = writer.write(payload);
+            writer.flush();
+            return offset;
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while writing " + name, exc);
+            close();
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a single record.
+     * @param offset offset of the record, got when it has been loaded or appended
+     * @return record payload
+     * @throws IOException if the record can't be read or it's not valid
+     */
+    byte[] read(long offset) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            input.seek(offset);
+            int length = input.readInt();
+            long checksum = input.readLong();
+
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > input.length())
+                throw new IOException("Invalid record at offset " + offset + " of " + name);
+
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            if (crc.getValue() != checksum)
+                throw new IOException("Corrupted record at offset " + offset + " of " + name);
+
+            return bytes;
+
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Rewrites the log keeping only the live records. The old log can still be read with
+     * {@link #read(long)} while the live records are written.
+     * @param compaction writes the live records
+     * @return true if the log has been compacted, false if an error occurred and the log
+     * has not been changed
+     */
+    boolean compact(Compaction compaction) {
+        close();
+        compactFile.delete();
+
+        Writer compactWriter = null;
+
+        try {
+            compactWriter = new Writer(compactFile, version);
+            compaction.writeLiveRecords(compactWriter);
+            compactWriter.close();
+            compactWriter = null;
+
+            if (!compactFile.renameTo(file)) {
+                throw new IOException("Unable to replace " + file.getAbsolutePath());
+            }
+
+            return true;
+
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while compacting " + name, exc);
+            if (compactWriter != null) {
+                try {
+                    compactWriter.close();
+                } catch (IOException ignored) { }
+            }
+            compactFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Closes the log file. It gets opened again when a new record is appended.
+     */
+    void close() {
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while closing " + name, exc);
+        }
+
+        writer = null;
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while truncating " + name, exc);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.gotev.uploadservice;
+
+/**
+ * Decides the order in which the waiting upload tasks are executed by {@link UploadService}.
+ * Set the policy to use in {@link UploadService#SCHEDULING_POLICY}.
+ *
+ * The scheduling key of each task is computed only once, when the task is queued for execution.
+ * Tasks with a lower key are executed first. Tasks with the same key are executed in the same
+ * order in which they have been queued. The keys of {@link #FIFO} and {@link #PRIORITY} are
+ * computed on the main thread, while the keys of the other policies are computed on a background
+ * thread, as they may need to read the files to upload.
+ *
+ * @author Aleksandar Gotev
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Computes the scheduling key of a task which is about to be queued for execution.
+     * @param task upload task
+     * @return scheduling key. Tasks with lower keys are executed first.
+     */
+    long getSchedulingKey(UploadTask task);
+
+    /**
+     * Executes the tasks in the same order in which they are queued. This is the default.
+     */
+    SchedulingPolicy FIFO = new SchedulingPolicy() {
+        @Override
+        public long getSchedulingKey(UploadTask task) {
+            return 0;
+        }
+    };
+
+    /**
+     * Executes first the tasks with the higher priority, set with
+     * {@link UploadRequest#setPriority(int)}.
+     */
+    SchedulingPolicy PRIORITY = new SchedulingPolicy() {
+        @Override
+        public long getSchedulingKey(UploadTask task) {
+            return -task.getPriority();
+        }
+    };
+
+    /**
+     * Executes first the tasks which have to upload less bytes, so small uploads don't wait
+     * behind big ones.
+     */
+    SchedulingPolicy SHORTEST_JOB_FIRST = new SchedulingPolicy() {
+        @Override
+        public long getSchedulingKey(UploadTask task) {
+            return task.getEstimatedTotalBytes();
+        }
+    };
+}
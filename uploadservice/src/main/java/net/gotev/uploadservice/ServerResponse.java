@@ -14,6 +14,7 @@ public class ServerResponse implements Parcelable {
     private int httpCode;
     private byte[] body;
     private LinkedHashMap<String, String> headers;
+    private String contentDigest;
 
     // This is used to regenerate the object.
     // All Parcelables must have a CREATOR that implements these two methods
@@ -61,6 +62,7 @@ public class ServerResponse implements Parcelable {
         body = new byte[in.readInt()];
         in.readByteArray(body);
         headers = (LinkedHashMap<String, String>) in.readSerializable();
+        contentDigest = in.readString();
     }
 
     @Override
@@ -69,6 +71,7 @@ public class ServerResponse implements Parcelable {
         parcel.writeInt(body.length);
         parcel.writeByteArray(body);
         parcel.writeSerializable(headers);
+        parcel.writeString(contentDigest);
     }
 
     @Override
@@ -113,4 +116,17 @@ public class ServerResponse implements Parcelable {
     public LinkedHashMap<String, String> getHeaders() {
         return headers;
     }
+
+    /**
+     * Gets the digest of the uploaded content, computed while uploading it.
+     * See {@link HttpUploadRequest#setContentDigest(String, String)}.
+     * @return hex string, or null if the digest has not been requested
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
 }
@@ -8,9 +8,11 @@ import android.media.AudioAttributes;
 import android.media.RingtoneManager;
 import android.os.Build;
 
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SingleNotification {
     // TODO annotations
@@ -51,20 +53,28 @@ public class SingleNotification {
 
         protected final LinkedList<Task> tasks = new LinkedList<Task>();
 
-        protected boolean addOrUpdateTask(UploadTask uploadTask, UploadStatus status) {
-            Task taskToUpdate = null;
-            for (Task logTask : tasks) {
-                if (logTask.uploadId == uploadTask.params.id) {
-                    taskToUpdate = logTask;
-                    break;
-                }
-            }
+        // index of the tasks by upload ID, so they are found without scanning the list
+        private final HashMap<String, Task> tasksById = new HashMap<String, Task>();
+
+        // aggregate values, updated incrementally each time a task changes
+        private final int[] filesByStatus = new int[UploadStatus.values().length];
+        private long totalBytes = 0;
+        private long uploadedBytes = 0;
+        private long totalSpeed = 0;
+
+        protected synchronized boolean addOrUpdateTask(UploadTask uploadTask, UploadStatus status) {
+            Task taskToUpdate = tasksById.get(uploadTask.params.id);
             boolean forceNotificationUpdate = taskToUpdate == null || status != taskToUpdate.status;
+
             if (taskToUpdate == null) {
                 taskToUpdate = new Task();
                 taskToUpdate.uploadId = uploadTask.params.id;
                 tasks.add(taskToUpdate);
+                tasksById.put(taskToUpdate.uploadId, taskToUpdate);
+            } else {
+                removeFromStats(taskToUpdate);
             }
+
             taskToUpdate.status = status;
             if (status == UploadStatus.WAITING || status == UploadStatus.UPLOADING) {
                 taskToUpdate.totalBytes = uploadTask.totalBytes;
@@ -73,49 +83,67 @@ public class SingleNotification {
                     taskToUpdate.fileRangeStart = ((BinaryUploadTask) uploadTask).getFileRangeStart();
                 }
                 taskToUpdate.runTime = status == UploadStatus.UPLOADING ?
-                    (new Date()).getTime() - uploadTask.startTime : 0;
+                    System.currentTimeMillis() - uploadTask.startTime : 0;
                 taskToUpdate.speed = taskToUpdate.runTime > 0 ?
                     taskToUpdate.uploadedBytes * 1000 / taskToUpdate.runTime : 0;
             }
+
+            addToStats(taskToUpdate);
             return forceNotificationUpdate;
         }
 
-        protected void clear() {
+        private void addToStats(Task task) {
+            updateStats(task, 1);
+        }
+
+        private void removeFromStats(Task task) {
+            updateStats(task, -1);
+        }
+
+        private void updateStats(Task task, int sign) {
+            filesByStatus[task.status.ordinal()] += sign;
+
+            if (task.status == UploadStatus.COMPLETED
+                || task.status == UploadStatus.UPLOADING
+                || task.status == UploadStatus.WAITING) {
+                totalBytes += sign * (task.totalBytes + task.fileRangeStart);
+                uploadedBytes += sign * (task.uploadedBytes + task.fileRangeStart);
+            }
+
+            if (task.status == UploadStatus.UPLOADING) {
+                totalSpeed += sign * task.speed;
+            }
+        }
+
+        protected synchronized void clear() {
             tasks.clear();
+            tasksById.clear();
+            Arrays.fill(filesByStatus, 0);
+            totalBytes = 0;
+            uploadedBytes = 0;
+            totalSpeed = 0;
         }
 
-        public LinkedList<Task> getTasks() {
-            return (LinkedList<Task>) tasks.clone();
+        public synchronized LinkedList<Task> getTasks() {
+            return new LinkedList<Task>(tasks);
         }
 
-        public Stats getStats() {
+        public synchronized Stats getStats() {
             Stats result = new Stats();
-            for (Task task : tasks) {
-                if (task.status == UploadStatus.COMPLETED
-                    || task.status == UploadStatus.UPLOADING
-                    || task.status == UploadStatus.WAITING) {
-                    result.totalBytes += task.totalBytes + task.fileRangeStart;
-                    result.uploadedBytes += task.uploadedBytes + task.fileRangeStart;
-                }
-                if (task.status == UploadStatus.COMPLETED) result.filesCompleted++;
-                else if (task.status == UploadStatus.UPLOADING) result.filesUploading++;
-                else if (task.status == UploadStatus.WAITING) result.filesWaiting++;
-                else if (task.status == UploadStatus.ERROR) result.filesFailed++;
-                else if (task.status == UploadStatus.CANCELLED) result.filesCancelled++;
-                if (task.status == UploadStatus.UPLOADING) {
-                    result.totalSpeed += task.speed;
-                }
-            }
+            result.totalBytes = totalBytes;
+            result.uploadedBytes = uploadedBytes;
+            result.filesCompleted = filesByStatus[UploadStatus.COMPLETED.ordinal()];
+            result.filesUploading = filesByStatus[UploadStatus.UPLOADING.ordinal()];
+            result.filesWaiting = filesByStatus[UploadStatus.WAITING.ordinal()];
+            result.filesFailed = filesByStatus[UploadStatus.ERROR.ordinal()];
+            result.filesCancelled = filesByStatus[UploadStatus.CANCELLED.ordinal()];
+            result.totalSpeed = totalSpeed;
             return result;
         }
 
-        public boolean hasRunningTasks() {
-            for (Task task : tasks) {
-                if (task.status == UploadStatus.UPLOADING || task.status == UploadStatus.WAITING) {
-                    return true;
-                }
-            }
-            return false;
+        public synchronized boolean hasRunningTasks() {
+            return filesByStatus[UploadStatus.UPLOADING.ordinal()] > 0
+                || filesByStatus[UploadStatus.WAITING.ordinal()] > 0;
         }
     }
 
@@ -123,7 +151,8 @@ public class SingleNotification {
     private final Delegate delegate;
     private final UploadLog uploadLog = new UploadLog();
     private NotificationManager notificationManager = null;
-    private long lastUpdateTime = 0;
+    private volatile long lastUpdateTime = 0;
+    private final ReentrantLock notificationLock = new ReentrantLock();
 
     private static final int progressNotificationId = 1498;
     private static final int completeNotificationId = 1499;
@@ -167,13 +196,20 @@ public class SingleNotification {
         }
     }
 
-    protected synchronized void update(UploadTask uploadTask, UploadStatus status) {
+    protected void update(UploadTask uploadTask, UploadStatus status) {
         boolean forceNotificationUpdate = uploadLog.addOrUpdateTask(uploadTask, status);
-        boolean inProgress = uploadLog.hasRunningTasks();
 
-        // update the notification not often than once in updateInterval, or when there was an important change
-        long currentTime = (new Date()).getTime();
-        if (forceNotificationUpdate || currentTime - lastUpdateTime >= updateInterval) {
+        // update the notification not often than once in updateInterval, or when there was an important change.
+        // Progress updates are skipped if another thread is already updating the notification
+        long currentTime = System.currentTimeMillis();
+        if (forceNotificationUpdate) {
+            notificationLock.lock();
+        } else if (currentTime - lastUpdateTime < updateInterval || !notificationLock.tryLock()) {
+            return;
+        }
+
+        try {
+            boolean inProgress = uploadLog.hasRunningTasks();
             Notification notification = build();
             if (notification != null) {
                 notificationManager.notify(
@@ -183,14 +219,18 @@ public class SingleNotification {
                 service.stopForeground(true);
             }
             lastUpdateTime = currentTime;
-        }
 
-        if (delegate.shouldResetStats(uploadLog)) {
-            uploadLog.clear();
+            synchronized (uploadLog) {
+                if (delegate.shouldResetStats(uploadLog)) {
+                    uploadLog.clear();
+                }
+            }
+        } finally {
+            notificationLock.unlock();
         }
     }
 
-    protected synchronized Notification build() {
+    protected Notification build() {
         UploadLog.Stats stats = uploadLog.getStats();
         boolean inProgress = uploadLog.hasRunningTasks();
         boolean completionNotification = false;
@@ -246,12 +286,20 @@ public class SingleNotification {
         }
 
         // call the delegate to modify default notification settings
-        boolean show = delegate.build(builder, uploadLog);
+        boolean show;
+        synchronized (uploadLog) {
+            show = delegate.build(builder, uploadLog);
+        }
 
         return show ? builder.build() : null;
     }
 
-    protected synchronized void startForeground() {
-        service.startForeground(progressNotificationId, build());
+    protected void startForeground() {
+        notificationLock.lock();
+        try {
+            service.startForeground(progressNotificationId, build());
+        } finally {
+            notificationLock.unlock();
+        }
     }
 }
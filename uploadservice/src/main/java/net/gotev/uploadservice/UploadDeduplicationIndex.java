@@ -0,0 +1,322 @@
+package net.gotev.uploadservice;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persistent index of the completed uploads, used to avoid uploading the same content again.
+ * Each entry maps the fingerprint of an upload request (see {@link HttpUploadTask}) to the digest
+ * of the uploaded content and to the response received from the server.
+ *
+ * Only the fingerprints, the digests and the position of the entries in the log on the device
+ * storage are kept in memory, so lookups are hash map accesses. The server responses are read
+ * from the log only when the same content is found. The least recently used entries are evicted
+ * when there are more than {@link UploadService#DEDUPLICATION_INDEX_MAX_ENTRIES}. All the disk
+ * I/O is performed on a single background thread. The log is loaded in background too, and
+ * lookups wait until it's loaded.
+ *
+ * @author Aleksandar Gotev
+ */
+final class UploadDeduplicationIndex {
+
+    private static final String LOG_TAG = UploadDeduplicationIndex.class.getSimpleName();
+
+    private static final String FILE_NAME = "uploadservice-dedup";
+    private static final int VERSION = 1;
+
+    /**
+     * Responses with a bigger body are not saved, to keep the index small.
+     */
+    static final int MAX_RESPONSE_BODY_SIZE = 64 * 1024;
+
+    /**
+     * Previous upload of the same content.
+     */
+    static final class Entry {
+        final String digest;
+
+        // offset of the record in the log, accessed only from the writer thread
+        private long offset;
+
+        private Entry(String digest, long offset) {
+            this.digest = digest;
+            this.offset = offset;
+        }
+    }
+
+    private final RecordLog log;
+    private final ScheduledThreadPoolExecutor writer;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    // guarded by itself, changed only from the writer thread
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > Math.max(1, UploadService.DEDUPLICATION_INDEX_MAX_ENTRIES);
+        }
+    };
+
+    // accessed only from the writer thread
+    private int recordsInFile = 0;
+
+    private UploadDeduplicationIndex(File directory) {
+        log = new RecordLog(directory, FILE_NAME, VERSION);
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the index and starts loading it in background.
+     * @param context service context
+     * @return index instance
+     */
+    static UploadDeduplicationIndex open(Context context) {
+        final UploadDeduplicationIndex index = new UploadDeduplicationIndex(context.getFilesDir());
+
+        index.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index.load();
+                } finally {
+                    index.loaded.countDown();
+                }
+            }
+        });
+
+        return index;
+    }
+
+    /**
+     * Gets the previous upload with the given fingerprint. Waits until the index is loaded.
+     * @param key fingerprint of the upload request
+     * @return entry or null if there isn't one
+     * @throws InterruptedException if the thread gets interrupted while waiting
+     */
+    Entry get(String key) throws InterruptedException {
+        loaded.await();
+
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Reads from the device storage the response received for a previous upload.
+     * @param key fingerprint of the upload request
+     * @param entry entry got with {@link #get(String)}
+     * @return new copy of the server response, or null if the entry has been evicted meanwhile
+     * @throws IOException if the response can't be read
+     * @throws InterruptedException if the thread gets interrupted while waiting
+     */
+    ServerResponse getResponse(final String key, final Entry entry)
+            throws IOException, InterruptedException {
+        try {
+            return writer.submit(new Callable<ServerResponse>() {
+                @Override
+                public ServerResponse call() throws Exception {
+                    synchronized (entries) {
+                        if (entries.get(key) != entry)
+                            return null;
+                    }
+
+                    DataInputStream payload = new DataInputStream(
+                            new ByteArrayInputStream(log.read(entry.offset)));
+
+                    if (!key.equals(payload.readUTF()) || !entry.digest.equals(payload.readUTF()))
+                        throw new IOException("Deduplication index entry doesn't match its record");
+
+                    return readResponse(payload);
+                }
+            }).get();
+
+        } catch (ExecutionException exc) {
+            if (exc.getCause() instanceof IOException)
+                throw (IOException) exc.getCause();
+
+            throw new IOException(exc.getCause());
+
+        } catch (RuntimeException exc) {
+            // the index has been closed
+            throw new IOException(exc);
+        }
+    }
+
+    /**
+     * Saves a completed upload.
+     * @param key fingerprint of the upload request
+     * @param digest digest of the uploaded content
+     * @param response response received from the server
+     */
+    void put(final String key, final String digest, final ServerResponse response) {
+        if (response.getBody().length > MAX_RESPONSE_BODY_SIZE)
+            return;
+
+        final LinkedHashMap<String, String> headers = new LinkedHashMap<>(response.getHeaders());
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                long offset;
+
+                try {
+                    offset = log.append(payload(key, digest, response.getHttpCode(),
+                                                response.getBody(), headers));
+                } catch (IOException exc) {
+                    Logger.error(LOG_TAG, "Error while writing deduplication index", exc);
+                    return;
+                }
+
+                if (offset < 0)
+                    return;
+
+                recordsInFile++;
+
+                synchronized (entries) {
+                    entries.put(key, new Entry(digest, offset));
+                }
+
+                compactIfNeeded();
+            }
+        });
+    }
+
+    /**
+     * Writes the pending records and closes the index.
+     */
+    void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                log.close();
+            }
+        });
+        writer.shutdown();
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            writer.execute(runnable);
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Deduplication index is closed", exc);
+        }
+    }
+
+    // Record payload: [String key][String digest][int http code][int body length][body]
+    //                 [int headers count][headers as: boolean has name, String name, String value]
+
+    private static byte[] payload(String key, String digest, int httpCode, byte[] body,
+                                  Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256 + body.length);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+        payload.writeUTF(key);
+        payload.writeUTF(digest);
+        payload.writeInt(httpCode);
+        payload.writeInt(body.length);
+        payload.write(body);
+        payload.writeInt(headers.size());
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            // HttpURLConnection returns the status line as a header without name
+            payload.writeBoolean(header.getKey() != null);
+            payload.writeUTF(header.getKey() == null ? "" : header.getKey());
+            payload.writeUTF(header.getValue() == null ? "" : header.getValue());
+        }
+
+        payload.flush();
+        return payloadBytes.toByteArray();
+    }
+
+    private static ServerResponse readResponse(DataInputStream payload) throws IOException {
+        int httpCode = payload.readInt();
+        byte[] body = new byte[payload.readInt()];
+        payload.readFully(body);
+
+        int headersCount = payload.readInt();
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>(headersCount);
+        for (int i = 0; i < headersCount; i++) {
+            boolean hasName = payload.readBoolean();
+            String name = payload.readUTF();
+            headers.put(hasName ? name : null, payload.readUTF());
+        }
+
+        return new ServerResponse(httpCode, body, headers);
+    }
+
+    private void load() {
+        recordsInFile = log.load(new RecordLog.Reader() {
+            @Override
+            public void onRecord(long offset, DataInputStream payload) throws IOException {
+                String key = payload.readUTF();
+                String digest = payload.readUTF();
+
+                synchronized (entries) {
+                    entries.put(key, new Entry(digest, offset));
+                }
+            }
+        });
+
+        Logger.debug(LOG_TAG, "Loaded " + entries.size() + " entries in deduplication index");
+    }
+
+    /**
+     * Rewrites the index keeping only the entries which have not been evicted, when there are
+     * more than {@link UploadService#DEDUPLICATION_INDEX_COMPACTION_THRESHOLD} evicted or
+     * replaced records in the log.
+     */
+    private void compactIfNeeded() {
+        final List<Map.Entry<String, Entry>> liveEntries;
+        synchronized (entries) {
+            if (recordsInFile - entries.size() < Math.max(1, UploadService.DEDUPLICATION_INDEX_COMPACTION_THRESHOLD))
+                return;
+
+            liveEntries = new ArrayList<>(entries.entrySet());
+        }
+
+        final Map<Entry, Long> newOffsets = new HashMap<>(liveEntries.size() * 2);
+
+        boolean compacted = log.compact(new RecordLog.Compaction() {
+            @Override
+            public void writeLiveRecords(RecordLog.Writer writer) throws IOException {
+                // records are copied one at a time, so the responses are never all in memory
+                for (Map.Entry<String, Entry> entry : liveEntries) {
+                    newOffsets.put(entry.getValue(), writer.write(log.read(entry.getValue().offset)));
+                }
+            }
+        });
+
+        if (!compacted)
+            return;
+
+        synchronized (entries) {
+            for (Map.Entry<Entry, Long> newOffset : newOffsets.entrySet()) {
+                newOffset.getKey().offset = newOffset.getValue();
+            }
+        }
+
+        recordsInFile = liveEntries.size();
+    }
+}
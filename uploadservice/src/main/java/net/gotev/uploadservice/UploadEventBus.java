@@ -0,0 +1,196 @@
+package net.gotev.uploadservice;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the upload status events to listeners living in the same process of
+ * {@link UploadService}, without going through system broadcasts. Listeners can subscribe to the
+ * events of all the uploads, of a single upload or of a group of uploads (see
+ * {@link UploadRequest#setGroup(String)}). Listeners are called on the main thread.
+ *
+ * Events are also sent in broadcast, unless
+ * {@link UploadService#SKIP_BROADCASTS_FOR_SUBSCRIBED_EVENTS} is set to true, in which case
+ * the events received by at least one subscriber are not sent in broadcast. Events of upload
+ * requests with a delegate (see {@link UploadRequest#setDelegate(UploadStatusDelegate)}) are
+ * sent only to the delegate, as before.
+ *
+ * Subscribers are strongly referenced, so always unsubscribe when you don't need the events
+ * anymore, e.g. in the onPause of your activity. Events already posted to the main thread are
+ * not delivered to listeners which have unsubscribed meanwhile.
+ *
+ * @author Aleksandar Gotev
+ */
+public final class UploadEventBus {
+
+    /**
+     * Event to be delivered to the listeners.
+     */
+    interface Event {
+        void deliver(Context context, UploadStatusDelegate listener);
+    }
+
+    /**
+     * Subscription to the upload events. Use it to unsubscribe.
+     */
+    public static final class Subscription {
+        private final String uploadId;
+        private final String group;
+        private final UploadStatusDelegate listener;
+        private volatile boolean active = true;
+
+        private Subscription(String uploadId, String group, UploadStatusDelegate listener) {
+            this.uploadId = uploadId;
+            this.group = group;
+            this.listener = listener;
+        }
+    }
+
+    private static final List<Subscription> allUploadsSubscriptions = new CopyOnWriteArrayList<>();
+    private static final Map<String, List<Subscription>> uploadSubscriptions = new ConcurrentHashMap<>();
+    private static final Map<String, List<Subscription>> groupSubscriptions = new ConcurrentHashMap<>();
+
+    private UploadEventBus() { }
+
+    /**
+     * Subscribes to the events of all the uploads.
+     * @param listener listener which will receive the events on the main thread
+     * @return subscription
+     */
+    public static Subscription subscribe(UploadStatusDelegate listener) {
+        Subscription subscription = new Subscription(null, null, checkListener(listener));
+        allUploadsSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Subscribes to the events of a single upload.
+     * @param uploadId upload ID
+     * @param listener listener which will receive the events on the main thread
+     * @return subscription
+     */
+    public static Subscription subscribeToUpload(String uploadId, UploadStatusDelegate listener) {
+        if (uploadId == null)
+            throw new IllegalArgumentException("uploadId must not be null");
+
+        Subscription subscription = new Subscription(uploadId, null, checkListener(listener));
+        add(uploadSubscriptions, uploadId, subscription);
+        return subscription;
+    }
+
+    /**
+     * Subscribes to the events of all the uploads belonging to a group.
+     * @param group group name, set with {@link UploadRequest#setGroup(String)}
+     * @param listener listener which will receive the events on the main thread
+     * @return subscription
+     */
+    public static Subscription subscribeToGroup(String group, UploadStatusDelegate listener) {
+        if (group == null)
+            throw new IllegalArgumentException("group must not be null");
+
+        Subscription subscription = new Subscription(null, group, checkListener(listener));
+        add(groupSubscriptions, group, subscription);
+        return subscription;
+    }
+
+    /**
+     * Stops receiving the events of a subscription.
+     * @param subscription subscription to cancel
+     */
+    public static void unsubscribe(Subscription subscription) {
+        if (subscription == null)
+            return;
+
+        subscription.active = false;
+
+        if (subscription.uploadId != null) {
+            remove(uploadSubscriptions, subscription.uploadId, subscription);
+        } else if (subscription.group != null) {
+            remove(groupSubscriptions, subscription.group, subscription);
+        } else {
+            allUploadsSubscriptions.remove(subscription);
+        }
+    }
+
+    /**
+     * Prepares the delivery of an event to all the matching subscribers.
+     * @param context context to pass to the listeners
+     * @param uploadId ID of the upload which generated the event
+     * @param group group of the upload, or null
+     * @param event event to deliver
+     * @return runnable to execute on the main thread to deliver the event, or null if there
+     * aren't any matching subscribers
+     */
+    static Runnable prepareDelivery(final Context context, String uploadId, String group,
+                                    final Event event) {
+        List<Subscription> byUpload = uploadSubscriptions.get(uploadId);
+        List<Subscription> byGroup = group == null ? null : groupSubscriptions.get(group);
+
+        if (allUploadsSubscriptions.isEmpty() && byUpload == null && byGroup == null)
+            return null;
+
+        final List<Subscription> subscriptions = new ArrayList<>();
+        addAll(subscriptions, allUploadsSubscriptions);
+        addAll(subscriptions, byUpload);
+        addAll(subscriptions, byGroup);
+
+        if (subscriptions.isEmpty())
+            return null;
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Subscription subscription : subscriptions) {
+                    // the listener may have unsubscribed after the event has been posted
+                    if (subscription.active) {
+                        event.deliver(context, subscription.listener);
+                    }
+                }
+            }
+        };
+    }
+
+    private static UploadStatusDelegate checkListener(UploadStatusDelegate listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener must not be null");
+
+        return listener;
+    }
+
+    private static void addAll(List<Subscription> destination, List<Subscription> subscriptions) {
+        if (subscriptions != null) {
+            destination.addAll(subscriptions);
+        }
+    }
+
+    private static synchronized void add(Map<String, List<Subscription>> map, String key,
+                                         Subscription subscription) {
+        List<Subscription> subscriptions = map.get(key);
+
+        if (subscriptions == null) {
+            subscriptions = new CopyOnWriteArrayList<>();
+            map.put(key, subscriptions);
+        }
+
+        subscriptions.add(subscription);
+    }
+
+    private static synchronized void remove(Map<String, List<Subscription>> map, String key,
+                                            Subscription subscription) {
+        List<Subscription> subscriptions = map.get(key);
+
+        if (subscriptions == null)
+            return;
+
+        subscriptions.remove(subscription);
+
+        if (subscriptions.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
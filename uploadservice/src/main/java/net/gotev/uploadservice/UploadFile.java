@@ -4,12 +4,17 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import net.gotev.uploadservice.schemehandlers.ChannelSchemeHandler;
+import net.gotev.uploadservice.schemehandlers.MemorySource;
 import net.gotev.uploadservice.schemehandlers.SchemeHandler;
 import net.gotev.uploadservice.schemehandlers.SchemeHandlerFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.LinkedHashMap;
 
 import com.google.common.io.ByteStreams;
@@ -24,7 +29,18 @@ public class UploadFile implements Parcelable {
 
     protected final String path;
     private LinkedHashMap<String, String> properties = new LinkedHashMap<>();
-    protected final SchemeHandler handler;
+
+    /**
+     * Scheme handler of this file. It's created on first access, so unparcelling big requests
+     * doesn't instantiate all the handlers, but it's set when the subclasses of this class
+     * are created, so they can still read it.
+     * @deprecated use {@link #getHandler()}, which creates the handler if needed
+     */
+    @Deprecated
+    protected volatile SchemeHandler handler;
+
+    // keeps in-memory content available while this file is referenced
+    private MemorySource memorySource;
 
     protected long rangeStart = -1;
     protected long rangeLength = -1;
@@ -47,10 +63,38 @@ public class UploadFile implements Parcelable {
 
         this.path = path;
 
+        if (isInMemory()) {
+            memorySource = MemorySource.find(path);
+        }
+
+        // subclasses written before getHandler() may read the handler field directly
+        if (getClass() != UploadFile.class) {
+            getHandler();
+        }
+    }
+
+    /**
+     * Creates a new UploadFile which uploads in-memory content, without writing it to a file.
+     * The buffer is not copied, so don't modify it until the upload is finished. It's released
+     * by the upload service when the upload completes, fails or gets cancelled, or garbage
+     * collected with this file if the upload is never started.
+     * In-memory uploads are not saved in the upload journal, because the content doesn't
+     * survive the process.
+     *
+     * @param buffer content to upload, from its position to its limit
+     * @param name file name
+     * @param contentType content type, or null for {@code application/octet-stream}
+     * @return upload file
+     */
+    public static UploadFile fromBuffer(ByteBuffer buffer, String name, String contentType) {
         try {
-            this.handler = SchemeHandlerFactory.getInstance().get(path);
-        } catch (Exception exc) {
-            throw new RuntimeException(exc);
+            MemorySource source = MemorySource.register(buffer, name, contentType);
+            UploadFile file = new UploadFile(source.getPath());
+            file.memorySource = source;
+            return file;
+        } catch (FileNotFoundException exc) {
+            // memory paths are never checked for existence
+            throw new IllegalStateException(exc);
         }
     }
 
@@ -63,7 +107,7 @@ public class UploadFile implements Parcelable {
      * @throws IndexOutOfBoundsException
      */
     public void setRange(long start, long length, Context context) {
-        long fileLength = handler.getLength(context);
+        long fileLength = getHandler().getLength(context);
         if (start < 0 || start > fileLength) {
             throw new IndexOutOfBoundsException("File range start " + start + " is out of bounds 0.." + fileLength);
         }
@@ -77,13 +121,40 @@ public class UploadFile implements Parcelable {
         rangeLength = length;
     }
 
+    /**
+     * Creates a copy of this file, with the same properties, which uploads only a part of it.
+     *
+     * @param offset start of the part (in bytes), relative to the start of the range of this file
+     * @param length length of the part (in bytes)
+     * @param context service context
+     * @return upload file
+     * @throws IndexOutOfBoundsException if the part exceeds the range of this file
+     */
+    public UploadFile getPart(long offset, long length, Context context) throws IndexOutOfBoundsException {
+        long fileLength = length(context);
+        if (offset < 0 || length < 0 || offset + length > fileLength) {
+            throw new IndexOutOfBoundsException("Part " + offset + ".." + (offset + length)
+                    + " is out of bounds 0.." + fileLength);
+        }
+
+        UploadFile part = new UploadFile(this);
+        part.setRange(Math.max(0, rangeStart) + offset, length, context);
+        return part;
+    }
+
+    private UploadFile(UploadFile file) {
+        this.path = file.path;
+        this.properties = new LinkedHashMap<>(file.properties);
+        this.memorySource = file.memorySource;
+    }
+
     /**
      * Gets the file length in bytes.
      * @param context service context
      * @return file length
      */
     public long length(Context context) {
-        return rangeLength >= 0 ? rangeLength : handler.getLength(context);
+        return rangeLength >= 0 ? rangeLength : getHandler().getLength(context);
     }
 
     /**
@@ -94,23 +165,101 @@ public class UploadFile implements Parcelable {
      * constructor
      */
     public final InputStream getStream(Context context) throws FileNotFoundException, IOException {
-        InputStream stream = handler.getInputStream(context);
-        if (rangeStart > 0) {
-            stream.skip(rangeStart);
+        return getStream(context, 0);
+    }
+
+    /**
+     * Gets the {@link InputStream} to read the content of this file, starting from an offset
+     * relative to the start of the range set with {@link UploadFile#setRange(long, long, Context)},
+     * if any. If the file can be read with a {@link FileChannel}, the stream starts at the offset
+     * in constant time, otherwise the bytes before the offset are skipped.
+     * @param context service context
+     * @param offset offset in bytes
+     * @return file input stream
+     * @throws FileNotFoundException if the file can't be found at the path specified in the
+     * constructor
+     */
+    public final InputStream getStream(Context context, long offset)
+            throws FileNotFoundException, IOException {
+        if (offset < 0 || (rangeLength >= 0 && offset > rangeLength))
+            throw new IndexOutOfBoundsException("Offset " + offset + " is out of bounds");
+
+        long start = Math.max(0, rangeStart) + offset;
+        InputStream stream = null;
+
+        if (start > 0) {
+            FileChannel channel = getChannel(context);
+
+            if (channel != null) {
+                channel.position(start);
+                stream = Channels.newInputStream(channel);
+            }
         }
+
+        if (stream == null) {
+            stream = getHandler().getInputStream(context);
+            skipFully(stream, start);
+        }
+
         if (rangeLength != -1) {
-            return ByteStreams.limit(stream, rangeLength);
+            return ByteStreams.limit(stream, rangeLength - offset);
         }
         return stream;
     }
 
+    private void skipFully(InputStream stream, long bytes) throws IOException {
+        long toSkip = bytes;
+
+        try {
+            while (toSkip > 0) {
+                long skipped = stream.skip(toSkip);
+
+                if (skipped <= 0) {
+                    if (stream.read() < 0) {
+                        throw new IOException("Unexpected end of file while skipping to byte " + bytes
+                                              + " of " + path);
+                    }
+                    skipped = 1;
+                }
+
+                toSkip -= skipped;
+            }
+        } catch (IOException exc) {
+            stream.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Gets a {@link FileChannel} to read the content of this file, positioned at the start of the
+     * range set with {@link UploadFile#setRange(long, long, Context)}, if any.
+     * Read at most {@link UploadFile#length(Context)} bytes from it.
+     * @param context service context
+     * @return file channel, or null if the file can't be read with a channel (e.g. the scheme
+     * handler does not support channels or the content is not seekable).
+     * In that case use {@link UploadFile#getStream(Context)}.
+     * @throws IOException if the file can't be opened
+     */
+    public final FileChannel getChannel(Context context) throws IOException {
+        SchemeHandler schemeHandler = getHandler();
+
+        if (!(schemeHandler instanceof ChannelSchemeHandler))
+            return null;
+
+        FileChannel channel = ((ChannelSchemeHandler) schemeHandler).getChannel(context);
+        if (channel != null && rangeStart > 0) {
+            channel.position(rangeStart);
+        }
+        return channel;
+    }
+
     /**
      * Returns the content type for the file
      * @param context service context
      * @return content type
      */
     public final String getContentType(Context context) {
-        return handler.getContentType(context);
+        return getHandler().getContentType(context);
     }
 
     /**
@@ -119,7 +268,24 @@ public class UploadFile implements Parcelable {
      * @return string
      */
     public final String getName(Context context) {
-        return handler.getName(context);
+        return getHandler().getName(context);
+    }
+
+    /**
+     * Checks if the content of this file is in memory. See {@link UploadFile#fromBuffer}.
+     * @return true if the content is in memory
+     */
+    public final boolean isInMemory() {
+        return MemorySource.isMemoryPath(path);
+    }
+
+    /**
+     * Releases the in-memory content of this file, if any. Called when the upload is finished.
+     */
+    final void release() {
+        if (isInMemory()) {
+            MemorySource.release(path);
+        }
     }
 
     /**
@@ -157,6 +323,11 @@ public class UploadFile implements Parcelable {
         parcel.writeSerializable(properties);
         parcel.writeLong(rangeStart);
         parcel.writeLong(rangeLength);
+
+        if (isInMemory()) {
+            // the content stays in the memory of this process, readable through the binder
+            parcel.writeStrongBinder(MemorySource.getBinder(path));
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -166,11 +337,29 @@ public class UploadFile implements Parcelable {
         this.rangeStart = in.readLong();
         this.rangeLength = in.readLong();
 
-        try {
-            this.handler = SchemeHandlerFactory.getInstance().get(path);
-        } catch (Exception exc) {
-            throw new RuntimeException(exc);
+        if (isInMemory()) {
+            memorySource = MemorySource.attach(path, in.readStrongBinder());
+        }
+    }
+
+    /**
+     * Gets the scheme handler of this file, creating it on first access.
+     * @return scheme handler
+     */
+    protected final SchemeHandler getHandler() {
+        SchemeHandler schemeHandler = handler;
+
+        if (schemeHandler == null) {
+            synchronized (this) {
+                schemeHandler = handler;
+                if (schemeHandler == null) {
+                    schemeHandler = SchemeHandlerFactory.getInstance().get(path);
+                    handler = schemeHandler;
+                }
+            }
         }
+
+        return schemeHandler;
     }
 
     /**
@@ -4,6 +4,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -18,10 +19,12 @@ public class UploadInfo implements Parcelable {
     private long currentTime;
     private long uploadedBytes;
     private long totalBytes;
+    private long compressedBytes = -1;
+    private String contentDigest;
     private int numberOfRetries;
     private Integer notificationID;
-    private ArrayList<String> filesLeft = new ArrayList<>();
-    private ArrayList<String> successfullyUploadedFiles = new ArrayList<>();
+    private ArrayList<String> filesLeft;
+    private ArrayList<String> successfullyUploadedFiles;
 
     protected UploadInfo(String uploadId) {
         this.uploadId = uploadId;
@@ -31,6 +34,8 @@ public class UploadInfo implements Parcelable {
         totalBytes = 0;
         numberOfRetries = 0;
         notificationID = null;
+        filesLeft = new ReadOnlyArrayList<>(Collections.<String>emptyList());
+        successfullyUploadedFiles = filesLeft;
     }
 
     protected UploadInfo(String uploadId, long startTime, long uploadedBytes, long totalBytes,
@@ -41,13 +46,28 @@ public class UploadInfo implements Parcelable {
         this.uploadedBytes = uploadedBytes;
         this.totalBytes = totalBytes;
         this.numberOfRetries = numberOfRetries;
+        this.filesLeft = new ReadOnlyArrayList<>(
+                filesLeft == null ? Collections.<String>emptyList() : filesLeft);
+        this.successfullyUploadedFiles = new ReadOnlyArrayList<>(
+                uploadedFiles == null ? Collections.<String>emptyList() : uploadedFiles);
+    }
 
-        if (filesLeft != null && !filesLeft.isEmpty()) {
-            this.filesLeft.addAll(filesLeft);
-        }
-
-        if (uploadedFiles != null && !uploadedFiles.isEmpty())
-            successfullyUploadedFiles.addAll(uploadedFiles);
+    /**
+     * Creates a snapshot of the upload status without copying the file lists, which are shared
+     * with the other snapshots of the same task until they change. The lists have to be
+     * {@link ReadOnlyArrayList} instances.
+     */
+    UploadInfo(String uploadId, long startTime, long currentTime, long uploadedBytes,
+               long totalBytes, int numberOfRetries, ArrayList<String> uploadedFiles,
+               ArrayList<String> filesLeft) {
+        this.uploadId = uploadId;
+        this.startTime = startTime;
+        this.currentTime = currentTime;
+        this.uploadedBytes = uploadedBytes;
+        this.totalBytes = totalBytes;
+        this.numberOfRetries = numberOfRetries;
+        this.successfullyUploadedFiles = uploadedFiles;
+        this.filesLeft = filesLeft;
     }
 
     // This is used to regenerate the object.
@@ -76,6 +96,8 @@ public class UploadInfo implements Parcelable {
         parcel.writeInt(notificationID == null ? -1 : notificationID);
         parcel.writeStringList(filesLeft);
         parcel.writeStringList(successfullyUploadedFiles);
+        parcel.writeLong(compressedBytes);
+        parcel.writeString(contentDigest);
     }
 
     private UploadInfo(Parcel in) {
@@ -91,8 +113,10 @@ public class UploadInfo implements Parcelable {
             notificationID = null;
         }
 
-        in.readStringList(filesLeft);
-        in.readStringList(successfullyUploadedFiles);
+        filesLeft = new ReadOnlyArrayList<>(in.createStringArrayList());
+        successfullyUploadedFiles = new ReadOnlyArrayList<>(in.createStringArrayList());
+        compressedBytes = in.readLong();
+        contentDigest = in.readString();
     }
 
     @Override
@@ -179,19 +203,29 @@ public class UploadInfo implements Parcelable {
     }
 
     /**
-     * Gets the list of the successfully uploaded files.
+     * Gets the list of the successfully uploaded files. Each call returns a new copy of the
+     * list, so modifying it does not change this upload info.
      * @return list of strings
      */
     public ArrayList<String> getSuccessfullyUploadedFiles() {
-        return successfullyUploadedFiles;
+        return new ArrayList<>(successfullyUploadedFiles);
     }
 
     /**
-     * Gets the list of all the files left to be uploaded.
+     * Gets the number of successfully uploaded files, without copying the list.
+     * @return number of files
+     */
+    int getSuccessfullyUploadedFilesCount() {
+        return successfullyUploadedFiles.size();
+    }
+
+    /**
+     * Gets the list of all the files left to be uploaded. Each call returns a new copy of the
+     * list, so modifying it does not change this upload info.
      * @return list of strings
      */
     public ArrayList<String> getFilesLeft() {
-        return filesLeft;
+        return new ArrayList<>(filesLeft);
     }
 
     /**
@@ -202,6 +236,41 @@ public class UploadInfo implements Parcelable {
         return uploadedBytes;
     }
 
+    /**
+     * Gets the uploaded bytes, before compression. This is the same as
+     * {@link UploadInfo#getUploadedBytes()}.
+     * @return long value
+     */
+    public long getUncompressedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * Gets the bytes actually sent, after compression. If the upload is not compressed, this is
+     * the same as {@link UploadInfo#getUploadedBytes()}.
+     * @return long value
+     */
+    public long getCompressedBytes() {
+        return compressedBytes < 0 ? uploadedBytes : compressedBytes;
+    }
+
+    /**
+     * Checks if the uploaded data is compressed.
+     * @return true if the data is compressed
+     */
+    public boolean isCompressed() {
+        return compressedBytes >= 0;
+    }
+
+    /**
+     * Gets the digest of the uploaded content, computed while uploading it.
+     * See {@link HttpUploadRequest#setContentDigest(String, String)}.
+     * @return hex string, or null if the digest is not available
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
     /**
      * Gets upload task's total bytes.
      * @return long value
@@ -250,4 +319,12 @@ public class UploadInfo implements Parcelable {
     protected void setNotificationID(int id) {
         notificationID = id;
     }
+
+    void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
 }
@@ -0,0 +1,570 @@
+package net.gotev.uploadservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-ahead journal of the upload tasks handled by {@link UploadService}.
+ * Every accepted upload request is appended to an on-disk log together with its progress
+ * checkpoints, the files which has been uploaded successfully and the state saved by the task to
+ * resume the upload on the server (see {@link UploadTask#saveResumeState(Bundle)}), so that
+ * when the process gets
+ * killed and the service is restarted by the system, the pending uploads can be resumed.
+ * The log is periodically compacted to contain only the live entries.
+ *
+ * All the disk I/O is performed on a single background thread, so the methods of this class
+ * can be safely called from the main thread and from the upload threads.
+ *
+ * @author gotev (Aleksandar Gotev)
+ */
+final class UploadJournal {
+
+    private static final String LOG_TAG = UploadJournal.class.getSimpleName();
+
+    private static final String FILE_NAME = "uploadservice-journal";
+
+    // The upload parameters are saved as marshalled parcels, so this has to be incremented every
+    // time the parcel layout of UploadTaskParameters, HttpUploadTaskParameters or of the
+    // parameters of the other upload tasks changes. Journals of other versions are discarded.
+    private static final int VERSION = 2;
+
+    private static final byte RECORD_ENQUEUED = 1;
+    private static final byte RECORD_CHECKPOINT = 2;
+    private static final byte RECORD_FILE_COMPLETED = 3;
+    private static final byte RECORD_FINISHED = 4;
+    private static final byte RECORD_RESUME_STATE = 5;
+
+    /**
+     * Represents the last confirmed state of a journaled upload task.
+     */
+    static final class Entry {
+        final String uploadId;
+        final byte[] extras;
+        long uploadedBytes = 0;
+        long totalBytes = 0;
+        final LinkedHashSet<String> completedFiles = new LinkedHashSet<>();
+        byte[] resumeState = null;
+
+        private Entry(String uploadId, byte[] extras) {
+            this.uploadId = uploadId;
+            this.extras = extras;
+        }
+
+        /**
+         * Gets the last state saved by the task to resume the upload on the server.
+         * @return state or null if there isn't one or it can't be restored
+         */
+        Bundle getResumeState() {
+            if (resumeState == null)
+                return null;
+
+            Parcel parcel = Parcel.obtain();
+
+            try {
+                parcel.unmarshall(resumeState, 0, resumeState.length);
+                parcel.setDataPosition(0);
+                return parcel.readBundle(UploadService.class.getClassLoader());
+
+            } catch (Exception exc) {
+                Logger.error(LOG_TAG, "Unable to restore the resume state of upload with ID: " + uploadId, exc);
+                return null;
+
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Rebuilds the intent originally used to start the upload.
+         * @param context service context
+         * @return intent or null if the saved extras can't be restored
+         */
+        Intent toIntent(Context context) {
+            Parcel parcel = Parcel.obtain();
+
+            try {
+                parcel.unmarshall(extras, 0, extras.length);
+                parcel.setDataPosition(0);
+                Bundle bundle = parcel.readBundle(UploadService.class.getClassLoader());
+
+                if (bundle == null)
+                    return null;
+
+                bundle.setClassLoader(UploadService.class.getClassLoader());
+
+                return new Intent(context, UploadService.class)
+                        .setAction(UploadService.getActionUpload())
+                        .putExtras(bundle);
+
+            } catch (Exception exc) {
+                Logger.error(LOG_TAG, "Unable to restore upload with ID: " + uploadId, exc);
+                return null;
+
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private final RecordLog log;
+    private final ScheduledThreadPoolExecutor writer;
+
+    // accessed only from the writer thread
+    private final Map<String, Entry> liveEntries = new LinkedHashMap<>();
+    private int recordsSinceCompaction = 0;
+
+    // latest progress checkpoints waiting to be written, coalesced by upload ID
+    private final Map<String, long[]> pendingCheckpoints = new ConcurrentHashMap<>();
+    private final AtomicBoolean checkpointFlushScheduled = new AtomicBoolean(false);
+
+    private UploadJournal(File directory) {
+        log = new RecordLog(directory, FILE_NAME, VERSION);
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the journal and loads the saved entries. This method blocks until the journal has
+     * been read from the disk.
+     * @param context service context
+     * @return journal instance
+     */
+    static UploadJournal open(Context context) {
+        final UploadJournal journal = new UploadJournal(context.getFilesDir());
+
+        try {
+            journal.writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    journal.load();
+                }
+            }).get();
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Error while loading upload journal", exc);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Gets the upload tasks which were pending the last time the journal has been written.
+     * The entries are kept in the journal until they are confirmed by
+     * {@link #restored(Entry)} or {@link #finished(String)}, so they are not lost if the
+     * process gets killed again while restoring them.
+     * @return list of entries
+     */
+    List<Entry> takePendingEntries() {
+        final List<Entry> entries = new ArrayList<>();
+
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushCheckpoints();
+                    entries.addAll(liveEntries.values());
+                }
+            }).get();
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Error while reading pending uploads from journal", exc);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Records a newly accepted upload task, replacing the entry with the same ID, if any.
+     * The intent extras are serialized immediately, because the task may change its
+     * parameters while it's running.
+     * @param uploadId ID of the upload
+     * @param intent intent used to start the upload
+     */
+    void enqueued(final String uploadId, Intent intent) {
+        UploadTaskParameters params = intent.getParcelableExtra(UploadService.PARAM_TASK_PARAMETERS);
+
+        if (params != null) {
+            for (UploadFile file : params.files) {
+                if (file.isInMemory()) {
+                    Logger.debug(LOG_TAG, "Upload with ID: " + uploadId
+                            + " is not journaled, because its in-memory content can't be resumed");
+                    return;
+                }
+            }
+        }
+
+        final byte[] extras = marshallExtras(intent);
+
+        if (extras == null) {
+            Logger.error(LOG_TAG, "Upload with ID: " + uploadId + " can't be journaled");
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = new Entry(uploadId, extras);
+                liveEntries.put(uploadId, entry);
+                append(RECORD_ENQUEUED, uploadId, entry);
+            }
+        });
+    }
+
+    /**
+     * Records again the last saved state of an upload which has been resumed from the journal.
+     * Call this after {@link #enqueued(String, Intent)}, which replaced the restored entry.
+     * @param restoredEntry entry got from {@link #takePendingEntries()}
+     */
+    void restored(final Entry restoredEntry) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = liveEntries.get(restoredEntry.uploadId);
+                if (entry == null)
+                    return;
+
+                entry.uploadedBytes = restoredEntry.uploadedBytes;
+                entry.totalBytes = restoredEntry.totalBytes;
+                append(RECORD_CHECKPOINT, entry.uploadId, entry);
+
+                for (String path : restoredEntry.completedFiles) {
+                    if (entry.completedFiles.add(path)) {
+                        append(RECORD_FILE_COMPLETED, entry.uploadId, path);
+                    }
+                }
+
+                // the task may have already saved a new state, which has to be kept
+                if (entry.resumeState == null && restoredEntry.resumeState != null) {
+                    entry.resumeState = restoredEntry.resumeState;
+                    append(RECORD_RESUME_STATE, entry.uploadId, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the state needed to resume an upload on the server, replacing the previous one.
+     * The state is written immediately, so save it only when it changes.
+     * @param uploadId ID of the upload
+     * @param state state to save, or null to clear it
+     */
+    void resumeStateChanged(final String uploadId, Bundle state) {
+        final byte[] stateBytes;
+
+        try {
+            stateBytes = state == null ? null : marshall(state);
+        } catch (RuntimeException exc) {
+            Logger.error(LOG_TAG, "Unable to save the resume state of upload with ID: " + uploadId, exc);
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = liveEntries.get(uploadId);
+                if (entry == null)
+                    return;
+
+                entry.resumeState = stateBytes;
+                append(RECORD_RESUME_STATE, uploadId, entry);
+            }
+        });
+    }
+
+    /**
+     * Records the progress of an upload. Checkpoints are coalesced in memory and written
+     * at most once every {@link UploadService#UPLOAD_JOURNAL_CHECKPOINT_INTERVAL} milliseconds,
+     * so this can be called from the progress notification path.
+     * @param uploadId ID of the upload
+     * @param uploadedBytes uploaded bytes
+     * @param totalBytes total bytes
+     */
+    void checkpoint(String uploadId, long uploadedBytes, long totalBytes) {
+        pendingCheckpoints.put(uploadId, new long[] {uploadedBytes, totalBytes});
+
+        if (checkpointFlushScheduled.compareAndSet(false, true)) {
+            try {
+                writer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushCheckpoints();
+                    }
+                }, UploadService.UPLOAD_JOURNAL_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (Exception exc) {
+                checkpointFlushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Records a file which has been uploaded successfully.
+     * @param uploadId ID of the upload
+     * @param path path of the uploaded file
+     */
+    void fileCompleted(final String uploadId, final String path) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = liveEntries.get(uploadId);
+                if (entry != null && entry.completedFiles.add(path)) {
+                    append(RECORD_FILE_COMPLETED, uploadId, path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records that an upload is not pending anymore, either because it has been completed,
+     * it failed or it has been cancelled.
+     * @param uploadId ID of the upload
+     */
+    void finished(final String uploadId) {
+        pendingCheckpoints.remove(uploadId);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (liveEntries.remove(uploadId) != null) {
+                    append(RECORD_FINISHED, uploadId, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the pending records and closes the journal.
+     */
+    void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                flushCheckpoints();
+                log.close();
+            }
+        });
+        writer.shutdown();
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            writer.execute(runnable);
+        } catch (Exception exc) {
+            Logger.error(LOG_TAG, "Upload journal is closed", exc);
+        }
+    }
+
+    private void flushCheckpoints() {
+        checkpointFlushScheduled.set(false);
+
+        Iterator<Map.Entry<String, long[]>> iterator = pendingCheckpoints.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, long[]> checkpoint = iterator.next();
+            iterator.remove();
+
+            Entry entry = liveEntries.get(checkpoint.getKey());
+            if (entry == null)
+                continue;
+
+            entry.uploadedBytes = checkpoint.getValue()[0];
+            entry.totalBytes = checkpoint.getValue()[1];
+            append(RECORD_CHECKPOINT, entry.uploadId, entry);
+        }
+    }
+
+    private static byte[] marshallExtras(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (extras == null)
+            return null;
+
+        try {
+            return marshall(extras);
+        } catch (RuntimeException exc) {
+            // notification configurations may contain PendingIntents and Bitmaps which
+            // can't be written on disk. Save the upload without its notification configuration.
+            UploadTaskParameters params = intent.getParcelableExtra(UploadService.PARAM_TASK_PARAMETERS);
+            if (params == null)
+                return null;
+
+            Logger.info(LOG_TAG, "Journaling upload with ID: " + params.id
+                    + " without its notification configuration");
+
+            Bundle strippedExtras = new Bundle(extras);
+            strippedExtras.putParcelable(UploadService.PARAM_TASK_PARAMETERS,
+                                         withoutNotificationConfig(params));
+
+            try {
+                return marshall(strippedExtras);
+            } catch (RuntimeException secondExc) {
+                Logger.error(LOG_TAG, "Error while serializing upload with ID: " + params.id, secondExc);
+                return null;
+            }
+        }
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static UploadTaskParameters withoutNotificationConfig(UploadTaskParameters params) {
+        Parcel parcel = Parcel.obtain();
+
+        try {
+            params.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            UploadTaskParameters copy = UploadTaskParameters.CREATOR.createFromParcel(parcel);
+            copy.notificationConfig = null;
+            return copy;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    // Record payload: [byte type][String uploadId][type specific data]
+
+    private void append(byte type, String uploadId, Object data) {
+        try {
+            log.append(payload(type, uploadId, data));
+        } catch (IOException exc) {
+            Logger.error(LOG_TAG, "Error while writing upload journal", exc);
+        }
+
+        if (++recordsSinceCompaction >= UploadService.UPLOAD_JOURNAL_COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    private static byte[] payload(byte type, String uploadId, Object data) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+        payload.writeByte(type);
+        payload.writeUTF(uploadId);
+
+        if (type == RECORD_ENQUEUED) {
+            Entry entry = (Entry) data;
+            payload.writeInt(entry.extras.length);
+            payload.write(entry.extras);
+
+        } else if (type == RECORD_CHECKPOINT) {
+            Entry entry = (Entry) data;
+            payload.writeLong(entry.uploadedBytes);
+            payload.writeLong(entry.totalBytes);
+
+        } else if (type == RECORD_FILE_COMPLETED) {
+            payload.writeUTF((String) data);
+
+        } else if (type == RECORD_RESUME_STATE) {
+            Entry entry = (Entry) data;
+            payload.writeInt(entry.resumeState == null ? -1 : entry.resumeState.length);
+            if (entry.resumeState != null) {
+                payload.write(entry.resumeState);
+            }
+        }
+
+        payload.flush();
+        return payloadBytes.toByteArray();
+    }
+
+    private void load() {
+        log.load(new RecordLog.Reader() {
+            @Override
+            public void onRecord(long offset, DataInputStream payload) throws IOException {
+                readRecord(payload);
+            }
+        });
+
+        Logger.debug(LOG_TAG, "Loaded " + liveEntries.size() + " pending uploads from journal");
+    }
+
+    private void readRecord(DataInputStream payload) throws IOException {
+        byte type = payload.readByte();
+        String uploadId = payload.readUTF();
+
+        if (type == RECORD_ENQUEUED) {
+            byte[] extras = new byte[payload.readInt()];
+            payload.readFully(extras);
+            liveEntries.put(uploadId, new Entry(uploadId, extras));
+            return;
+        }
+
+        Entry entry = liveEntries.get(uploadId);
+        if (entry == null)
+            return;
+
+        if (type == RECORD_CHECKPOINT) {
+            entry.uploadedBytes = payload.readLong();
+            entry.totalBytes = payload.readLong();
+
+        } else if (type == RECORD_FILE_COMPLETED) {
+            entry.completedFiles.add(payload.readUTF());
+
+        } else if (type == RECORD_FINISHED) {
+            liveEntries.remove(uploadId);
+
+        } else if (type == RECORD_RESUME_STATE) {
+            int length = payload.readInt();
+
+            if (length < 0) {
+                entry.resumeState = null;
+            } else {
+                entry.resumeState = new byte[length];
+                payload.readFully(entry.resumeState);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal keeping only the live entries.
+     */
+    private void compact() {
+        recordsSinceCompaction = 0;
+
+        log.compact(new RecordLog.Compaction() {
+            @Override
+            public void writeLiveRecords(RecordLog.Writer writer) throws IOException {
+                for (Entry entry : liveEntries.values()) {
+                    writer.write(payload(RECORD_ENQUEUED, entry.uploadId, entry));
+                    writer.write(payload(RECORD_CHECKPOINT, entry.uploadId, entry));
+
+                    for (String path : entry.completedFiles) {
+                        writer.write(payload(RECORD_FILE_COMPLETED, entry.uploadId, path));
+                    }
+
+                    if (entry.resumeState != null) {
+                        writer.write(payload(RECORD_RESUME_STATE, entry.uploadId, entry));
+                    }
+                }
+            }
+        });
+    }
+}
@@ -150,6 +150,45 @@ public abstract class UploadRequest<B extends UploadRequest<B>> {
         return self();
     }
 
+    /**
+     * Sets the priority of this upload request. It's used only when
+     * {@link UploadService#SCHEDULING_POLICY} is set to {@link SchedulingPolicy#PRIORITY}.
+     * Requests with higher priority are executed first. By default the priority is zero.
+     *
+     * @param priority priority value
+     * @return self instance
+     */
+    public B setPriority(int priority) {
+        params.setPriority(priority);
+        return self();
+    }
+
+    /**
+     * Sets the maximum upload speed of this request. The limit of all the uploads set with
+     * {@link UploadService#getGlobalBandwidthLimiter()} is applied too.
+     * The limit can be changed while the upload is running with
+     * {@link UploadService#setMaxBandwidth(String, long)}. By default there's no limit.
+     *
+     * @param maxBytesPerSecond maximum number of bytes per second. Zero means no limit.
+     * @return self instance
+     */
+    public B setMaxBandwidth(long maxBytesPerSecond) {
+        params.setMaxBytesPerSecond(maxBytesPerSecond);
+        return self();
+    }
+
+    /**
+     * Sets the group of this upload request. Use it to receive the events of all the uploads of
+     * the group with {@link UploadEventBus#subscribeToGroup(String, UploadStatusDelegate)}.
+     *
+     * @param group group name
+     * @return self instance
+     */
+    public B setGroup(String group) {
+        params.setGroup(group);
+        return self();
+    }
+
     /**
      * Sets the delegate which will receive the events for this upload request.
      * The events will be sent only to the delegate and not in broadcast. Delegate methods will
@@ -18,6 +18,7 @@ import net.gotev.uploadservice.http.impl.HurlStack;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -26,7 +27,10 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -55,6 +59,27 @@ public final class UploadService extends Service {
      */
     public static int KEEP_ALIVE_TIME_IN_SECONDS = 5;
 
+    /**
+     * If set to true, the number of threads used to handle concurrent uploads is adjusted
+     * automatically while uploading, by measuring the upload throughput. It starts from
+     * {@link UploadService#UPLOAD_POOL_SIZE}, which is also the minimum, and goes up to
+     * {@link UploadService#MAX_UPLOAD_POOL_SIZE}. Set this before starting the first upload.
+     */
+    public static boolean ADAPTIVE_POOL_SIZE_ENABLED = false;
+
+    /**
+     * Maximum number of threads used to handle concurrent uploads when
+     * {@link UploadService#ADAPTIVE_POOL_SIZE_ENABLED} is set to true. If
+     * {@link UploadService#UPLOAD_POOL_SIZE} is bigger, that is used as the maximum.
+     */
+    public static int MAX_UPLOAD_POOL_SIZE = 8;
+
+    /**
+     * Interval in milliseconds between two upload throughput measurements when
+     * {@link UploadService#ADAPTIVE_POOL_SIZE_ENABLED} is set to true.
+     */
+    public static long ADAPTIVE_POOL_SAMPLE_INTERVAL = 3000;
+
     /**
      * How many time to wait in idle (in milliseconds) before shutting down the service.
      * The service is idle when is running, but no tasks are running.
@@ -87,11 +112,48 @@ public final class UploadService extends Service {
      */
     public static HttpStack HTTP_STACK = new HurlStack();
 
+    /**
+     * Sets the order in which the waiting upload tasks are executed.
+     * By default {@link SchedulingPolicy#FIFO} is used.
+     */
+    public static SchedulingPolicy SCHEDULING_POLICY = SchedulingPolicy.FIFO;
+
     /**
      * Buffer size in bytes used for data transfer by the upload tasks.
      */
     public static int BUFFER_SIZE = 4096;
 
+    /**
+     * Maximum size in bytes of the chunks of data written by the upload tasks. Starting from
+     * {@link UploadService#BUFFER_SIZE}, the chunk size is doubled up to this value while the
+     * write throughput improves. Set it to {@link UploadService#BUFFER_SIZE} to always write
+     * chunks of the same size.
+     */
+    public static int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Minimum interval in milliseconds between two flushes of the request body while writing a
+     * file. The body is always flushed at the end of each file. Set it to 0 to flush after each
+     * chunk of data.
+     */
+    public static long FLUSH_INTERVAL = 200;
+
+    /**
+     * If set to true, the files which support it (see
+     * {@link net.gotev.uploadservice.schemehandlers.ChannelSchemeHandler}) are memory-mapped
+     * while uploading instead of being read into a buffer. This saves a read system call for each
+     * chunk of data, which is useful when uploading big files. The bytes are still copied once
+     * into the buffers of the http stack, because neither HttpURLConnection nor OkHttp can write
+     * byte buffers directly.
+     */
+    public static boolean MEMORY_MAPPED_FILE_READS = false;
+
+    /**
+     * Maximum total size in bytes of the buffers kept in the pool shared by all the upload tasks.
+     * See {@link UploadService#getBufferPool()}.
+     */
+    public static long BUFFER_POOL_MAX_RETAINED_BYTES = 1024 * 1024;
+
     /**
      * Sets the time to wait in milliseconds before the next attempt when an upload fails
      * for the first time. From the second time onwards, this value will be multiplied by
@@ -114,6 +176,69 @@ public final class UploadService extends Service {
      * indefinitely.
      */
     public static int MAX_RETRY_WAIT_TIME = 10 * 10 * 1000;
+
+    /**
+     * If set to true, every upload request is saved in a journal on the device storage, together
+     * with its progress and the files which have been uploaded successfully. If the process gets
+     * killed while uploads are pending, they will be resumed from their last saved state when the
+     * system restarts the service. Set this before starting the first upload.
+     * HTTP uploads are re-enqueued and start again from the beginning, FTP uploads skip the
+     * files which have already been uploaded, while tus and S3 uploads continue the upload
+     * created on the server before the process has been killed.
+     * Notification configurations containing a click intent, actions or a large icon can't be
+     * saved, so resumed uploads will be shown without notification in that case.
+     */
+    public static boolean UPLOAD_JOURNAL_ENABLED = false;
+
+    /**
+     * Minimum interval in milliseconds between two progress checkpoints saved in the upload
+     * journal for the same upload task.
+     */
+    public static long UPLOAD_JOURNAL_CHECKPOINT_INTERVAL = 2000;
+
+    /**
+     * Number of records after which the upload journal gets compacted, to keep only the
+     * upload tasks which are still pending.
+     */
+    public static int UPLOAD_JOURNAL_COMPACTION_THRESHOLD = 500;
+
+    /**
+     * Maximum number of completed uploads remembered to avoid uploading the same content again.
+     * See {@link HttpUploadRequest#setDeduplication(boolean, String)}.
+     */
+    public static int DEDUPLICATION_INDEX_MAX_ENTRIES = 10000;
+
+    /**
+     * Number of evicted or replaced entries after which the deduplication index gets compacted,
+     * to keep on the device storage only the uploads which are still remembered.
+     */
+    public static int DEDUPLICATION_INDEX_COMPACTION_THRESHOLD = 500;
+
+    /**
+     * Size in bytes of the blocks compared to find the changed parts of a file in delta uploads.
+     * See {@link BinaryUploadRequest#setDeltaUpload(String)}. Files with more than one million
+     * blocks of this size are uploaded whole.
+     */
+    public static int DELTA_UPLOAD_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of content uris of which the size and name are cached.
+     */
+    public static int CONTENT_METADATA_CACHE_MAX_ENTRIES = 2000;
+
+    /**
+     * Time in milliseconds after which the cached size and name of a content uri are queried
+     * again from its content provider. Changes notified by the provider are applied immediately.
+     */
+    public static long CONTENT_METADATA_CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of uploads which can be executed at the same time towards the same server
+     * host. Uploads exceeding this limit wait without occupying a thread of the upload pool.
+     * By default there's no limit (0). You can set a different limit for specific hosts with
+     * {@link UploadService#setMaxConcurrentUploadsForHost(String, int)}.
+     */
+    public static int MAX_CONCURRENT_UPLOADS_PER_HOST = 0;
     // end configurable values
 
     protected static final int UPLOAD_NOTIFICATION_BASE_ID = 1234; // Something unique
@@ -125,6 +250,35 @@ public final class UploadService extends Service {
      */
     public static long PROGRESS_REPORT_INTERVAL = 166;
 
+    /**
+     * Minimum progress change, in percent of the total bytes, which causes a progress update to be
+     * sent at the next {@link UploadService#PROGRESS_REPORT_INTERVAL}. Smaller changes are sent
+     * only after {@link UploadService#PROGRESS_MAX_REPORT_INTERVAL}. Set it to 0 to send every change.
+     */
+    public static double PROGRESS_MIN_PERCENT_STEP = 1;
+
+    /**
+     * Maximum interval in milliseconds between two progress updates of an upload which is
+     * transferring data, also if the progress changed less than
+     * {@link UploadService#PROGRESS_MIN_PERCENT_STEP} percent.
+     */
+    public static long PROGRESS_MAX_REPORT_INTERVAL = 1000;
+
+    /**
+     * By default, all the events are sent in broadcast, also when they are received by an
+     * {@link UploadEventBus} subscriber. Set this to true to not send in broadcast the events
+     * received by at least one subscriber, if you don't have any
+     * {@link UploadServiceBroadcastReceiver} which needs them, e.g. in another process.
+     */
+    public static boolean SKIP_BROADCASTS_FOR_SUBSCRIBED_EVENTS = false;
+
+    /**
+     * Maximum number of progress notification updates per second, considering all the uploads
+     * together. Android drops the updates of apps which post too many of them, so keep this
+     * under 5. Set it to 0 to disable the limit.
+     */
+    public static int MAX_NOTIFICATION_UPDATES_PER_SECOND = 4;
+
     // constants used in the intent which starts this service
     private static final String ACTION_UPLOAD_SUFFIX = ".uploadservice.action.upload";
     protected static final String PARAM_TASK_PARAMETERS = "taskParameters";
@@ -139,14 +293,64 @@ public final class UploadService extends Service {
     private int notificationIncrementalId = 0;
     private static final Map<String, UploadTask> uploadTasksMap = new ConcurrentHashMap<>();
     private static final Map<String, WeakReference<UploadStatusDelegate>> uploadDelegates = new ConcurrentHashMap<>();
-    private final BlockingQueue<Runnable> uploadTasksQueue = new LinkedBlockingQueue<>();
+    private static final Comparator<Runnable> TASK_COMPARATOR = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable first, Runnable second) {
+            UploadTask firstTask = (UploadTask) first;
+            UploadTask secondTask = (UploadTask) second;
+
+            if (firstTask.schedulingKey != secondTask.schedulingKey) {
+                return firstTask.schedulingKey < secondTask.schedulingKey ? -1 : 1;
+            }
+
+            return firstTask.schedulingSequence < secondTask.schedulingSequence ? -1
+                    : (firstTask.schedulingSequence == secondTask.schedulingSequence ? 0 : 1);
+        }
+    };
+    private final BlockingQueue<Runnable> uploadTasksQueue = new PriorityBlockingQueue<>(11, TASK_COMPARATOR);
+    private final HostConcurrencyLimiter hostConcurrencyLimiter = new HostConcurrencyLimiter(TASK_COMPARATOR);
+    private static final Map<String, Integer> hostConcurrencyLimits = new ConcurrentHashMap<>();
+    private static final Map<String, UploadTask.Creator> taskCreators = new ConcurrentHashMap<>();
+
+    static {
+        registerTask(BinaryUploadTask.class, new UploadTask.Creator() {
+            @Override
+            public UploadTask newInstance() {
+                return new BinaryUploadTask();
+            }
+        });
+
+        registerTask(MultipartUploadTask.class, new UploadTask.Creator() {
+            @Override
+            public UploadTask newInstance() {
+                return new MultipartUploadTask();
+            }
+        });
+    }
+    private static final BandwidthLimiter globalBandwidthLimiter = new BandwidthLimiter(0);
+    private static final BufferPool bufferPool = new BufferPool();
+    private long schedulingSequence = 0;
     private static volatile String foregroundUploadId = null;
     private ThreadPoolExecutor uploadThreadPool;
+    // computes the scheduling keys which may need to read the files to upload
+    private ExecutorService schedulingExecutor;
     private Timer idleTimer = null;
     private static final Map<String, ConnectivityManager.NetworkCallback> networkCallbacks = new ConcurrentHashMap<>();
     private final Handler handler = new Handler();
     private ConnectivityManager connectivityManager = null;
 
+    // for upload journal
+    UploadJournal journal = null;
+
+    // for upload deduplication, opened when needed
+    private UploadDeduplicationIndex deduplicationIndex = null;
+
+    // for progress updates
+    ProgressDispatcher progressDispatcher = null;
+
+    // for adaptive pool size
+    AdaptiveConcurrencyController concurrencyController = null;
+
     // for single notification mode
     private static SingleNotification.Delegate singleNofiticationDelegate = null;
     protected SingleNotification singleNotification = null;
@@ -170,6 +374,51 @@ public final class UploadService extends Service {
         }
     }
 
+    /**
+     * Changes the maximum upload speed of an upload request. The new limit is applied
+     * immediately, also if the upload is running.
+     * @param uploadId The unique upload id
+     * @param maxBytesPerSecond maximum number of bytes per second. Zero means no limit.
+     */
+    public static void setMaxBandwidth(final String uploadId, long maxBytesPerSecond) {
+        UploadTask task = uploadTasksMap.get(uploadId);
+        if (task != null) {
+            task.params.setMaxBytesPerSecond(maxBytesPerSecond);
+            task.getBandwidthLimiter().setMaxBytesPerSecond(maxBytesPerSecond);
+        }
+    }
+
+    /**
+     * Gets the limiter shared by all the uploads. Use it to set the maximum upload speed of all
+     * the uploads together. The limit can be changed at any time and it's applied immediately,
+     * also to the running uploads. By default there's no limit.
+     * @return global bandwidth limiter
+     */
+    public static BandwidthLimiter getGlobalBandwidthLimiter() {
+        return globalBandwidthLimiter;
+    }
+
+    /**
+     * Gets the pool of the buffers used to send files and read server responses, which is shared
+     * by all the upload tasks. Use it to get pool statistics.
+     * @return buffer pool
+     */
+    public static BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Gets the index of the completed uploads, opening it the first time.
+     * @return deduplication index
+     */
+    synchronized UploadDeduplicationIndex getDeduplicationIndex() {
+        if (deduplicationIndex == null) {
+            deduplicationIndex = UploadDeduplicationIndex.open(this);
+        }
+
+        return deduplicationIndex;
+    }
+
     /**
      * Gets the list of the currently active upload tasks.
      * @return list of uploadIDs or an empty list if no tasks are currently running
@@ -247,6 +496,12 @@ public final class UploadService extends Service {
             singleNotification = new SingleNotification(this, singleNofiticationDelegate);
         }
 
+        if (UPLOAD_JOURNAL_ENABLED) {
+            journal = UploadJournal.open(this);
+        }
+
+        progressDispatcher = new ProgressDispatcher(this);
+
         // Creates a thread pool manager
         uploadThreadPool = new ThreadPoolExecutor(
                 UPLOAD_POOL_SIZE,       // Initial pool size
@@ -254,6 +509,13 @@ public final class UploadService extends Service {
                 KEEP_ALIVE_TIME_IN_SECONDS,
                 TimeUnit.SECONDS,
                 uploadTasksQueue);
+
+        schedulingExecutor = Executors.newSingleThreadExecutor();
+
+        if (ADAPTIVE_POOL_SIZE_ENABLED) {
+            concurrencyController = new AdaptiveConcurrencyController(uploadThreadPool, handler);
+            concurrencyController.start();
+        }
     }
 
     @Override
@@ -263,6 +525,12 @@ public final class UploadService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null && journal != null) {
+            // the service has been restarted by the system after the process has been killed
+            resumeJournaledUploads();
+            return shutdownIfThereArentAnyActiveTasks();
+        }
+
         if (intent == null || !getActionUpload().equals(intent.getAction())) {
             return shutdownIfThereArentAnyActiveTasks();
         }
@@ -282,14 +550,32 @@ public final class UploadService extends Service {
             return shutdownIfThereArentAnyActiveTasks();
         }
 
+        if (!addTask(currentTask, intent)) {
+            return shutdownIfThereArentAnyActiveTasks();
+        }
+
+        return START_STICKY;
+    }
+
+    /**
+     * Registers a new task and schedules its execution.
+     * @param currentTask task to add
+     * @param intent intent from which the task has been created
+     * @return true if the task has been added, false if another task with the same ID exists
+     */
+    private boolean addTask(UploadTask currentTask, Intent intent) {
         if (uploadTasksMap.containsKey(currentTask.params.id)) {
             Logger.error(TAG, "Preventing upload with id: " + currentTask.params.id
                     + " to be uploaded twice! Please check your code and fix it!");
-            return shutdownIfThereArentAnyActiveTasks();
+            return false;
         }
 
         clearIdleTimer();
 
+        if (journal != null) {
+            journal.enqueued(currentTask.params.id, intent);
+        }
+
         // increment by 2 because the notificationIncrementalId + 1 is used internally
         // in each UploadTask. Check its sources for more info about this.
         notificationIncrementalId += 2;
@@ -303,7 +589,32 @@ public final class UploadService extends Service {
             singleNotification.startForeground();
         }
 
-        return START_STICKY;
+        return true;
+    }
+
+    /**
+     * Re-creates the tasks which were pending when the process has been killed and resumes
+     * them from their last state saved in the upload journal.
+     */
+    private void resumeJournaledUploads() {
+        for (UploadJournal.Entry entry : journal.takePendingEntries()) {
+            Intent intent = entry.toIntent(this);
+            UploadTask task = intent == null ? null : getTask(intent);
+
+            if (task == null) {
+                Logger.error(TAG, "Unable to resume upload with ID: " + entry.uploadId);
+                journal.finished(entry.uploadId);
+                continue;
+            }
+
+            task.restoreFrom(entry);
+
+            if (addTask(task, intent)) {
+                journal.restored(entry);
+                Logger.info(TAG, "Resumed upload with ID: " + entry.uploadId + " from "
+                        + entry.uploadedBytes + " of " + entry.totalBytes + " bytes");
+            }
+        }
     }
 
     private void clearIdleTimer() {
@@ -335,6 +646,22 @@ public final class UploadService extends Service {
         return START_STICKY;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            Logger.debug(TAG, "Releasing pooled buffers (" + bufferPool + ")");
+            bufferPool.trim();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        bufferPool.trim();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -348,8 +675,25 @@ public final class UploadService extends Service {
             // TODO API < 21
         }
 
+        if (concurrencyController != null) {
+            concurrencyController.stop();
+        }
+
         stopAllUploads();
+        schedulingExecutor.shutdownNow();
         uploadThreadPool.shutdown();
+        progressDispatcher.shutdown();
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        synchronized (this) {
+            if (deduplicationIndex != null) {
+                deduplicationIndex.close();
+                deduplicationIndex = null;
+            }
+        }
 
         if (isExecuteInForeground()) {
             Logger.debug(TAG, "Stopping foreground execution");
@@ -379,19 +723,28 @@ public final class UploadService extends Service {
         UploadTask uploadTask = null;
 
         try {
-            Class<?> task = Class.forName(taskClass);
+            UploadTask.Creator creator = taskCreators.get(taskClass);
 
-            if (UploadTask.class.isAssignableFrom(task)) {
-                uploadTask = UploadTask.class.cast(task.newInstance());
-                uploadTask.init(this, intent);
+            if (creator != null) {
+                uploadTask = creator.newInstance();
             } else {
-                Logger.error(TAG, taskClass + " does not extend UploadTask!");
+                // tasks which have not been registered are instantiated with reflection
+                Class<?> task = Class.forName(taskClass);
+
+                if (UploadTask.class.isAssignableFrom(task)) {
+                    uploadTask = UploadTask.class.cast(task.newInstance());
+                } else {
+                    Logger.error(TAG, taskClass + " does not extend UploadTask!");
+                    return null;
+                }
             }
 
+            uploadTask.init(this, intent);
             Logger.debug(TAG, "Successfully created new task with class: " + taskClass);
 
         } catch (Exception exc) {
             Logger.error(TAG, "Error while instantiating new task", exc);
+            uploadTask = null;
         }
 
         return uploadTask;
@@ -402,20 +755,26 @@ public final class UploadService extends Service {
      * @param uploadId ID of the upload
      * @return true if the current upload task holds the foreground notification, otherwise false
      */
-    protected synchronized boolean holdForegroundNotification(String uploadId, Notification notification) {
+    protected boolean holdForegroundNotification(String uploadId, Notification notification) {
         if (!isExecuteInForeground() || singleNotification != null) return false;
 
-        if (foregroundUploadId == null) {
-            foregroundUploadId = uploadId;
-            Logger.debug(TAG, uploadId + " now holds the foreground notification");
-        }
+        // fast path for the tasks which don't hold the foreground notification, without locking
+        String holder = foregroundUploadId;
+        if (holder != null && !holder.equals(uploadId)) return false;
 
-        if (uploadId.equals(foregroundUploadId)) {
-            startForeground(UPLOAD_NOTIFICATION_BASE_ID, notification);
-            return true;
-        }
+        synchronized (this) {
+            if (foregroundUploadId == null) {
+                foregroundUploadId = uploadId;
+                Logger.debug(TAG, uploadId + " now holds the foreground notification");
+            }
+
+            if (uploadId.equals(foregroundUploadId)) {
+                startForeground(UPLOAD_NOTIFICATION_BASE_ID, notification);
+                return true;
+            }
 
-        return false;
+            return false;
+        }
     }
 
     /**
@@ -424,10 +783,21 @@ public final class UploadService extends Service {
      * @param uploadId the uploadID of the finished task
      */
     protected synchronized void taskCompleted(String uploadId) {
+        // the task is not removed from the queue if it's waiting there, as it's an O(n)
+        // operation. It will be skipped when dequeued, as it's not active anymore
         UploadTask task = uploadTasksMap.remove(uploadId);
-        uploadTasksQueue.remove(task);
         uploadDelegates.remove(uploadId);
 
+        if (journal != null) {
+            journal.finished(uploadId);
+        }
+
+        // let the next upload waiting for the same host start
+        UploadTask nextTask = hostConcurrencyLimiter.release(task);
+        if (nextTask != null && !uploadThreadPool.isShutdown()) {
+            uploadThreadPool.execute(nextTask);
+        }
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             ConnectivityManager.NetworkCallback callback = networkCallbacks.get(uploadId);
             if (callback != null) {
@@ -547,7 +917,113 @@ public final class UploadService extends Service {
      */
     private void startTask(final UploadTask task) {
         wakeLock.acquire();
-        uploadThreadPool.execute(task);
+
+        final SchedulingPolicy policy = SCHEDULING_POLICY == null ? SchedulingPolicy.FIFO : SCHEDULING_POLICY;
+
+        synchronized (this) {
+            task.schedulingSequence = ++schedulingSequence;
+        }
+
+        if (policy == SchedulingPolicy.FIFO || policy == SchedulingPolicy.PRIORITY) {
+            task.schedulingKey = policy.getSchedulingKey(task);
+            queueTask(task);
+            return;
+        }
+
+        // the other policies may have to read the files (e.g. to get their length), so the key
+        // is computed in background and then the task is queued from the main thread
+        try {
+            schedulingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long key = 0;
+
+                    try {
+                        key = policy.getSchedulingKey(task);
+                    } catch (Exception exc) {
+                        Logger.error(TAG, "Error while computing scheduling key of task " + task.params.id, exc);
+                    }
+
+                    final long schedulingKey = key;
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            task.schedulingKey = schedulingKey;
+
+                            // the task may have been cancelled or the service stopped meanwhile
+                            if (uploadTasksMap.get(task.params.id) == task && !uploadThreadPool.isShutdown()) {
+                                queueTask(task);
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException exc) {
+            Logger.error(TAG, "Service is stopping, task " + task.params.id + " not queued", exc);
+        }
+    }
+
+    private void queueTask(UploadTask task) {
+        if (hostConcurrencyLimiter.tryAcquire(task)) {
+            uploadThreadPool.execute(task);
+        }
+    }
+
+    /**
+     * Sets the maximum number of uploads which can be executed at the same time towards a
+     * specific server host, overriding {@link UploadService#MAX_CONCURRENT_UPLOADS_PER_HOST}.
+     * The new limit is applied to the uploads started from now on.
+     * @param host host name, followed by the port if the server URLs have one (e.g. example.com:8080)
+     * @param maxConcurrentUploads maximum number of concurrent uploads. 0 means no limit.
+     * A negative value removes the limit set for the host.
+     */
+    public static void setMaxConcurrentUploadsForHost(String host, int maxConcurrentUploads) {
+        if (host == null)
+            throw new IllegalArgumentException("host must not be null");
+
+        String key = host.toLowerCase(Locale.US);
+
+        if (maxConcurrentUploads < 0) {
+            hostConcurrencyLimits.remove(key);
+        } else {
+            hostConcurrencyLimits.put(key, maxConcurrentUploads);
+        }
+    }
+
+    /**
+     * Gets the maximum number of uploads which can be executed at the same time towards a
+     * server host.
+     * @param host host name, followed by the port if the server URLs have one
+     * @return maximum number of concurrent uploads. 0 means no limit.
+     */
+    public static int getMaxConcurrentUploadsForHost(String host) {
+        Integer limit = host == null ? null : hostConcurrencyLimits.get(host.toLowerCase(Locale.US));
+        return limit == null ? MAX_CONCURRENT_UPLOADS_PER_HOST : limit;
+    }
+
+    /**
+     * Registers the creator of an upload task class, so the service can instantiate the tasks of
+     * that class without using reflection. Register the tasks before the upload service
+     * starts (e.g. in {@code Application.onCreate}). Tasks which are not registered are
+     * instantiated with reflection.
+     * @param taskClass upload task class
+     * @param creator creates the task instances
+     */
+    public static void registerTask(Class<? extends UploadTask> taskClass, UploadTask.Creator creator) {
+        if (taskClass == null || creator == null)
+            throw new IllegalArgumentException("taskClass and creator must not be null");
+
+        taskCreators.put(taskClass.getName(), creator);
+    }
+
+    /**
+     * Checks if a task is still active, i.e. it has not been completed or cancelled.
+     * @param task upload task
+     * @return true if the task is active, otherwise false
+     */
+    static boolean isTaskActive(UploadTask task) {
+        return uploadTasksMap.get(task.params.id) == task;
     }
 
     /**
@@ -8,6 +8,7 @@ import android.content.Intent;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.support.v4.app.NotificationCompat;
 
@@ -15,9 +16,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class to subclass when creating upload tasks. It contains the logic common to all the tasks,
@@ -28,6 +33,18 @@ public abstract class UploadTask implements Runnable {
 
     private static final String LOG_TAG = UploadTask.class.getSimpleName();
 
+    /**
+     * Creates new upload task instances. See
+     * {@link UploadService#registerTask(Class, UploadTask.Creator)}.
+     */
+    public interface Creator {
+        /**
+         * Creates a new, not initialized, upload task.
+         * @return upload task instance
+         */
+        UploadTask newInstance();
+    }
+
     /**
      * Constant which indicates that the upload task has been completed successfully.
      */
@@ -51,7 +68,12 @@ public abstract class UploadTask implements Runnable {
     /**
      * Contains the absolute local path of the successfully uploaded files.
      */
-    private final List<String> successfullyUploadedFiles = new ArrayList<>();
+    private final UploadedFileList successfullyUploadedFiles = new UploadedFileList();
+
+    /**
+     * Paths of all the files of the upload, shared by all the {@link UploadInfo} of this task.
+     */
+    private volatile ArrayList<String> filePaths = null;
 
     /**
      * Flag indicating if the operation should continue or is cancelled. You should never
@@ -65,11 +87,33 @@ public abstract class UploadTask implements Runnable {
     protected boolean shouldContinue = true;
 
     private int notificationId;
-    private long lastProgressNotificationTime;
+    private volatile long lastProgressNotificationTime;
     private NotificationManager notificationManager;
     private Handler mainThreadHandler;
     private long notificationCreationTimeMillis;
 
+    /**
+     * Builder of the progress notification, reused for all the progress updates, and the
+     * content shown by the last update.
+     */
+    private NotificationCompat.Builder progressNotification;
+    private String lastNotificationTitle;
+    private String lastNotificationText;
+    private int lastNotificationPercent;
+    private final StringBuilder notificationTextBuilder = new StringBuilder(64);
+
+    /**
+     * Notification channels which have already been created, shared by all the tasks.
+     */
+    private static final Set<String> createdNotificationChannels =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Earliest time at which any task can update its progress notification, to keep the
+     * progress updates of all the tasks under {@link UploadService#MAX_NOTIFICATION_UPDATES_PER_SECOND}.
+     */
+    private static final AtomicLong nextNotificationUpdateTime = new AtomicLong(0);
+
     /**
      * Total bytes to transfer. You should initialize this value in the
      * {@link UploadTask#upload()} method of your subclasses, before starting the upload data
@@ -83,6 +127,16 @@ public abstract class UploadTask implements Runnable {
      */
     protected long uploadedBytes;
 
+    /**
+     * Bytes sent after compressing the uploaded data, or -1 if the data is not compressed.
+     */
+    private volatile long compressedBytes = -1;
+
+    /**
+     * Digest of the uploaded content, as a hex string, or null if not available.
+     */
+    private volatile String contentDigest;
+
     /**
      * Start timestamp of this upload task.
      */
@@ -98,6 +152,33 @@ public abstract class UploadTask implements Runnable {
      */
     private volatile boolean isRunning = false;
 
+    /**
+     * Scheduling key computed by {@link SchedulingPolicy} when the task has been queued.
+     */
+    long schedulingKey = 0;
+
+    /**
+     * Progressive number assigned when the task has been queued.
+     */
+    long schedulingSequence = 0;
+
+    /**
+     * True if the task holds one of the execution slots available for its server host.
+     */
+    boolean holdsHostSlot = false;
+
+    /**
+     * Last progress reported by the task, read by {@link ProgressDispatcher}.
+     */
+    private volatile long progressUploadedBytes;
+    private volatile long progressTotalBytes;
+    private boolean progressDispatcherRegistered = false;
+
+    /**
+     * Limits the upload speed of this task.
+     */
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0);
+
     /**
      * Implementation of the upload logic.
      * @throws Exception if an error occurs
@@ -123,6 +204,7 @@ public abstract class UploadTask implements Runnable {
         this.params = intent.getParcelableExtra(UploadService.PARAM_TASK_PARAMETERS);
         this.service = service;
         this.mainThreadHandler = new Handler(service.getMainLooper());
+        this.bandwidthLimiter.setMaxBytesPerSecond(params.getMaxBytesPerSecond());
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && params.notificationConfig != null) {
             String notificationChannelId = params.notificationConfig.getNotificationChannelId();
@@ -132,9 +214,12 @@ public abstract class UploadTask implements Runnable {
                 notificationChannelId = UploadService.NAMESPACE;
             }
 
-            if (notificationManager.getNotificationChannel(notificationChannelId) == null) {
-                NotificationChannel channel = new NotificationChannel(notificationChannelId, "Upload Service channel", NotificationManager.IMPORTANCE_LOW);
-                notificationManager.createNotificationChannel(channel);
+            if (!createdNotificationChannels.contains(notificationChannelId)) {
+                if (notificationManager.getNotificationChannel(notificationChannelId) == null) {
+                    NotificationChannel channel = new NotificationChannel(notificationChannelId, "Upload Service channel", NotificationManager.IMPORTANCE_LOW);
+                    notificationManager.createNotificationChannel(channel);
+                }
+                createdNotificationChannels.add(notificationChannelId);
             }
         }
     }
@@ -142,6 +227,12 @@ public abstract class UploadTask implements Runnable {
     @Override
     public final void run() {
 
+        // cancelled tasks are not removed from the queue, so skip them when they get executed
+        if (!UploadService.isTaskActive(this)) {
+            releaseFiles();
+            return;
+        }
+
         isRunning = true;
         attempts = 0;
         int errorDelay = UploadService.INITIAL_RETRY_WAIT_TIME;
@@ -162,6 +253,10 @@ public abstract class UploadTask implements Runnable {
                 } else if (attempts > params.getMaxRetries()) {
                     broadcastError(exc);
                 } else {
+                    if (service.concurrencyController != null) {
+                        service.concurrencyController.onError();
+                    }
+
                     Logger.error(LOG_TAG, "Error in uploadId " + params.id
                             + " on attempt " + attempts
                             + ". Waiting " + errorDelay / 1000 + "s before next attempt. ", exc);
@@ -186,9 +281,122 @@ public abstract class UploadTask implements Runnable {
             broadcastCancelled();
         }
 
+        releaseFiles();
         isRunning = false;
     }
 
+    /**
+     * Frees the in-memory content of the files, as soon as the upload is finished.
+     */
+    private void releaseFiles() {
+        for (UploadFile file : params.files) {
+            file.release();
+        }
+    }
+
+    /**
+     * Gets the priority set with {@link UploadRequest#setPriority(int)}.
+     * @return priority
+     */
+    public final int getPriority() {
+        return params.getPriority();
+    }
+
+    /**
+     * Gets the limiter of the upload speed of this task, set with
+     * {@link UploadRequest#setMaxBandwidth(long)}.
+     * @return bandwidth limiter
+     */
+    public final BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Blocks until the given number of bytes can be transferred without exceeding both the
+     * global upload speed limit and the one of this task. Call this from your subclasses for
+     * each chunk of data, if you don't use {@link net.gotev.uploadservice.http.BodyWriter}.
+     * @param bytes number of bytes to transfer
+     * @throws IOException if the thread gets interrupted while waiting
+     */
+    protected final void throttle(int bytes) throws IOException {
+        UploadService.getGlobalBandwidthLimiter().acquire(bytes);
+        bandwidthLimiter.acquire(bytes);
+    }
+
+    /**
+     * Reports the bytes transferred to the server, used to measure the upload throughput
+     * when {@link UploadService#ADAPTIVE_POOL_SIZE_ENABLED} is set to true. Call this from your
+     * subclasses for each chunk of data sent. It's safe to call this from multiple threads.
+     * @param bytes number of transferred bytes
+     */
+    protected final void reportTransferredBytes(int bytes) {
+        AdaptiveConcurrencyController controller = service.concurrencyController;
+        if (controller != null) {
+            controller.onBytesTransferred(bytes);
+        }
+    }
+
+    /**
+     * Gets the number of bytes this task is expected to upload. It's used by
+     * {@link SchedulingPolicy#SHORTEST_JOB_FIRST}. By default it's the sum of the lengths of all
+     * the files to upload. Override it in subclasses if you can give a better estimate.
+     * @return number of bytes
+     */
+    public long getEstimatedTotalBytes() {
+        long total = 0;
+
+        for (UploadFile file : params.files) {
+            total += file.length(service);
+        }
+
+        return total;
+    }
+
+    /**
+     * Restores the state of this task from the last checkpoint saved in the upload journal.
+     * This gets called by {@link UploadService} when resuming uploads after the process has been
+     * killed, before the task gets executed.
+     * Tasks which restart from the beginning, like {@link HttpUploadTask}, discard this state
+     * when they start uploading, so the journal only re-enqueues them. Tasks which can resume
+     * have to check {@link #getSuccessfullyUploadedFiles()} to skip the files already uploaded,
+     * or restore the state they saved with {@link #saveResumeState(Bundle)}.
+     * @param entry journal entry
+     */
+    final void restoreFrom(UploadJournal.Entry entry) {
+        uploadedBytes = entry.uploadedBytes;
+        totalBytes = entry.totalBytes;
+        successfullyUploadedFiles.clear();
+        successfullyUploadedFiles.addAll(entry.completedFiles);
+
+        Bundle resumeState = entry.getResumeState();
+        if (resumeState != null) {
+            onRestoreResumeState(resumeState);
+        }
+    }
+
+    /**
+     * Saves in the upload journal the state needed to resume this upload on the server after the
+     * process has been killed, like the ID of the upload session created on the server. The
+     * state replaces the previously saved one and it's written immediately, so call this only
+     * when it changes. Does nothing if {@link UploadService#UPLOAD_JOURNAL_ENABLED} is false.
+     * @param state state to save, which must contain only primitive types, strings and arrays
+     *              of them, or null to clear the saved state
+     */
+    protected final void saveResumeState(Bundle state) {
+        if (service.journal != null) {
+            service.journal.resumeStateChanged(params.id, state);
+        }
+    }
+
+    /**
+     * Called when this task is resumed from the upload journal after the process has been
+     * killed, after {@link #init(UploadService, Intent)} and before the task gets executed.
+     * Override it to restore the state saved with {@link #saveResumeState(Bundle)}.
+     * @param state last saved state
+     */
+    protected void onRestoreResumeState(Bundle state) {
+    }
+
     /**
      * Sets the last time the notification was updated.
      * This is handled automatically and you should never call this method.
@@ -219,41 +427,72 @@ public abstract class UploadTask implements Runnable {
      * @param totalBytes total bytes of the request
      */
     protected final void broadcastProgress(final long uploadedBytes, final long totalBytes) {
+        progressUploadedBytes = uploadedBytes;
+        progressTotalBytes = totalBytes;
 
-        long currentTime = System.currentTimeMillis();
-        if (uploadedBytes >= totalBytes || currentTime >= lastProgressNotificationTime + UploadService.PROGRESS_REPORT_INTERVAL) {
-            setLastProgressNotificationTime(currentTime);
+        if (!progressDispatcherRegistered && service.progressDispatcher != null) {
+            progressDispatcherRegistered = true;
+            service.progressDispatcher.add(this);
+        }
+    }
 
+    long getProgressUploadedBytes() {
+        return progressUploadedBytes;
+    }
+
+    long getProgressTotalBytes() {
+        return progressTotalBytes;
+    }
+
+    /**
+     * Called by {@link ProgressDispatcher} to emit the progress of this task.
+     * @param uploadedBytes uploaded bytes
+     * @param totalBytes total bytes
+     * @param currentTime dispatch time
+     * @return the update to deliver to the delegate on the main thread, or null if the progress
+     * has been broadcasted
+     */
+    Runnable dispatchProgress(final long uploadedBytes, final long totalBytes, long currentTime) {
+        setLastProgressNotificationTime(currentTime);
+
+        if (Logger.isDebugEnabled()) {
             Logger.debug(LOG_TAG, "Broadcasting upload progress for " + params.id
                 + ": " + uploadedBytes + " bytes of " + totalBytes);
+        }
 
-            final UploadInfo uploadInfo = new UploadInfo(params.id, startTime, uploadedBytes,
-                totalBytes, (attempts - 1),
-                successfullyUploadedFiles,
-                pathStringListFrom(params.files));
+        final UploadInfo uploadInfo = createUploadInfo(uploadedBytes, totalBytes, currentTime);
 
-            BroadcastData data = new BroadcastData()
-                .setStatus(BroadcastData.Status.IN_PROGRESS)
-                .setUploadInfo(uploadInfo);
+        BroadcastData data = new BroadcastData()
+            .setStatus(BroadcastData.Status.IN_PROGRESS)
+            .setUploadInfo(uploadInfo);
 
-            final UploadStatusDelegate delegate = UploadService.getUploadStatusDelegate(params.id);
-            if (delegate != null) {
-                mainThreadHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        delegate.onProgress(service, uploadInfo);
-                    }
-                });
-            } else {
-                service.sendBroadcast(data.getIntent());
+        Runnable delivery = deliver(data, new UploadEventBus.Event() {
+            @Override
+            public void deliver(Context context, UploadStatusDelegate listener) {
+                listener.onProgress(context, uploadInfo);
             }
+        });
+
+        updateNotificationProgress(uploadInfo);
 
-            updateNotificationProgress(uploadInfo);
+        if (service.journal != null) {
+            service.journal.checkpoint(params.id, uploadedBytes, totalBytes);
         }
 
         if (service.singleNotification != null) {
             service.singleNotification.update(this, SingleNotification.UploadStatus.UPLOADING);
         }
+
+        return delivery;
+    }
+
+    /**
+     * Stops the progress updates of this task, before emitting a terminal event.
+     */
+    private void stopProgressDispatch() {
+        if (progressDispatcherRegistered && service.progressDispatcher != null) {
+            service.progressDispatcher.remove(this);
+        }
     }
 
     /**
@@ -266,13 +505,15 @@ public abstract class UploadTask implements Runnable {
      */
     protected final void broadcastCompleted(final ServerResponse response) {
 
+        stopProgressDispatch();
+
         final boolean successfulUpload = response.getHttpCode() >= 200 && response.getHttpCode() < 400;
 
         if (successfulUpload) {
             onSuccessfulUpload();
 
             if (params.autoDeleteSuccessfullyUploadedFiles && !successfullyUploadedFiles.isEmpty()) {
-                for (String filePath : successfullyUploadedFiles) {
+                for (String filePath : successfullyUploadedFiles.snapshot()) {
                     deleteFile(new File(filePath));
                 }
             }
@@ -281,10 +522,7 @@ public abstract class UploadTask implements Runnable {
         Logger.debug(LOG_TAG, "Broadcasting upload " + (successfulUpload ? "completed" : "error")
                 + " for " + params.id);
 
-        final UploadInfo uploadInfo = new UploadInfo(params.id, startTime, uploadedBytes,
-                                                     totalBytes, (attempts - 1),
-                                                     successfullyUploadedFiles,
-                                                     pathStringListFrom(params.files));
+        final UploadInfo uploadInfo = createUploadInfo(uploadedBytes, totalBytes, System.currentTimeMillis());
 
         final UploadNotificationConfig notificationConfig = params.notificationConfig;
 
@@ -297,26 +535,21 @@ public abstract class UploadTask implements Runnable {
             }
         }
 
-        final UploadStatusDelegate delegate = UploadService.getUploadStatusDelegate(params.id);
-        if (delegate != null) {
-            mainThreadHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if (successfulUpload) {
-                        delegate.onCompleted(service, uploadInfo, response);
-                    } else {
-                        delegate.onError(service, uploadInfo, response, null);
-                    }
-                }
-            });
-        } else {
-            BroadcastData data = new BroadcastData()
-                    .setStatus(successfulUpload ? BroadcastData.Status.COMPLETED : BroadcastData.Status.ERROR)
-                    .setUploadInfo(uploadInfo)
-                    .setServerResponse(response);
+        BroadcastData data = new BroadcastData()
+                .setStatus(successfulUpload ? BroadcastData.Status.COMPLETED : BroadcastData.Status.ERROR)
+                .setUploadInfo(uploadInfo)
+                .setServerResponse(response);
 
-            service.sendBroadcast(data.getIntent());
-        }
+        post(deliver(data, new UploadEventBus.Event() {
+            @Override
+            public void deliver(Context context, UploadStatusDelegate listener) {
+                if (successfulUpload) {
+                    listener.onCompleted(context, uploadInfo, response);
+                } else {
+                    listener.onError(context, uploadInfo, response, null);
+                }
+            }
+        }));
 
         if (service.singleNotification != null) {
             service.singleNotification.update(this,
@@ -334,12 +567,11 @@ public abstract class UploadTask implements Runnable {
      */
     protected final void broadcastCancelled() {
 
+        stopProgressDispatch();
+
         Logger.debug(LOG_TAG, "Broadcasting cancellation for upload with ID: " + params.id);
 
-        final UploadInfo uploadInfo = new UploadInfo(params.id, startTime, uploadedBytes,
-                                                     totalBytes, (attempts - 1),
-                                                     successfullyUploadedFiles,
-                                                     pathStringListFrom(params.files));
+        final UploadInfo uploadInfo = createUploadInfo(uploadedBytes, totalBytes, System.currentTimeMillis());
 
         final UploadNotificationConfig notificationConfig = params.notificationConfig;
 
@@ -351,17 +583,12 @@ public abstract class UploadTask implements Runnable {
                 .setStatus(BroadcastData.Status.CANCELLED)
                 .setUploadInfo(uploadInfo);
 
-        final UploadStatusDelegate delegate = UploadService.getUploadStatusDelegate(params.id);
-        if (delegate != null) {
-            mainThreadHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    delegate.onCancelled(service, uploadInfo);
-                }
-            });
-        } else {
-            service.sendBroadcast(data.getIntent());
-        }
+        post(deliver(data, new UploadEventBus.Event() {
+            @Override
+            public void deliver(Context context, UploadStatusDelegate listener) {
+                listener.onCancelled(context, uploadInfo);
+            }
+        }));
 
         if (service.singleNotification != null) {
             service.singleNotification.update(this, SingleNotification.UploadStatus.CANCELLED);
@@ -377,6 +604,10 @@ public abstract class UploadTask implements Runnable {
         if (!successfullyUploadedFiles.contains(file.path)) {
             successfullyUploadedFiles.add(file.path);
             // TODO params.files.remove(file);
+
+            if (service.journal != null) {
+                service.journal.fileCompleted(params.id, file.path);
+            }
         }
     }
 
@@ -390,6 +621,10 @@ public abstract class UploadTask implements Runnable {
 
             if (!successfullyUploadedFiles.contains(file.path)) {
                 successfullyUploadedFiles.add(file.path);
+
+                if (service.journal != null) {
+                    service.journal.fileCompleted(params.id, file.path);
+                }
             }
             // TODO iterator.remove();
         }
@@ -417,13 +652,12 @@ public abstract class UploadTask implements Runnable {
      */
     private void broadcastError(final Exception exception) {
 
+        stopProgressDispatch();
+
         Logger.info(LOG_TAG, "Broadcasting error for upload with ID: "
                 + params.id + ". " + exception.getMessage());
 
-        final UploadInfo uploadInfo = new UploadInfo(params.id, startTime, uploadedBytes,
-                                                     totalBytes, (attempts - 1),
-                                                     successfullyUploadedFiles,
-                                                     pathStringListFrom(params.files));
+        final UploadInfo uploadInfo = createUploadInfo(uploadedBytes, totalBytes, System.currentTimeMillis());
 
         final UploadNotificationConfig notificationConfig = params.notificationConfig;
 
@@ -436,22 +670,53 @@ public abstract class UploadTask implements Runnable {
                 .setUploadInfo(uploadInfo)
                 .setException(exception);
 
+        post(deliver(data, new UploadEventBus.Event() {
+            @Override
+            public void deliver(Context context, UploadStatusDelegate listener) {
+                listener.onError(context, uploadInfo, null, exception);
+            }
+        }));
+
+        if (service.singleNotification != null) {
+            service.singleNotification.update(this, SingleNotification.UploadStatus.ERROR);
+        }
+        service.taskCompleted(params.id);
+    }
+
+    /**
+     * Delivers an event to the delegate of this upload or, if it doesn't have one, to the
+     * matching subscribers of {@link UploadEventBus}. The event is also sent in broadcast, unless
+     * it has subscribers and {@link UploadService#SKIP_BROADCASTS_FOR_SUBSCRIBED_EVENTS} is true.
+     * @param data broadcast data of the event
+     * @param event event to deliver in this process
+     * @return runnable which delivers the event when executed on the main thread, or null if
+     * there isn't anyone to deliver it to in this process
+     */
+    private Runnable deliver(BroadcastData data, final UploadEventBus.Event event) {
         final UploadStatusDelegate delegate = UploadService.getUploadStatusDelegate(params.id);
+
         if (delegate != null) {
-            mainThreadHandler.post(new Runnable() {
+            return new Runnable() {
                 @Override
                 public void run() {
-                    delegate.onError(service, uploadInfo, null, exception);
+                    event.deliver(service, delegate);
                 }
-            });
-        } else {
+            };
+        }
+
+        Runnable delivery = UploadEventBus.prepareDelivery(service, params.id, params.getGroup(), event);
+
+        if (delivery == null || !UploadService.SKIP_BROADCASTS_FOR_SUBSCRIBED_EVENTS) {
             service.sendBroadcast(data.getIntent());
         }
 
-        if (service.singleNotification != null) {
-            service.singleNotification.update(this, SingleNotification.UploadStatus.ERROR);
+        return delivery;
+    }
+
+    private void post(Runnable delivery) {
+        if (delivery != null) {
+            mainThreadHandler.post(delivery);
         }
-        service.taskCompleted(params.id);
     }
 
     /**
@@ -464,11 +729,14 @@ public abstract class UploadTask implements Runnable {
 
         UploadNotificationStatusConfig statusConfig = params.notificationConfig.getProgress();
         notificationCreationTimeMillis = System.currentTimeMillis();
+        lastNotificationTitle = Placeholders.replace(statusConfig.title, uploadInfo);
+        lastNotificationText = Placeholders.replace(statusConfig.message, uploadInfo);
+        lastNotificationPercent = -1;
 
         NotificationCompat.Builder notification = new NotificationCompat.Builder(service, params.notificationConfig.getNotificationChannelId())
                 .setWhen(notificationCreationTimeMillis)
-                .setContentTitle(Placeholders.replace(statusConfig.title, uploadInfo))
-                .setContentText(Placeholders.replace(statusConfig.message, uploadInfo))
+                .setContentTitle(lastNotificationTitle)
+                .setContentText(lastNotificationText)
                 .setContentIntent(statusConfig.getClickIntent(service))
                 .setSmallIcon(statusConfig.iconResourceID)
                 .setLargeIcon(statusConfig.largeIcon)
@@ -479,6 +747,9 @@ public abstract class UploadTask implements Runnable {
 
         statusConfig.addActionsToNotificationBuilder(notification);
 
+        // the same builder is used for the progress updates, as only title, text and progress change
+        progressNotification = notification;
+
         Notification builtNotification = notification.build();
 
         if (service.holdForegroundNotification(params.id, builtNotification)) {
@@ -494,25 +765,34 @@ public abstract class UploadTask implements Runnable {
      * @param uploadInfo upload information and statistics
      */
     private void updateNotificationProgress(UploadInfo uploadInfo) {
-        if (params.notificationConfig == null || params.notificationConfig.getProgress().message == null) return;
+        if (progressNotification == null) return;
 
         UploadNotificationStatusConfig statusConfig = params.notificationConfig.getProgress();
 
-        NotificationCompat.Builder notification = new NotificationCompat.Builder(service, params.notificationConfig.getNotificationChannelId())
-                .setWhen(notificationCreationTimeMillis)
-                .setContentTitle(Placeholders.replace(statusConfig.title, uploadInfo))
-                .setContentText(Placeholders.replace(statusConfig.message, uploadInfo))
-                .setContentIntent(statusConfig.getClickIntent(service))
-                .setSmallIcon(statusConfig.iconResourceID)
-                .setLargeIcon(statusConfig.largeIcon)
-                .setColor(statusConfig.iconColorResourceID)
-                .setGroup(UploadService.NAMESPACE)
-                .setProgress((int)uploadInfo.getTotalBytes(), (int)uploadInfo.getUploadedBytes(), false)
-                .setOngoing(true);
+        // new strings are created only when the rendered text differs from the last one
+        String title = render(statusConfig.title, uploadInfo, lastNotificationTitle);
+        String text = render(statusConfig.message, uploadInfo, lastNotificationText);
+        int percent = uploadInfo.getProgressPercent();
 
-        statusConfig.addActionsToNotificationBuilder(notification);
+        // skip the update if nothing visible changed
+        if (percent == lastNotificationPercent && title == lastNotificationTitle
+                && text == lastNotificationText)
+            return;
 
-        Notification builtNotification = notification.build();
+        if (!acquireNotificationUpdate())
+            return;
+
+        lastNotificationTitle = title;
+        lastNotificationText = text;
+        lastNotificationPercent = percent;
+
+        // progress is expressed in percent, as byte counts don't fit in an int for files over 2GB
+        progressNotification
+                .setContentTitle(title)
+                .setContentText(text)
+                .setProgress(100, percent, false);
+
+        Notification builtNotification = progressNotification.build();
 
         if (service.holdForegroundNotification(params.id, builtNotification)) {
             notificationManager.cancel(notificationId);
@@ -521,6 +801,44 @@ public abstract class UploadTask implements Runnable {
         }
     }
 
+    /**
+     * Replaces the placeholders of a notification text, reusing the same buffer.
+     * @param template text with placeholders
+     * @param uploadInfo upload information and statistics
+     * @param last last rendered text
+     * @return last rendered text if it's the same as the new one, otherwise the new text
+     */
+    private String render(String template, UploadInfo uploadInfo, String last) {
+        if (template == null || template.isEmpty())
+            return "";
+
+        notificationTextBuilder.setLength(0);
+        NotificationTemplate.get(template).render(notificationTextBuilder, uploadInfo);
+
+        if (last != null && last.contentEquals(notificationTextBuilder))
+            return last;
+
+        return notificationTextBuilder.toString();
+    }
+
+    /**
+     * Checks if a progress notification update can be made now without exceeding
+     * {@link UploadService#MAX_NOTIFICATION_UPDATES_PER_SECOND}, considering all the tasks.
+     * @return true if the notification can be updated
+     */
+    private static boolean acquireNotificationUpdate() {
+        int maxUpdatesPerSecond = UploadService.MAX_NOTIFICATION_UPDATES_PER_SECOND;
+
+        if (maxUpdatesPerSecond <= 0)
+            return true;
+
+        long now = System.currentTimeMillis();
+        long nextUpdateTime = nextNotificationUpdateTime.get();
+
+        return now >= nextUpdateTime
+                && nextNotificationUpdateTime.compareAndSet(nextUpdateTime, now + 1000 / maxUpdatesPerSecond);
+    }
+
     private void setRingtone(NotificationCompat.Builder notification) {
 
         if (params.notificationConfig.isRingToneEnabled() && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
@@ -591,12 +909,47 @@ public abstract class UploadTask implements Runnable {
         return deleted;
     }
 
-    private static List<String> pathStringListFrom(List<UploadFile> files) {
-        final List<String> filesLeft = new ArrayList<>(files.size());
-        for (UploadFile f : files) {
-            filesLeft.add(f.getPath());
+    /**
+     * Sets the number of bytes sent so far, after compressing the uploaded data.
+     * Call it only if the task compresses the data.
+     * @param compressedBytes compressed bytes
+     */
+    protected final void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    /**
+     * Sets the digest of the uploaded content, which is reported in {@link UploadInfo}.
+     * @param contentDigest hex string
+     */
+    protected final void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Creates a snapshot of the status of this task.
+     * @param uploadedBytes uploaded bytes
+     * @param totalBytes total bytes
+     * @param currentTime snapshot time
+     * @return upload info
+     */
+    private UploadInfo createUploadInfo(long uploadedBytes, long totalBytes, long currentTime) {
+        ArrayList<String> paths = filePaths;
+
+        if (paths == null) {
+            List<String> allPaths = new ArrayList<>(params.files.size());
+            for (UploadFile file : params.files) {
+                allPaths.add(file.getPath());
+            }
+            paths = new ReadOnlyArrayList<>(allPaths);
+            filePaths = paths;
         }
-        return filesLeft;
+
+        UploadInfo uploadInfo = new UploadInfo(params.id, startTime, currentTime, uploadedBytes,
+                totalBytes, (attempts - 1), successfullyUploadedFiles.snapshot(), paths);
+        uploadInfo.setCompressedBytes(compressedBytes);
+        uploadInfo.setContentDigest(contentDigest);
+        return uploadInfo;
     }
 
     public final void cancel() {
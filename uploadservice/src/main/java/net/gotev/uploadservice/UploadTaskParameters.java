@@ -21,6 +21,9 @@ public final class UploadTaskParameters implements Parcelable {
     private int maxRetries = 0;
     public boolean autoDeleteSuccessfullyUploadedFiles = false;
     private boolean avoidMeteredNetworks = false;
+    private int priority = 0;
+    private long maxBytesPerSecond = 0;
+    private String group;
     public UploadNotificationConfig notificationConfig;
     public ArrayList<UploadFile> files = new ArrayList<>();
 
@@ -50,6 +53,9 @@ public final class UploadTaskParameters implements Parcelable {
         parcel.writeInt(maxRetries);
         parcel.writeByte((byte) (autoDeleteSuccessfullyUploadedFiles ? 1 : 0));
         parcel.writeByte((byte) (avoidMeteredNetworks ? 1 : 0));
+        parcel.writeInt(priority);
+        parcel.writeLong(maxBytesPerSecond);
+        parcel.writeString(group);
         parcel.writeParcelable(notificationConfig, 0);
         parcel.writeList(files);
     }
@@ -60,6 +66,9 @@ public final class UploadTaskParameters implements Parcelable {
         maxRetries = in.readInt();
         autoDeleteSuccessfullyUploadedFiles = in.readByte() == 1;
         avoidMeteredNetworks = in.readByte() == 1;
+        priority = in.readInt();
+        maxBytesPerSecond = in.readLong();
+        group = in.readString();
         notificationConfig = in.readParcelable(UploadNotificationConfig.class.getClassLoader());
         in.readList(files, UploadFile.class.getClassLoader());
     }
@@ -88,4 +97,31 @@ public final class UploadTaskParameters implements Parcelable {
         this.avoidMeteredNetworks = avoidMeteredNetworks;
         return this;
     }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public UploadTaskParameters setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public UploadTaskParameters setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond < 0 ? 0 : maxBytesPerSecond;
+        return this;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public UploadTaskParameters setGroup(String group) {
+        this.group = group;
+        return this;
+    }
 }
@@ -0,0 +1,103 @@
+package net.gotev.uploadservice;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * List of the paths of the successfully uploaded files of a task. It keeps an index of the
+ * paths, so {@link UploadedFileList#contains(Object)} is O(1), and an immutable snapshot of its
+ * content, which is shared by all the {@link UploadInfo} created until the list changes.
+ * It's safe to read it from multiple threads.
+ *
+ * @author Aleksandar Gotev
+ */
+final class UploadedFileList extends AbstractList<String> implements RandomAccess {
+
+    private final ArrayList<String> paths = new ArrayList<>();
+    private final Map<String, Integer> occurrences = new HashMap<>();
+    private ArrayList<String> snapshot = null;
+
+    @Override
+    public synchronized String get(int index) {
+        return paths.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    @Override
+    public synchronized boolean contains(Object path) {
+        return occurrences.containsKey(path);
+    }
+
+    @Override
+    public synchronized void add(int index, String path) {
+        paths.add(index, path);
+        Integer count = occurrences.get(path);
+        occurrences.put(path, count == null ? 1 : count + 1);
+        changed();
+    }
+
+    @Override
+    public synchronized String set(int index, String path) {
+        String previous = paths.set(index, path);
+        removeOccurrence(previous);
+        Integer count = occurrences.get(path);
+        occurrences.put(path, count == null ? 1 : count + 1);
+        changed();
+        return previous;
+    }
+
+    @Override
+    public synchronized String remove(int index) {
+        String removed = paths.remove(index);
+        removeOccurrence(removed);
+        changed();
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (paths.isEmpty())
+            return;
+
+        paths.clear();
+        occurrences.clear();
+        changed();
+    }
+
+    /**
+     * Gets an immutable copy of the list, which is created again only after the list changes.
+     * @return snapshot of the list
+     */
+    synchronized ArrayList<String> snapshot() {
+        if (snapshot == null) {
+            snapshot = new ReadOnlyArrayList<>(paths);
+        }
+
+        return snapshot;
+    }
+
+    private void removeOccurrence(String path) {
+        Integer count = occurrences.get(path);
+
+        if (count == null)
+            return;
+
+        if (count <= 1) {
+            occurrences.remove(path);
+        } else {
+            occurrences.put(path, count - 1);
+        }
+    }
+
+    private void changed() {
+        snapshot = null;
+        modCount++;
+    }
+}
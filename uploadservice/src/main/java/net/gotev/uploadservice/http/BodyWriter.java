@@ -1,9 +1,16 @@
 package net.gotev.uploadservice.http;
 
+import android.content.Context;
+
+import net.gotev.uploadservice.BandwidthLimiter;
+import net.gotev.uploadservice.UploadFile;
 import net.gotev.uploadservice.UploadService;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 
 /**
  * Exposes the methods to be implemented to write the request body.
@@ -14,6 +21,13 @@ import java.io.InputStream;
 
 public abstract class BodyWriter {
 
+    /**
+     * Maximum size of a file portion which is memory-mapped at once. Mapped windows are released
+     * only when they are garbage collected, so they are kept small to not hold big portions of
+     * the address space and of the page cache while uploading.
+     */
+    private static final long MAX_MAPPED_WINDOW_SIZE = 1024 * 1024;
+
     /**
      * Receives the stream write progress and has the ability to cancel it.
      */
@@ -31,6 +45,28 @@ public abstract class BodyWriter {
         void onBytesWritten(int bytesWritten);
     }
 
+    private MessageDigest digest;
+
+    /**
+     * Sets a digest which gets updated with all the bytes written with
+     * {@link BodyWriter#writeStream(InputStream, OnStreamWriteListener, BandwidthLimiter)},
+     * {@link BodyWriter#writeChannel(FileChannel, long, OnStreamWriteListener, BandwidthLimiter)}
+     * and {@link BodyWriter#writeFile(UploadFile, Context, OnStreamWriteListener, BandwidthLimiter)},
+     * while they are written. The bytes are read directly from the write buffers.
+     * @param digest digest to update, or null to stop updating it
+     */
+    public final void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Gets the digest set with {@link BodyWriter#setDigest(MessageDigest)}.
+     * @return digest, or null if there isn't one
+     */
+    public final MessageDigest getDigest() {
+        return digest;
+    }
+
     /**
      * Writes an input stream to the request body.
      * The stream will be automatically closed after successful write or if an exception is thrown.
@@ -40,23 +76,193 @@ public abstract class BodyWriter {
      * @throws IOException if an I/O error occurs
      */
     public final void writeStream(InputStream stream, OnStreamWriteListener listener) throws IOException {
+        writeStream(stream, listener, null);
+    }
+
+    /**
+     * Writes an input stream to the request body, limiting the upload speed.
+     * The global limit set with {@link UploadService#getGlobalBandwidthLimiter()} is always
+     * applied, together with the given one.
+     * The stream will be automatically closed after successful write or if an exception is thrown.
+     * @param stream input stream from which to read
+     * @param listener listener which gets notified when bytes are written and which controls if
+     *                 the transfer should continue
+     * @param bandwidthLimiter limiter of the upload speed of the task, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public final void writeStream(InputStream stream, OnStreamWriteListener listener,
+                                  BandwidthLimiter bandwidthLimiter) throws IOException {
         if (listener == null)
             throw new IllegalArgumentException("listener MUST not be null!");
 
-        byte[] buffer = new byte[UploadService.BUFFER_SIZE];
+        WritePolicy policy = new WritePolicy(bandwidthLimiter);
+        byte[] buffer = UploadService.getBufferPool().acquire(policy.getBufferSize());
         int bytesRead;
 
         try {
-            while (listener.shouldContinueWriting() && (bytesRead = stream.read(buffer, 0, buffer.length)) > 0) {
+            while (listener.shouldContinueWriting()
+                    && (bytesRead = stream.read(buffer, 0, policy.getChunkSize())) > 0) {
+                policy.beforeWrite(bytesRead);
                 write(buffer, bytesRead);
-                flush();
+
+                if (digest != null) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+
+                if (policy.afterWrite(bytesRead)) {
+                    flush();
+                }
+
                 listener.onBytesWritten(bytesRead);
             }
+
+            flush();
         } finally {
+            UploadService.getBufferPool().release(buffer);
             stream.close();
         }
     }
 
+    /**
+     * Writes a file to the request body. If the file can be read with a {@link FileChannel},
+     * it's written with {@link BodyWriter#writeChannel(FileChannel, long, OnStreamWriteListener, BandwidthLimiter)},
+     * otherwise with {@link BodyWriter#writeStream(InputStream, OnStreamWriteListener, BandwidthLimiter)}.
+     * @param file file to write
+     * @param context service context
+     * @param listener listener which gets notified when bytes are written and which controls if
+     *                 the transfer should continue
+     * @param bandwidthLimiter limiter of the upload speed of the task, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public final void writeFile(UploadFile file, Context context, OnStreamWriteListener listener,
+                                BandwidthLimiter bandwidthLimiter) throws IOException {
+        onWriteFile(file, context);
+
+        FileChannel channel = file.getChannel(context);
+
+        if (channel == null) {
+            writeStream(file.getStream(context), listener, bandwidthLimiter);
+        } else {
+            writeChannel(channel, file.length(context), listener, bandwidthLimiter);
+        }
+    }
+
+    /**
+     * Called by {@link BodyWriter#writeFile(UploadFile, Context, OnStreamWriteListener, BandwidthLimiter)}
+     * before writing a file. Does nothing by default.
+     * @param file file which is about to be written
+     * @param context service context
+     */
+    protected void onWriteFile(UploadFile file, Context context) {
+    }
+
+    /**
+     * Writes a portion of a file channel to the request body, starting from the current position
+     * of the channel. If {@link UploadService#MEMORY_MAPPED_FILE_READS} is true, the file is
+     * memory-mapped.
+     * The channel will be automatically closed after successful write or if an exception is thrown.
+     * @param channel file channel from which to read
+     * @param count number of bytes to write
+     * @param listener listener which gets notified when bytes are written and which controls if
+     *                 the transfer should continue
+     * @param bandwidthLimiter limiter of the upload speed of the task, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public final void writeChannel(FileChannel channel, long count, OnStreamWriteListener listener,
+                                   BandwidthLimiter bandwidthLimiter) throws IOException {
+        if (listener == null)
+            throw new IllegalArgumentException("listener MUST not be null!");
+
+        WritePolicy policy = new WritePolicy(bandwidthLimiter);
+        boolean memoryMapped = UploadService.MEMORY_MAPPED_FILE_READS;
+        byte[] pooledBuffer = memoryMapped ? null : UploadService.getBufferPool().acquire(policy.getBufferSize());
+
+        try {
+            long position = channel.position();
+            long end = position + Math.min(count, channel.size() - position);
+            ByteBuffer buffer = memoryMapped ? null : ByteBuffer.wrap(pooledBuffer);
+
+            while (listener.shouldContinueWriting() && position < end) {
+                int bytesRead;
+
+                if (memoryMapped) {
+                    if (buffer == null || !buffer.hasRemaining()) {
+                        // a single mapping can't exceed 2GB, so the file is mapped in windows
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                             Math.min(MAX_MAPPED_WINDOW_SIZE, end - position));
+                    }
+
+                    bytesRead = Math.min(policy.getChunkSize(), buffer.remaining());
+                    buffer.limit(buffer.position() + bytesRead);
+                } else {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(policy.getChunkSize(), end - position));
+                    bytesRead = channel.read(buffer, position);
+
+                    if (bytesRead <= 0)
+                        break;
+
+                    buffer.flip();
+                }
+
+                policy.beforeWrite(bytesRead);
+                int start = buffer.position();
+                write(buffer);
+
+                if (digest != null) {
+                    // the written bytes are still between start and limit
+                    buffer.position(start);
+                    digest.update(buffer);
+                }
+
+                if (policy.afterWrite(bytesRead)) {
+                    flush();
+                }
+
+                position += bytesRead;
+
+                if (memoryMapped) {
+                    buffer.limit(buffer.capacity());
+                }
+
+                listener.onBytesWritten(bytesRead);
+            }
+
+            flush();
+        } finally {
+            UploadService.getBufferPool().release(pooledBuffer);
+            channel.close();
+        }
+    }
+
+    /**
+     * Write the remaining bytes of a {@link ByteBuffer} into the request body.
+     * The default implementation copies the bytes of direct and memory-mapped buffers into a
+     * pooled array and calls {@link BodyWriter#write(byte[], int)}. Override it if the http
+     * stack can write byte buffers directly, e.g. through a
+     * {@link java.nio.channels.WritableByteChannel}.
+     * @param buffer buffer with the bytes to write
+     * @throws IOException if an error occurs while writing
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+            write(buffer.array(), length);
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        byte[] bytes = UploadService.getBufferPool().acquire(length);
+
+        try {
+            buffer.get(bytes, 0, length);
+            write(bytes, length);
+        } finally {
+            UploadService.getBufferPool().release(bytes);
+        }
+    }
+
     /**
      * Write a byte array into the request body.
      * @param bytes array with the bytes to write
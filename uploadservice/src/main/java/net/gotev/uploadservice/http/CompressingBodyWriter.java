@@ -0,0 +1,181 @@
+package net.gotev.uploadservice.http;
+
+import android.content.Context;
+
+import net.gotev.uploadservice.UploadFile;
+import net.gotev.uploadservice.UploadService;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Body writer which compresses everything that's written into it with gzip or deflate, and
+ * writes the compressed bytes into another body writer, while streaming.
+ * Files which are known to be incompressible are written with stored (not compressed) deflate
+ * blocks, so no CPU time is wasted on them.
+ *
+ * Call {@link CompressingBodyWriter#finish()} after writing the whole body and
+ * {@link CompressingBodyWriter#release()} when done.
+ *
+ * @author Aleksandar Gotev
+ */
+public final class CompressingBodyWriter extends BodyWriter {
+
+    /**
+     * Content-Encoding value of gzip compressed bodies.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * Content-Encoding value of deflate (zlib) compressed bodies.
+     */
+    public static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = new byte[] {
+            0x1f, (byte) 0x8b, // magic number
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            (byte) 0xff // operating system (unknown)
+    };
+
+    private final BodyWriter delegate;
+    private final Collection<UploadFile> incompressibleFiles;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private byte[] output;
+    private long uncompressedBytes = 0;
+    private long compressedBytes = 0;
+
+    /**
+     * Creates a new compressing body writer.
+     * @param delegate body writer into which to write the compressed bytes
+     * @param contentEncoding {@link CompressingBodyWriter#GZIP} or
+     *                        {@link CompressingBodyWriter#DEFLATE}
+     * @param incompressibleFiles files to write without compressing them, or null
+     * @throws IOException if an error occurs while writing the gzip header
+     */
+    public CompressingBodyWriter(BodyWriter delegate, String contentEncoding,
+                                 Collection<UploadFile> incompressibleFiles) throws IOException {
+        if (!GZIP.equals(contentEncoding) && !DEFLATE.equals(contentEncoding))
+            throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+
+        this.delegate = delegate;
+        this.incompressibleFiles = incompressibleFiles;
+        this.gzip = GZIP.equals(contentEncoding);
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        this.crc = gzip ? new CRC32() : null;
+        this.output = UploadService.getBufferPool().acquire(UploadService.BUFFER_SIZE);
+
+        if (gzip) {
+            writeCompressed(GZIP_HEADER, GZIP_HEADER.length);
+        }
+    }
+
+    /**
+     * Gets the number of bytes written into this writer.
+     * @return uncompressed bytes
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Gets the number of compressed bytes written into the underlying writer so far.
+     * @return compressed bytes
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    protected void onWriteFile(UploadFile file, Context context) {
+        boolean compress = incompressibleFiles == null || !incompressibleFiles.contains(file);
+        deflater.setLevel(compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+    }
+
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, bytes.length);
+    }
+
+    @Override
+    public void write(byte[] bytes, int lengthToWriteFromStart) throws IOException {
+        if (lengthToWriteFromStart <= 0)
+            return;
+
+        if (crc != null) {
+            crc.update(bytes, 0, lengthToWriteFromStart);
+        }
+
+        uncompressedBytes += lengthToWriteFromStart;
+        deflater.setInput(bytes, 0, lengthToWriteFromStart);
+
+        // the input array is not retained, so it has to be completely consumed here
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    /**
+     * Writes the remaining compressed bytes and the trailer, then flushes the underlying writer.
+     * @throws IOException if an error occurs while writing
+     */
+    public void finish() throws IOException {
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            deflate();
+        }
+
+        if (gzip) {
+            byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, crc.getValue());
+            writeIntLE(trailer, 4, uncompressedBytes);
+            writeCompressed(trailer, trailer.length);
+        }
+
+        delegate.flush();
+    }
+
+    /**
+     * Releases the resources used by the compressor. The writer can't be used anymore.
+     */
+    public void release() {
+        deflater.end();
+
+        if (output != null) {
+            UploadService.getBufferPool().release(output);
+            output = null;
+        }
+    }
+
+    private void deflate() throws IOException {
+        int count = deflater.deflate(output, 0, output.length);
+
+        if (count > 0) {
+            writeCompressed(output, count);
+        }
+    }
+
+    private void writeCompressed(byte[] bytes, int length) throws IOException {
+        delegate.write(bytes, length);
+        compressedBytes += length;
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, long value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,127 @@
+package net.gotev.uploadservice.http;
+
+import net.gotev.uploadservice.BandwidthLimiter;
+import net.gotev.uploadservice.UploadService;
+
+import java.io.IOException;
+
+/**
+ * Decides how the data of a stream is written to the request body: the size of each chunk and
+ * when to flush. The chunk size starts from {@link UploadService#BUFFER_SIZE} and is doubled, up to
+ * {@link UploadService#MAX_BUFFER_SIZE}, as long as the write throughput improves. It's halved
+ * when the throughput gets worse. The body is flushed only every
+ * {@link UploadService#FLUSH_INTERVAL} milliseconds and at the end of the stream.
+ * It also applies the upload speed limits.
+ *
+ * @author Aleksandar Gotev
+ */
+final class WritePolicy {
+
+    /**
+     * Minimum number of bytes to write before measuring the throughput with the current
+     * chunk size.
+     */
+    private static final long SAMPLE_BYTES = 256 * 1024;
+
+    /**
+     * Minimum relative throughput increase to keep growing the chunk size.
+     */
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+
+    /**
+     * Maximum relative throughput decrease tolerated before shrinking the chunk size.
+     */
+    private static final double MAX_THROUGHPUT_LOSS = 0.1;
+
+    private final BandwidthLimiter globalBandwidthLimiter = UploadService.getGlobalBandwidthLimiter();
+    private final BandwidthLimiter bandwidthLimiter;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long flushIntervalNanos;
+
+    private int chunkSize;
+    private long sampleBytes = 0;
+    private long sampleNanos = 0;
+    private double lastThroughput = 0;
+    private long lastFlushTime = System.nanoTime();
+    private long writeStartTime;
+
+    WritePolicy(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.minChunkSize = Math.max(1, UploadService.BUFFER_SIZE);
+        this.maxChunkSize = Math.max(minChunkSize, UploadService.MAX_BUFFER_SIZE);
+        this.flushIntervalNanos = UploadService.FLUSH_INTERVAL * 1000000L;
+        this.chunkSize = minChunkSize;
+    }
+
+    /**
+     * Gets the size of the buffer to use, which fits the biggest possible chunk.
+     * @return buffer size
+     */
+    int getBufferSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Gets the size of the next chunk to write.
+     * @return chunk size
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Called before writing a chunk. Waits until the chunk can be written without exceeding the
+     * upload speed limits.
+     * @param bytes chunk size
+     * @throws IOException if the thread gets interrupted while waiting
+     */
+    void beforeWrite(int bytes) throws IOException {
+        globalBandwidthLimiter.acquire(bytes);
+        if (bandwidthLimiter != null) {
+            bandwidthLimiter.acquire(bytes);
+        }
+
+        writeStartTime = System.nanoTime();
+    }
+
+    /**
+     * Called after writing a chunk.
+     * @param bytes chunk size
+     * @return true if the body has to be flushed now
+     */
+    boolean afterWrite(int bytes) {
+        long now = System.nanoTime();
+        boolean flush = now - lastFlushTime >= flushIntervalNanos;
+
+        if (flush) {
+            lastFlushTime = now;
+        }
+
+        if (minChunkSize < maxChunkSize) {
+            adaptChunkSize(bytes, now - writeStartTime);
+        }
+
+        return flush;
+    }
+
+    private void adaptChunkSize(int bytes, long elapsedNanos) {
+        sampleBytes += bytes;
+        sampleNanos += elapsedNanos;
+
+        if (sampleBytes < SAMPLE_BYTES)
+            return;
+
+        double throughput = sampleBytes / (double) Math.max(1, sampleNanos);
+        sampleBytes = 0;
+        sampleNanos = 0;
+
+        if (lastThroughput == 0 || throughput > lastThroughput * (1 + MIN_THROUGHPUT_GAIN)) {
+            chunkSize = Math.min(maxChunkSize, chunkSize * 2);
+        } else if (throughput < lastThroughput * (1 - MAX_THROUGHPUT_LOSS)) {
+            chunkSize = Math.max(minChunkSize, chunkSize / 2);
+        }
+
+        lastThroughput = throughput;
+    }
+}
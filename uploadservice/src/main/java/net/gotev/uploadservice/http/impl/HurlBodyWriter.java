@@ -4,6 +4,7 @@ import net.gotev.uploadservice.http.BodyWriter;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Aleksandar Gotev
@@ -27,6 +28,19 @@ public class HurlBodyWriter extends BodyWriter {
         mOutputStream.write(bytes, 0, lengthToWriteFromStart);
     }
 
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        // HttpURLConnection streams can only write arrays, so direct and memory-mapped buffers
+        // are copied by the default implementation
+        if (!buffer.hasArray()) {
+            super.write(buffer);
+            return;
+        }
+
+        mOutputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+    }
+
     @Override
     public void flush() throws IOException {
         mOutputStream.flush();
@@ -1,16 +1,17 @@
 package net.gotev.uploadservice.http.impl;
 
+import net.gotev.uploadservice.BufferPool;
 import net.gotev.uploadservice.Logger;
 import net.gotev.uploadservice.NameValue;
 import net.gotev.uploadservice.ServerResponse;
 import net.gotev.uploadservice.UploadService;
 import net.gotev.uploadservice.http.HttpConnection;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +42,7 @@ public class HurlStackConnection implements HttpConnection {
         }
 
         mConnection.setDoInput(true);
-        mConnection.setDoOutput(true);
+        mConnection.setDoOutput(permitsRequestBody(method));
         mConnection.setConnectTimeout(connectTimeout);
         mConnection.setReadTimeout(readTimeout);
         mConnection.setUseCaches(useCaches);
@@ -49,6 +50,11 @@ public class HurlStackConnection implements HttpConnection {
         mConnection.setRequestMethod(method);
     }
 
+    private static boolean permitsRequestBody(String method) {
+        return !("GET".equals(method) || "HEAD".equals(method)
+                || "OPTIONS".equals(method) || "TRACE".equals(method));
+    }
+
     @Override
     public HttpConnection setHeaders(List<NameValue> requestHeaders) throws IOException {
         for (final NameValue param : requestHeaders) {
@@ -60,6 +66,10 @@ public class HurlStackConnection implements HttpConnection {
 
     @Override
     public HttpConnection setTotalBodyBytes(long totalBodyBytes, boolean isFixedLengthStreamingMode) {
+        if (!mConnection.getDoOutput()) {
+            return this;
+        }
+
         if (isFixedLengthStreamingMode) {
             if (android.os.Build.VERSION.SDK_INT >= 19) {
                 mConnection.setFixedLengthStreamingMode(totalBodyBytes);
@@ -104,18 +114,39 @@ public class HurlStackConnection implements HttpConnection {
     }
 
     private byte[] getResponseBodyAsByteArray(final InputStream inputStream) {
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-
-        byte[] buffer = new byte[UploadService.BUFFER_SIZE];
+        BufferPool pool = UploadService.getBufferPool();
+        int contentLength = mConnection.getContentLength();
+
+        // reads directly in a pooled buffer, which is replaced with a bigger one when full,
+        // so the only allocation is the returned array. The content length declared by the
+        // server is not trusted for the initial size, so a wrong or malicious value can't make
+        // it allocate a huge buffer before any byte arrives
+        int initialSize = contentLength > 0 ? Math.min(contentLength, UploadService.MAX_BUFFER_SIZE)
+                                            : UploadService.BUFFER_SIZE;
+        byte[] buffer = pool.acquire(initialSize);
+        int totalBytes = 0;
         int bytesRead;
 
         try {
-            while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) > 0) {
-                byteStream.write(buffer, 0, bytesRead);
+            while (contentLength < 0 || totalBytes < contentLength) {
+                if (totalBytes == buffer.length) {
+                    byte[] biggerBuffer = pool.acquire(buffer.length * 2);
+                    System.arraycopy(buffer, 0, biggerBuffer, 0, totalBytes);
+                    pool.release(buffer);
+                    buffer = biggerBuffer;
+                }
+
+                bytesRead = inputStream.read(buffer, totalBytes, buffer.length - totalBytes);
+                if (bytesRead <= 0)
+                    break;
+
+                totalBytes += bytesRead;
             }
         } catch (Exception ignored) {}
 
-        return byteStream.toByteArray();
+        byte[] body = Arrays.copyOf(buffer, totalBytes);
+        pool.release(buffer);
+        return body;
     }
 
     private LinkedHashMap<String, String> getServerResponseHeaders() throws IOException {
@@ -141,9 +172,11 @@ public class HurlStackConnection implements HttpConnection {
     @Override
     public ServerResponse getResponse(final RequestBodyDelegate delegate) throws IOException {
 
-        final HurlBodyWriter bodyWriter = new HurlBodyWriter(mConnection.getOutputStream());
-        delegate.onBodyReady(bodyWriter);
-        bodyWriter.flush();
+        if (mConnection.getDoOutput()) {
+            final HurlBodyWriter bodyWriter = new HurlBodyWriter(mConnection.getOutputStream());
+            delegate.onBodyReady(bodyWriter);
+            bodyWriter.flush();
+        }
 
         return new ServerResponse(mConnection.getResponseCode(),
                 getServerResponseBody(), getServerResponseHeaders());
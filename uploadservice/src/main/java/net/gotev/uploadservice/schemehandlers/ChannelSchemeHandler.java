@@ -0,0 +1,22 @@
+package net.gotev.uploadservice.schemehandlers;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by the scheme handlers which are able to read the file through a
+ * {@link FileChannel}. Files read this way are sent without going through an
+ * {@link java.io.InputStream} and can be memory-mapped.
+ * @author gotev
+ */
+public interface ChannelSchemeHandler extends SchemeHandler {
+    /**
+     * Opens a new channel to read the file, positioned at its beginning.
+     * @param context service context
+     * @return file channel, or null if this file can't be read with a seekable channel
+     * @throws IOException if the file can't be opened
+     */
+    FileChannel getChannel(Context context) throws IOException;
+}
@@ -0,0 +1,228 @@
+package net.gotev.uploadservice.schemehandlers;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+
+import net.gotev.uploadservice.Logger;
+import net.gotev.uploadservice.UploadService;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the size and display name of content uris, shared by all the uploads, so the content
+ * provider is queried only once per uri instead of every time the upload tasks need them.
+ *
+ * Entries are evicted when they are older than {@link UploadService#CONTENT_METADATA_CACHE_TTL}
+ * or when there are more than {@link UploadService#CONTENT_METADATA_CACHE_MAX_ENTRIES}, and
+ * they are invalidated as soon as the content provider notifies a change.
+ *
+ * @author Aleksandar Gotev
+ */
+final class ContentMetadataCache {
+
+    private static final String LOG_TAG = ContentMetadataCache.class.getSimpleName();
+
+    private static final String[] PROJECTION = new String[] {
+            OpenableColumns.SIZE, OpenableColumns.DISPLAY_NAME
+    };
+
+    /**
+     * Size and display name of a content uri. Size is -1 and name is null if the provider
+     * didn't return them.
+     */
+    static final class Metadata {
+        final long size;
+        final String name;
+        final long time;
+
+        Metadata(long size, String name, long time) {
+            this.size = size;
+            this.name = name;
+            this.time = time;
+        }
+    }
+
+    private static class LazyHolder {
+        private static final ContentMetadataCache INSTANCE = new ContentMetadataCache();
+    }
+
+    static ContentMetadataCache getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    // all the fields are guarded by this
+    private final Map<String, Metadata> entries = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+            if (size() <= Math.max(1, UploadService.CONTENT_METADATA_CACHE_MAX_ENTRIES))
+                return false;
+
+            onRemoved(eldest.getKey());
+            return true;
+        }
+    };
+
+    private final Map<String, AuthorityObserver> observers = new HashMap<>();
+    private ContentResolver resolver;
+    private long invalidations = 0;
+
+    private ContentMetadataCache() { }
+
+    /**
+     * Gets the metadata of a content uri, querying the content provider if it's not cached.
+     * @param context application context
+     * @param uri content uri
+     * @return metadata, or null if the content provider returned no results
+     */
+    Metadata get(Context context, Uri uri) {
+        String key = uri.toString();
+        long now = SystemClock.elapsedRealtime();
+
+        long invalidationsBeforeQuery;
+
+        synchronized (this) {
+            invalidationsBeforeQuery = invalidations;
+            Metadata metadata = entries.get(key);
+
+            if (metadata != null) {
+                if (now - metadata.time <= UploadService.CONTENT_METADATA_CACHE_TTL)
+                    return metadata;
+
+                entries.remove(key);
+                onRemoved(key);
+            }
+        }
+
+        // the query is performed without holding the lock, so other uris can be read meanwhile
+        Metadata metadata = query(context, uri, now);
+
+        if (metadata == null)
+            return null;
+
+        synchronized (this) {
+            // the result may be stale if a change has been notified during the query
+            if (invalidations != invalidationsBeforeQuery)
+                return metadata;
+
+            // observe before inserting, so evicting the eldest entry of the same authority
+            // doesn't unregister the observer only to register it again
+            if (!entries.containsKey(key)) {
+                observe(context, uri);
+            }
+            entries.put(key, metadata);
+        }
+
+        return metadata;
+    }
+
+    private static Metadata query(Context context, Uri uri, long now) {
+        Cursor cursor = context.getContentResolver().query(uri, PROJECTION, null, null, null);
+
+        if (cursor == null)
+            return null;
+
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+
+            int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+            int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+
+            long size = sizeIndex < 0 || cursor.isNull(sizeIndex) ? -1 : cursor.getLong(sizeIndex);
+            String name = nameIndex < 0 ? null : cursor.getString(nameIndex);
+
+            return new Metadata(size, name, now);
+
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Registers a single observer for each content provider authority, instead of one for each
+     * uri, so observing thousands of uris doesn't require thousands of registrations.
+     */
+    private void observe(Context context, Uri uri) {
+        String authority = uri.getAuthority();
+        AuthorityObserver observer = observers.get(authority);
+
+        if (observer == null) {
+            if (resolver == null) {
+                resolver = context.getApplicationContext().getContentResolver();
+            }
+
+            observer = new AuthorityObserver(authority);
+
+            try {
+                resolver.registerContentObserver(
+                        new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                                         .authority(authority).build(),
+                        true, observer);
+            } catch (SecurityException exc) {
+                // some providers don't allow observing them, so rely only on the expiration
+                Logger.error(LOG_TAG, "Can't observe changes of " + authority, exc);
+            }
+
+            observers.put(authority, observer);
+        }
+
+        observer.count++;
+    }
+
+    private void onRemoved(String key) {
+        String authority = Uri.parse(key).getAuthority();
+        AuthorityObserver observer = observers.get(authority);
+
+        if (observer != null && --observer.count <= 0) {
+            resolver.unregisterContentObserver(observer);
+            observers.remove(authority);
+        }
+    }
+
+    private synchronized void invalidate(String authority, Uri changedUri) {
+        invalidations++;
+
+        // a change notified for a uri applies to all its descendants
+        String prefix = changedUri == null ? null : changedUri.toString();
+        Iterator<String> keys = entries.keySet().iterator();
+
+        while (keys.hasNext()) {
+            String key = keys.next();
+
+            if (prefix == null ? authority.equals(Uri.parse(key).getAuthority())
+                               : key.startsWith(prefix)) {
+                keys.remove();
+                onRemoved(key);
+            }
+        }
+    }
+
+    private final class AuthorityObserver extends ContentObserver {
+        private final String authority;
+        private int count = 0;
+
+        AuthorityObserver(String authority) {
+            // notifications are delivered on a binder thread
+            super(null);
+            this.authority = authority;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            invalidate(authority, uri);
+        }
+    }
+}
@@ -1,26 +1,33 @@
 package net.gotev.uploadservice.schemehandlers;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
-import android.provider.OpenableColumns;
+import android.os.ParcelFileDescriptor;
 
 import net.gotev.uploadservice.ContentType;
 import net.gotev.uploadservice.Logger;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Handles Android content uris, wraps android.content.Uri
  * @author stephentuso
  * @author gotev
  */
-class ContentSchemeHandler implements SchemeHandler {
+class ContentSchemeHandler implements ChannelSchemeHandler {
 
     private Uri uri;
 
+    // set to false when the content provider doesn't return a seekable file descriptor
+    private volatile boolean seekable = true;
+
+    // size of the file descriptor, read when the content provider doesn't return the size
+    private volatile long statSize = -1;
+
     @Override
     public void init(String path) {
         uri = Uri.parse(path);
@@ -36,6 +43,40 @@ class ContentSchemeHandler implements SchemeHandler {
         return context.getContentResolver().openInputStream(uri);
     }
 
+    @Override
+    public FileChannel getChannel(Context context) throws IOException {
+        if (!seekable)
+            return null;
+
+        ParcelFileDescriptor descriptor;
+
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException exc) {
+            // providers which return only a part of a file (e.g. an asset) or which can't be
+            // opened as a file descriptor are still readable with an input stream
+            Logger.debug(getClass().getSimpleName(), "Can't open file descriptor for " + uri
+                    + ", reading it as a stream: " + exc.getMessage());
+            seekable = false;
+            return null;
+        }
+
+        if (descriptor == null) {
+            seekable = false;
+            return null;
+        }
+
+        // pipes and sockets have no size and can't be positioned
+        if (descriptor.getStatSize() < 0) {
+            descriptor.close();
+            seekable = false;
+            return null;
+        }
+
+        // closing the channel closes the stream, which closes the file descriptor
+        return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+    }
+
     @Override
     public String getContentType(Context context) {
         String type = context.getContentResolver().getType(uri);
@@ -51,28 +92,55 @@ class ContentSchemeHandler implements SchemeHandler {
     }
 
     private long getUriSize(Context context) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
-        if (cursor == null) {
-            Logger.error(getClass().getSimpleName(), "null cursor for " + uri + ", returning size 0");
+        ContentMetadataCache.Metadata metadata = ContentMetadataCache.getInstance().get(context, uri);
+        if (metadata != null && metadata.size >= 0) {
+            return metadata.size;
+        }
+
+        long size = getStatSize(context);
+        if (size < 0) {
+            Logger.error(getClass().getSimpleName(), "unknown size of " + uri + ", returning size 0");
             return 0;
         }
-        int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-        cursor.moveToFirst();
-        long size = cursor.getLong(sizeIndex);
-        cursor.close();
         return size;
     }
 
+    /**
+     * Gets the size of the file descriptor of the uri, for the content providers which don't
+     * return the size column or return it null.
+     * @return size in bytes, or -1 if it's unknown
+     */
+    private long getStatSize(Context context) {
+        if (statSize >= 0 || !seekable)
+            return statSize;
+
+        ParcelFileDescriptor descriptor = null;
+
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor != null) {
+                statSize = descriptor.getStatSize();
+            }
+        } catch (FileNotFoundException exc) {
+            Logger.debug(getClass().getSimpleName(), "Can't open file descriptor for " + uri
+                    + " to get its size: " + exc.getMessage());
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        return statSize;
+    }
+
     private String getUriName(Context context) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
-        if (cursor == null) {
+        ContentMetadataCache.Metadata metadata = ContentMetadataCache.getInstance().get(context, uri);
+        if (metadata == null || metadata.name == null) {
             return getUriNameFallback();
         }
-        int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-        cursor.moveToFirst();
-        String name = cursor.getString(nameIndex);
-        cursor.close();
-        return name;
+        return metadata.name;
     }
 
     private String getUriNameFallback() {
@@ -7,13 +7,15 @@ import net.gotev.uploadservice.ContentType;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Handler for normal file paths, wraps java.io.File
  * @author stephentuso
  */
-class FileSchemeHandler implements SchemeHandler {
+class FileSchemeHandler implements ChannelSchemeHandler {
 
     private File file;
 
@@ -32,6 +34,11 @@ class FileSchemeHandler implements SchemeHandler {
         return new FileInputStream(file);
     }
 
+    @Override
+    public FileChannel getChannel(Context context) throws IOException {
+        return new FileInputStream(file).getChannel();
+    }
+
     @Override
     public String getContentType(Context context) {
         return ContentType.autoDetect(file.getAbsolutePath());
@@ -0,0 +1,77 @@
+package net.gotev.uploadservice.schemehandlers;
+
+import android.content.Context;
+
+import net.gotev.uploadservice.ContentType;
+import net.gotev.uploadservice.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Handles in-memory content registered with {@link MemorySource#register}, identified by
+ * {@code memory://} paths.
+ * @author gotev
+ */
+class MemorySchemeHandler implements SchemeHandler {
+
+    private String path;
+
+    @Override
+    public void init(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public long getLength(Context context) {
+        try {
+            return MemorySource.get(path).getLength();
+        } catch (IOException exc) {
+            Logger.error(getClass().getSimpleName(), "Can't get length of " + path + ", returning size 0", exc);
+            return 0;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(Context context) throws FileNotFoundException {
+        try {
+            return MemorySource.get(path).newInputStream();
+        } catch (FileNotFoundException exc) {
+            throw exc;
+        } catch (IOException exc) {
+            FileNotFoundException notFound = new FileNotFoundException("Can't read " + path);
+            notFound.initCause(exc);
+            throw notFound;
+        }
+    }
+
+    @Override
+    public String getContentType(Context context) {
+        String type = null;
+
+        try {
+            type = MemorySource.get(path).getContentType();
+        } catch (IOException exc) {
+            Logger.error(getClass().getSimpleName(), "Can't get content type of " + path, exc);
+        }
+
+        if (type == null || type.isEmpty()) {
+            type = ContentType.APPLICATION_OCTET_STREAM;
+        }
+        return type;
+    }
+
+    @Override
+    public String getName(Context context) {
+        try {
+            String name = MemorySource.get(path).getName();
+            if (name != null)
+                return name;
+        } catch (IOException exc) {
+            Logger.error(getClass().getSimpleName(), "Can't get name of " + path, exc);
+        }
+
+        return path.substring(MemorySource.SCHEME.length());
+    }
+}
@@ -0,0 +1,509 @@
+package net.gotev.uploadservice.schemehandlers;
+
+import android.annotation.TargetApi;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import net.gotev.uploadservice.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory content to upload, identified by a {@code memory://} path, so generated data
+ * (e.g. thumbnails or JSON documents) can be uploaded without writing it to a temporary file
+ * and without passing it inside the intent which starts the upload.
+ *
+ * When the upload service runs in the same process, it reads the registered buffer directly.
+ * When it runs in another process, it receives a binder of the process which owns the buffer:
+ * from Android 8.1 the content is shared once through a {@link SharedMemory} region, on older
+ * versions it's read in chunks through binder calls.
+ *
+ * Sources are released when the upload completes, fails or is cancelled. Until then, they are
+ * kept in memory by the upload files which refer to them, so the content of requests which are
+ * never started, or whose files are replaced, is garbage collected with the request.
+ *
+ * @author Aleksandar Gotev
+ */
+public final class MemorySource {
+
+    private static final String LOG_TAG = MemorySource.class.getSimpleName();
+
+    public static final String SCHEME = "memory://";
+
+    private static final int TRANSACTION_INFO = IBinder.FIRST_CALL_TRANSACTION;
+    private static final int TRANSACTION_READ = IBinder.FIRST_CALL_TRANSACTION + 1;
+    private static final int TRANSACTION_RELEASE = IBinder.FIRST_CALL_TRANSACTION + 2;
+
+    /**
+     * Maximum number of bytes read with a single binder call, well below the binder buffer size.
+     */
+    private static final int MAX_REMOTE_READ_SIZE = 64 * 1024;
+
+    // sources are strongly referenced only by the upload files and by the binders which use them
+    private static final Map<String, WeakReference<MemorySource>> sources = new ConcurrentHashMap<>();
+
+    private final String path;
+
+    // set in the process which owns the buffer
+    private final OwnerBinder owner;
+
+    // set in the upload service process, when it runs in another process
+    private final IBinder remote;
+
+    // guarded by this
+    private ByteBuffer buffer;
+    private String name;
+    private String contentType;
+    private long length = -1;
+    // SharedMemory, which is available from API 27
+    private Object sharedMemory;
+    private boolean released = false;
+
+    private MemorySource(String path, ByteBuffer buffer, String name, String contentType) {
+        this.path = path;
+        this.buffer = buffer;
+        this.name = name;
+        this.contentType = contentType;
+        this.length = buffer.remaining();
+        this.owner = new OwnerBinder();
+        this.remote = null;
+    }
+
+    private MemorySource(String path, IBinder remote) {
+        this.path = path;
+        this.owner = null;
+        this.remote = remote;
+    }
+
+    /**
+     * Registers in-memory content to upload. The buffer is not copied, so don't modify it until
+     * the upload is finished. The content is available only while the returned source, or an
+     * upload file created with its path, is referenced.
+     * @param buffer content to upload, from its position to its limit
+     * @param name file name
+     * @param contentType content type, or null for {@code application/octet-stream}
+     * @return source, whose path has to be used to create an upload file
+     */
+    public static MemorySource register(ByteBuffer buffer, String name, String contentType) {
+        if (buffer == null)
+            throw new IllegalArgumentException("buffer must not be null");
+
+        removeCollectedSources();
+
+        String path = SCHEME + UUID.randomUUID().toString();
+        MemorySource source = new MemorySource(path, buffer.slice().asReadOnlyBuffer(), name, contentType);
+        sources.put(path, new WeakReference<>(source));
+        return source;
+    }
+
+    /**
+     * Gets registered in-memory content.
+     * @param path memory path
+     * @return source, or null if it has been released or garbage collected
+     */
+    public static MemorySource find(String path) {
+        WeakReference<MemorySource> reference = sources.get(path);
+        return reference == null ? null : reference.get();
+    }
+
+    private static void removeCollectedSources() {
+        Iterator<WeakReference<MemorySource>> iterator = sources.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().get() == null) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the path of this content.
+     * @return memory path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Checks if a path refers to in-memory content.
+     * @param path file path or uri
+     * @return true if the path has the {@code memory://} scheme
+     */
+    public static boolean isMemoryPath(String path) {
+        return path != null && path.startsWith(SCHEME);
+    }
+
+    /**
+     * Gets the binder which gives access to in-memory content from other processes.
+     * @param path memory path
+     * @return binder or null if the content has been released
+     */
+    public static IBinder getBinder(String path) {
+        MemorySource source = find(path);
+
+        if (source == null)
+            return null;
+
+        return source.owner != null ? source.owner : source.remote;
+    }
+
+    /**
+     * Makes in-memory content owned by another process readable in this process.
+     * @param path memory path
+     * @param binder binder received from the process which owns the content
+     * @return source, which has to be referenced while the content is used, or null if the
+     * content has been released
+     */
+    public static MemorySource attach(String path, IBinder binder) {
+        MemorySource source = find(path);
+
+        if (source != null || binder == null)
+            return source;
+
+        // in the same process the binder is the owner's one, with the buffer
+        if (binder instanceof OwnerBinder) {
+            source = ((OwnerBinder) binder).getSource();
+            if (source.isReleased())
+                return null;
+        } else {
+            source = new MemorySource(path, binder);
+        }
+
+        sources.put(path, new WeakReference<>(source));
+        return source;
+    }
+
+    /**
+     * Releases in-memory content. If it's owned by another process, that process is notified
+     * so it can release its buffer too.
+     * @param path memory path
+     */
+    public static void release(String path) {
+        WeakReference<MemorySource> reference = sources.remove(path);
+        MemorySource source = reference == null ? null : reference.get();
+
+        if (source != null) {
+            source.release();
+        }
+    }
+
+    static MemorySource get(String path) throws FileNotFoundException {
+        MemorySource source = find(path);
+
+        if (source == null)
+            throw new FileNotFoundException(path + " has been released or is not available in this process");
+
+        return source;
+    }
+
+    synchronized long getLength() throws IOException {
+        loadInfo();
+        return length;
+    }
+
+    synchronized String getName() throws IOException {
+        loadInfo();
+        return name;
+    }
+
+    synchronized String getContentType() throws IOException {
+        loadInfo();
+        return contentType;
+    }
+
+    InputStream newInputStream() throws IOException {
+        synchronized (this) {
+            loadInfo();
+
+            if (buffer != null)
+                return new BufferInputStream(buffer.duplicate());
+        }
+
+        return new RemoteInputStream();
+    }
+
+    private synchronized boolean isReleased() {
+        return released;
+    }
+
+    private void loadInfo() throws IOException {
+        if (released)
+            throw new FileNotFoundException(path + " has been released");
+
+        if (length >= 0)
+            return;
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+
+        try {
+            data.writeInt(Build.VERSION.SDK_INT);
+            transact(TRANSACTION_INFO, data, reply);
+
+            length = reply.readLong();
+            name = reply.readString();
+            contentType = reply.readString();
+
+            if (reply.readInt() != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                sharedMemory = Api27.readSharedMemory(reply);
+                buffer = Api27.map(sharedMemory);
+                // the shared memory region is at least one byte long
+                buffer.limit((int) length);
+            }
+
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    private synchronized void release() {
+        if (released)
+            return;
+
+        released = true;
+
+        if (sharedMemory != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            // mapped buffers are unmapped when they are garbage collected, so streams which
+            // are still open don't read unmapped memory
+            Api27.close(sharedMemory);
+            sharedMemory = null;
+        }
+
+        buffer = null;
+
+        if (remote != null) {
+            Parcel data = Parcel.obtain();
+            try {
+                remote.transact(TRANSACTION_RELEASE, data, null, IBinder.FLAG_ONEWAY);
+            } catch (RemoteException exc) {
+                // the owner process is gone, so its buffer too
+            } finally {
+                data.recycle();
+            }
+        }
+    }
+
+    private void transact(int code, Parcel data, Parcel reply) throws IOException {
+        try {
+            if (!remote.transact(code, data, reply, 0))
+                throw new FileNotFoundException(path + " is not available anymore");
+        } catch (RemoteException exc) {
+            throw new IOException("Process which owns " + path + " is not reachable", exc);
+        }
+
+        if (reply.readInt() == 0)
+            throw new FileNotFoundException(path + " has been released");
+    }
+
+    /**
+     * Serves the content to the upload service when it runs in another process.
+     */
+    private final class OwnerBinder extends Binder {
+
+        MemorySource getSource() {
+            return MemorySource.this;
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            // only processes of this app can read the content
+            if (Binder.getCallingUid() != Process.myUid())
+                return false;
+
+            if (code == TRANSACTION_RELEASE) {
+                MemorySource.release(path);
+                return true;
+            }
+
+            synchronized (MemorySource.this) {
+                if (released) {
+                    reply.writeInt(0);
+                    return true;
+                }
+
+                if (code == TRANSACTION_INFO) {
+                    reply.writeInt(1);
+                    reply.writeLong(length);
+                    reply.writeString(name);
+                    reply.writeString(contentType);
+                    writeSharedMemory(data.readInt(), reply);
+                    return true;
+                }
+
+                if (code == TRANSACTION_READ) {
+                    long offset = data.readLong();
+                    int count = (int) Math.max(0, Math.min(data.readInt(), length - offset));
+                    byte[] bytes = new byte[count];
+                    ByteBuffer source = buffer.duplicate();
+                    source.position((int) offset);
+                    source.get(bytes);
+                    reply.writeInt(1);
+                    reply.writeByteArray(bytes);
+                    return true;
+                }
+            }
+
+            return super.onTransact(code, data, reply, flags);
+        }
+
+        private void writeSharedMemory(int remoteSdkVersion, Parcel reply) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1
+                    || remoteSdkVersion < Build.VERSION_CODES.O_MR1) {
+                reply.writeInt(0);
+                return;
+            }
+
+            try {
+                if (sharedMemory == null) {
+                    sharedMemory = Api27.copy(path, buffer);
+                }
+                reply.writeInt(1);
+                Api27.writeSharedMemory(sharedMemory, reply);
+
+            } catch (ErrnoException exc) {
+                // the content will be read through binder calls
+                Logger.error(LOG_TAG, "Can't create shared memory for " + path, exc);
+                reply.writeInt(0);
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer in this process.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Reads the content from the process which owns it, through binder calls.
+     */
+    private final class RemoteInputStream extends InputStream {
+        private long position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            long remaining = getLength() - position;
+
+            if (remaining <= 0)
+                return -1;
+
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+
+            try {
+                data.writeLong(position);
+                data.writeInt((int) Math.min(Math.min(count, MAX_REMOTE_READ_SIZE), remaining));
+                transact(TRANSACTION_READ, data, reply);
+
+                byte[] chunk = reply.createByteArray();
+                System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+                position += chunk.length;
+                return chunk.length;
+
+            } finally {
+                reply.recycle();
+                data.recycle();
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = Math.max(0, Math.min(n, getLength() - position));
+            position += count;
+            return count;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private static final class Api27 {
+
+        static Object copy(String path, ByteBuffer buffer) throws ErrnoException {
+            SharedMemory memory = SharedMemory.create(path, Math.max(1, buffer.remaining()));
+            ByteBuffer mapped = memory.mapReadWrite();
+
+            try {
+                mapped.put(buffer.duplicate());
+            } finally {
+                SharedMemory.unmap(mapped);
+            }
+
+            memory.setProtect(OsConstants.PROT_READ);
+            return memory;
+        }
+
+        static void writeSharedMemory(Object memory, Parcel parcel) {
+            ((SharedMemory) memory).writeToParcel(parcel, 0);
+        }
+
+        static Object readSharedMemory(Parcel parcel) {
+            return SharedMemory.CREATOR.createFromParcel(parcel);
+        }
+
+        static ByteBuffer map(Object memory) throws IOException {
+            try {
+                return ((SharedMemory) memory).mapReadOnly();
+            } catch (ErrnoException exc) {
+                throw new IOException("Can't map shared memory", exc);
+            }
+        }
+
+        static void close(Object memory) {
+            ((SharedMemory) memory).close();
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package net.gotev.uploadservice.schemehandlers;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Factory which instantiates the proper scheme handler based on the scheme passed.
+ * Handlers for custom schemes (e.g. app assets or database blobs) can be added with
+ * {@link SchemeHandlerFactory#register(String, Creator)}, before creating the upload requests
+ * which use them and before the upload service starts (e.g. in {@code Application.onCreate}).
  * @author gotev
  */
 public class SchemeHandlerFactory {
 
+    /**
+     * Creates new scheme handler instances.
+     */
+    public interface Creator {
+        /**
+         * Creates a new, not initialized, scheme handler.
+         * @return scheme handler instance
+         */
+        SchemeHandler newInstance();
+    }
+
+    private static final String FILE_SCHEME = "/";
+    private static final String SCHEME_SEPARATOR = "://";
+
     private static class LazyHolder {
         private static final SchemeHandlerFactory INSTANCE = new SchemeHandlerFactory();
     }
@@ -18,34 +34,78 @@ public class SchemeHandlerFactory {
         return LazyHolder.INSTANCE;
     }
 
-    private LinkedHashMap<String, Class<? extends SchemeHandler>> handlers = new LinkedHashMap<>();
+    private final Map<String, Creator> handlers = new ConcurrentHashMap<>();
 
     private SchemeHandlerFactory() {
-        handlers.put("/", FileSchemeHandler.class);
-        handlers.put("content://", ContentSchemeHandler.class);
-    }
+        handlers.put(FILE_SCHEME, new Creator() {
+            @Override
+            public SchemeHandler newInstance() {
+                return new FileSchemeHandler();
+            }
+        });
 
-    public SchemeHandler get(String path)
-            throws NoSuchMethodException, IllegalAccessException,
-                   InvocationTargetException, InstantiationException {
+        handlers.put("content" + SCHEME_SEPARATOR, new Creator() {
+            @Override
+            public SchemeHandler newInstance() {
+                return new ContentSchemeHandler();
+            }
+        });
 
-        for (Map.Entry<String, Class<? extends SchemeHandler>> handler : handlers.entrySet()) {
-            if (path.startsWith(handler.getKey())) {
-                SchemeHandler schemeHandler = handler.getValue().newInstance();
-                schemeHandler.init(path);
-                return schemeHandler;
+        handlers.put(MemorySource.SCHEME, new Creator() {
+            @Override
+            public SchemeHandler newInstance() {
+                return new MemorySchemeHandler();
             }
+        });
+    }
+
+    /**
+     * Registers the handler of a scheme, replacing the existing one, if any.
+     * @param scheme scheme with the separator, e.g. {@code asset://}, or {@code /} for file paths
+     * @param creator creates the handler instances
+     */
+    public void register(String scheme, Creator creator) {
+        if (scheme == null || !(FILE_SCHEME.equals(scheme)
+                || (scheme.endsWith(SCHEME_SEPARATOR) && scheme.length() > SCHEME_SEPARATOR.length()))) {
+            throw new IllegalArgumentException("Invalid scheme: " + scheme + ". Use the form scheme://");
         }
 
-        throw new UnsupportedOperationException("No handlers for " + path);
+        if (creator == null)
+            throw new IllegalArgumentException("creator must not be null");
+
+        handlers.put(scheme, creator);
+    }
+
+    /**
+     * Creates a new handler for a path.
+     * @param path file path or uri
+     * @return initialized scheme handler
+     * @throws UnsupportedOperationException if there isn't a handler for the scheme of the path
+     */
+    public SchemeHandler get(String path) {
+        Creator creator = getCreator(path);
+
+        if (creator == null)
+            throw new UnsupportedOperationException("No handlers for " + path);
+
+        SchemeHandler schemeHandler = creator.newInstance();
+        schemeHandler.init(path);
+        return schemeHandler;
     }
 
     public boolean isSupported(String path) {
-        for (String scheme : handlers.keySet()) {
-            if (path.startsWith(scheme))
-                return true;
-        }
+        return getCreator(path) != null;
+    }
+
+    private Creator getCreator(String path) {
+        if (path.startsWith(FILE_SCHEME))
+            return handlers.get(FILE_SCHEME);
+
+        int separator = path.indexOf(SCHEME_SEPARATOR);
+
+        if (separator <= 0)
+            return null;
 
-        return false;
+        return handlers.get(path.substring(0, separator + SCHEME_SEPARATOR.length()));
     }
 }